@@ -23,6 +23,8 @@
 
 package net.kevxu.senselib;
 
+import android.os.SystemClock;
+
 /**
  * Base class for worker thread inside sensor service class.
  * 
@@ -39,9 +41,28 @@ abstract class AbstractSensorWorkerThread extends Thread {
 
 	private final long interval;
 
+	private final Object parkLock;
+	private boolean parked;
+
+	private volatile CpuAccounting cpuAccounting;
+	private long lastCpuTime;
+
 	protected AbstractSensorWorkerThread(long interval) {
 		this.terminated = false;
 		this.interval = interval;
+		this.parkLock = new Object();
+		this.parked = false;
+		this.lastCpuTime = -1;
+	}
+
+	/**
+	 * Set where CPU time used by this thread is accounted. CPU time is 
+	 * measured every run loop in {@link #sleepInterval()}.
+	 * 
+	 * @param cpuAccounting CPU accounting, or null to disable accounting.
+	 */
+	void setCpuAccounting(CpuAccounting cpuAccounting) {
+		this.cpuAccounting = cpuAccounting;
 	}
 
 	/**
@@ -63,10 +84,70 @@ abstract class AbstractSensorWorkerThread extends Thread {
 	}
 
 	/**
-	 * Terminate the thread.
+	 * Terminate the thread. A parked thread is woken up so it can exit.
 	 */
 	protected void terminate() {
 		this.terminated = true;
+
+		synchronized (parkLock) {
+			parkLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Park the thread. Run loop blocks in {@link #sleepInterval()} until
+	 * {@link #unpark()} or {@link #terminate()} is called.
+	 */
+	protected void park() {
+		synchronized (parkLock) {
+			parked = true;
+		}
+	}
+
+	/**
+	 * Wake up a parked thread.
+	 */
+	protected void unpark() {
+		synchronized (parkLock) {
+			parked = false;
+			parkLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Check whether the thread is parked.
+	 * 
+	 * @return parked flag.
+	 */
+	protected boolean isParked() {
+		synchronized (parkLock) {
+			return parked;
+		}
+	}
+
+	/**
+	 * Pause run loop for one interval, and keep blocking while the thread is
+	 * parked.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	protected void sleepInterval() throws InterruptedException {
+		CpuAccounting cpuAccounting = this.cpuAccounting;
+		if (cpuAccounting != null) {
+			long cpuTime = SystemClock.currentThreadTimeMillis();
+			if (lastCpuTime >= 0) {
+				cpuAccounting.add(cpuTime - lastCpuTime);
+			}
+			lastCpuTime = cpuTime;
+		}
+
+		Thread.sleep(interval);
+
+		synchronized (parkLock) {
+			while (parked && !terminated) {
+				parkLock.wait();
+			}
+		}
 	}
 
 	@Override
@@ -0,0 +1,697 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.kevxu.senselib.SensorHub.SensorHubListener;
+import net.kevxu.senselib.util.FloatDataPool;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Recognizes what the user is doing from a window of acceleration in gravity
+ * direction. Features are variance, peak-to-peak and dominant step frequency
+ * with its confidence from {@link CadenceEstimator}, and a few rules decide
+ * the activity:
+ * <ul>
+ * <li>Still: almost no variance.</li>
+ * <li>Walking or running: periodic bounce within step frequencies, running
+ * when cadence or peak-to-peak is high.</li>
+ * <li>Vehicle: moderate vibration without gait periodicity, together with
+ * GPS speed above walking pace or vibration sustained for a while.</li>
+ * </ul>
+ * A new activity has to be observed for a while before it's reported, and
+ * longer for vehicle, since random handling of the device looks similar.
+ * <p>
+ * Sense uses recognized activity to gate other services, for example step
+ * detection is stopped in a vehicle. CPU time of all worker threads is
+ * accounted per activity.
+ * 
+ * @author Kaiwen Xu
+ */
+public class ActivityRecognitionService extends SensorService implements SensorHubListener {
+
+	private static final String TAG = "ActivityRecognitionService";
+
+	/**
+	 * Activity hasn't been recognized yet.
+	 */
+	public static final int ACTIVITY_UNKNOWN = 0x0;
+
+	/**
+	 * Device is not moving.
+	 */
+	public static final int ACTIVITY_STILL = 0x1;
+
+	/**
+	 * User is walking.
+	 */
+	public static final int ACTIVITY_WALKING = 0x2;
+
+	/**
+	 * User is running.
+	 */
+	public static final int ACTIVITY_RUNNING = 0x3;
+
+	/**
+	 * User is in a vehicle.
+	 */
+	public static final int ACTIVITY_VEHICLE = 0x4;
+
+	static final int ACTIVITY_COUNT = 5;
+
+	// Sensor rate used while device is stationary
+	private static final int SENSOR_DELAY_STATIONARY = SensorManager.SENSOR_DELAY_NORMAL;
+
+	// Variance limit for still in (m/s^2)^2
+	private static final float STILL_VARIANCE_LIMIT = 0.015F;
+
+	// Peak-to-peak limit for still in m/s^2
+	private static final float STILL_PEAK_TO_PEAK_LIMIT = 0.6F;
+
+	// Minimum cadence confidence for gait
+	private static final float GAIT_CONFIDENCE = 0.45F;
+
+	// Lowest step frequency for gait in Hz
+	private static final float GAIT_MIN_FREQUENCY = 0.8F;
+
+	// Step frequency above which gait is running in Hz
+	private static final float RUNNING_FREQUENCY = 2.5F;
+
+	// Peak-to-peak above which gait is running in m/s^2
+	private static final float RUNNING_PEAK_TO_PEAK = 15.0F;
+
+	// Variance limit for vehicle vibration in (m/s^2)^2
+	private static final float VEHICLE_VARIANCE_LIMIT = 2.0F;
+
+	// Short-term vibration energy has to stay above this for vehicle in (m/s^2)^2
+	private static final float VEHICLE_MIN_ENERGY = 0.05F;
+
+	// Time constant of short-term vibration energy (in milliseconds)
+	private static final long VEHICLE_ENERGY_TIME = 1000L;
+
+	// Time vibration has to be sustained to count as vehicle cue (in milliseconds)
+	private static final long VEHICLE_VIBRATION_TIME = 10000L;
+
+	// GPS speed above walking pace counting as vehicle cue in m/s
+	private static final float VEHICLE_MIN_SPEED = 4.0F;
+
+	// Time GPS speed counts as vehicle cue after it's received (in milliseconds)
+	private static final long VEHICLE_SPEED_TIMEOUT = 30000L;
+
+	// Time new activity has to be observed before it's reported (in milliseconds)
+	private static final long DWELL_TIME = 2000L;
+	private static final long VEHICLE_DWELL_TIME = 10000L;
+
+	private Context mContext;
+	private SensorHub mSensorHub;
+	private List<ActivityListener> mActivityListeners;
+	private volatile ActivityListener mActivityGate;
+
+	private ActivityRecognitionThread mActivityRecognitionThread;
+
+	private LocationManager mLocationManager;
+	private SpeedListener mSpeedListener;
+	private volatile long mSpeedTime;
+
+	private int mActivity;
+	private long mActivitySince;
+	private long[] mTimeInActivity;
+
+	/**
+	 * Used for receiving recognized activity.
+	 */
+	public interface ActivityListener {
+
+		/**
+		 * Called when recognized activity changes.
+		 * 
+		 * @param activity ActivityRecognitionService.ACTIVITY_*.
+		 */
+		public void onActivityChanged(int activity);
+
+	}
+
+	protected ActivityRecognitionService(Context context, SensorHub sensorHub) throws SensorNotAvailableException {
+		this(context, sensorHub, null);
+	}
+
+	protected ActivityRecognitionService(Context context, SensorHub sensorHub, ActivityListener activityListener) throws SensorNotAvailableException {
+		mContext = context;
+		mSensorHub = sensorHub;
+
+		int notAvailabelSensors = 0;
+
+		if (mSensorHub.selectSensor(Sensor.TYPE_LINEAR_ACCELERATION) == null) {
+			// Linear Acceleration sensor not available
+			notAvailabelSensors = notAvailabelSensors | Sensor.TYPE_LINEAR_ACCELERATION;
+		}
+
+		if (mSensorHub.selectSensor(Sensor.TYPE_GRAVITY) == null) {
+			// Gravity sensor not available
+			notAvailabelSensors = notAvailabelSensors | Sensor.TYPE_GRAVITY;
+		}
+
+		if (notAvailabelSensors != 0) {
+			// Some sensors are not available
+			throw new SensorNotAvailableException(notAvailabelSensors, "ActivityRecognitionService");
+		}
+
+		mActivityListeners = new CopyOnWriteArrayList<ActivityListener>();
+
+		if (activityListener != null) {
+			mActivityListeners.add(activityListener);
+		}
+
+		mActivity = ACTIVITY_UNKNOWN;
+		mActivitySince = SystemClock.elapsedRealtime();
+		mTimeInActivity = new long[ACTIVITY_COUNT];
+
+		mSpeedListener = new SpeedListener();
+		mSpeedTime = 0;
+	}
+
+	@Override
+	protected void start() {
+		if (mActivityRecognitionThread == null) {
+			mActivityRecognitionThread = new ActivityRecognitionThread();
+			mActivityRecognitionThread.setCpuAccounting(getCpuAccounting());
+			mActivityRecognitionThread.start();
+			Log.i(TAG, "ActivityRecognitionThread started.");
+		}
+
+		mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
+		Log.i(TAG, "Sensors registered.");
+
+		registerSpeedListener();
+
+		Log.i(TAG, "ActivityRecognitionService started.");
+	}
+
+	@Override
+	protected void stop() {
+		if (mActivityRecognitionThread != null) {
+			mActivityRecognitionThread.terminate();
+			Log.i(TAG, "Waiting for ActivityRecognitionThread to stop.");
+			try {
+				mActivityRecognitionThread.join();
+			} catch (InterruptedException e) {
+				Log.w(TAG, e.getMessage(), e);
+			}
+			Log.i(TAG, "ActivityRecognitionThread stopped.");
+			mActivityRecognitionThread = null;
+		}
+
+		mSensorHub.unregisterListener(this);
+		Log.i(TAG, "Sensors unregistered.");
+
+		unregisterSpeedListener();
+
+		changeActivity(ACTIVITY_UNKNOWN);
+
+		Log.i(TAG, "ActivityRecognitionService stopped.");
+	}
+
+	@Override
+	protected void pause() {
+		mSensorHub.unregisterListener(this);
+		unregisterSpeedListener();
+
+		ActivityRecognitionThread activityRecognitionThread = mActivityRecognitionThread;
+		if (activityRecognitionThread != null) {
+			activityRecognitionThread.park();
+		}
+
+		Log.i(TAG, "ActivityRecognitionService paused.");
+	}
+
+	@Override
+	protected void resume() {
+		ActivityRecognitionThread activityRecognitionThread = mActivityRecognitionThread;
+		if (activityRecognitionThread == null) {
+			start();
+			return;
+		}
+
+		mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
+		registerSpeedListener();
+		activityRecognitionThread.unpark();
+		Log.i(TAG, "ActivityRecognitionService resumed.");
+	}
+
+	/**
+	 * Listen to GPS fixes requested by anyone, such as LocationService or a
+	 * navigation app, for speed. Passive provider doesn't turn on GPS. 
+	 * Without location permission, vehicle is only recognized by vibration.
+	 */
+	private void registerSpeedListener() {
+		if (mLocationManager == null) {
+			mLocationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+		}
+
+		if (mLocationManager != null) {
+			try {
+				mLocationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0.0F, 
+						mSpeedListener, mSensorHub.getLooper());
+			} catch (SecurityException e) {
+				Log.w(TAG, "No location permission, GPS speed isn't used as vehicle cue.");
+			}
+		}
+	}
+
+	private void unregisterSpeedListener() {
+		if (mLocationManager != null) {
+			mLocationManager.removeUpdates(mSpeedListener);
+		}
+	}
+
+	/**
+	 * Check whether GPS recently reported speed above walking pace.
+	 * 
+	 * @param now current time from SystemClock.elapsedRealtime().
+	 * @return true if speed is a vehicle cue.
+	 */
+	private boolean hasSpeedCue(long now) {
+		long speedTime = mSpeedTime;
+
+		return speedTime != 0 && now - speedTime <= VEHICLE_SPEED_TIMEOUT;
+	}
+
+	private final class SpeedListener implements LocationListener {
+
+		@Override
+		public void onLocationChanged(Location location) {
+			if (LocationManager.GPS_PROVIDER.equals(location.getProvider()) 
+					&& location.hasSpeed() && location.getSpeed() > VEHICLE_MIN_SPEED) {
+				mSpeedTime = SystemClock.elapsedRealtime();
+			}
+		}
+
+		@Override
+		public void onStatusChanged(String provider, int status, Bundle extras) {
+			// Only speed matters
+		}
+
+		@Override
+		public void onProviderEnabled(String provider) {
+			// Only speed matters
+		}
+
+		@Override
+		public void onProviderDisabled(String provider) {
+			// Only speed matters
+		}
+
+	}
+
+	@Override
+	protected void setStationary(boolean stationary) {
+		ActivityRecognitionThread activityRecognitionThread = mActivityRecognitionThread;
+		if (activityRecognitionThread == null) {
+			return;
+		}
+
+		// Motion state detector has already decided, so window doesn't
+		// need to be evaluated while stationary
+		if (stationary) {
+			mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SENSOR_DELAY_STATIONARY);
+			mSensorHub.unregisterListener(this, Sensor.TYPE_GRAVITY);
+			activityRecognitionThread.park();
+			changeActivity(ACTIVITY_STILL);
+			Log.i(TAG, "ActivityRecognitionService parked.");
+		} else {
+			mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SensorManager.SENSOR_DELAY_GAME);
+			mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
+			activityRecognitionThread.unpark();
+			Log.i(TAG, "ActivityRecognitionService resumed.");
+		}
+	}
+
+	private void changeActivity(int activity) {
+		long now = SystemClock.elapsedRealtime();
+
+		synchronized (this) {
+			if (activity == mActivity) {
+				return;
+			}
+
+			mTimeInActivity[mActivity] += now - mActivitySince;
+			mActivitySince = now;
+			mActivity = activity;
+		}
+
+		CpuAccounting cpuAccounting = getCpuAccounting();
+		if (cpuAccounting != null) {
+			cpuAccounting.setActivity(activity);
+		}
+
+		Log.i(TAG, "Activity changed to " + getActivityName(activity) + ".");
+
+		ActivityListener activityGate = mActivityGate;
+		if (activityGate != null) {
+			activityGate.onActivityChanged(activity);
+		}
+
+		for (ActivityListener listener : mActivityListeners) {
+			listener.onActivityChanged(activity);
+		}
+
+		markCallbackDelivered();
+	}
+
+	/**
+	 * Get current activity.
+	 * 
+	 * @return ActivityRecognitionService.ACTIVITY_*.
+	 */
+	public synchronized int getActivity() {
+		return mActivity;
+	}
+
+	/**
+	 * Get total time spent in given activity, including time spent in
+	 * current activity so far.
+	 * 
+	 * @param activity ActivityRecognitionService.ACTIVITY_*.
+	 * @return time in milliseconds.
+	 */
+	public synchronized long getTimeInActivity(int activity) {
+		long time = mTimeInActivity[activity];
+		if (activity == mActivity) {
+			time += SystemClock.elapsedRealtime() - mActivitySince;
+		}
+
+		return time;
+	}
+
+	/**
+	 * Get CPU time used by worker threads of all services while in given
+	 * activity. Together with {@link #getTimeInActivity(int)}, it tells how
+	 * much each activity costs.
+	 * 
+	 * @param activity ActivityRecognitionService.ACTIVITY_*.
+	 * @return CPU time in milliseconds.
+	 */
+	public long getCpuTime(int activity) {
+		CpuAccounting cpuAccounting = getCpuAccounting();
+
+		return cpuAccounting == null ? 0 : cpuAccounting.getCpuTime(activity);
+	}
+
+	public static String getActivityName(int activity) {
+		switch (activity) {
+		case ACTIVITY_STILL:
+			return "still";
+		case ACTIVITY_WALKING:
+			return "walking";
+		case ACTIVITY_RUNNING:
+			return "running";
+		case ACTIVITY_VEHICLE:
+			return "vehicle";
+		default:
+			return "unknown";
+		}
+	}
+
+	/**
+	 * Classify one window of features. Non-periodic vibration is only taken
+	 * as vehicle with a positive cue, since handling the device or an 
+	 * irregular walk looks similar.
+	 * 
+	 * @param vehicleCue true if GPS speed is above walking pace or vibration
+	 *            has been sustained.
+	 * @return ActivityRecognitionService.ACTIVITY_*, or ACTIVITY_UNKNOWN if
+	 * no rule matches.
+	 */
+	private static int classify(float variance, float peakToPeak, float frequency, float confidence, boolean vehicleCue) {
+		if (variance < STILL_VARIANCE_LIMIT && peakToPeak < STILL_PEAK_TO_PEAK_LIMIT) {
+			return ACTIVITY_STILL;
+		}
+
+		if (confidence >= GAIT_CONFIDENCE && frequency >= GAIT_MIN_FREQUENCY) {
+			if (frequency > RUNNING_FREQUENCY || peakToPeak > RUNNING_PEAK_TO_PEAK) {
+				return ACTIVITY_RUNNING;
+			} else {
+				return ACTIVITY_WALKING;
+			}
+		}
+
+		if (variance < VEHICLE_VARIANCE_LIMIT && vehicleCue) {
+			return ACTIVITY_VEHICLE;
+		}
+
+		return ACTIVITY_UNKNOWN;
+	}
+
+	/**
+	 * Set listener used by Sense for gating other services. It's notified
+	 * before other listeners, and doesn't count as an external listener.
+	 * 
+	 * @param activityGate activity gate, or null.
+	 */
+	void setActivityGate(ActivityListener activityGate) {
+		mActivityGate = activityGate;
+	}
+
+	public ActivityRecognitionService addListener(ActivityListener activityListener) {
+		if (activityListener != null) {
+			mActivityListeners.add(activityListener);
+			notifyDemandChanged();
+
+			return this;
+		} else {
+			throw new NullPointerException("ActivityListener is null.");
+		}
+	}
+
+	public ActivityRecognitionService removeListener(ActivityListener activityListener) {
+		if (activityListener != null) {
+			mActivityListeners.remove(activityListener);
+			notifyDemandChanged();
+
+			return this;
+		} else {
+			throw new NullPointerException("ActivityListener is null.");
+		}
+	}
+
+	protected ActivityRecognitionService removeListeners() {
+		mActivityListeners.clear();
+		notifyDemandChanged();
+
+		return this;
+	}
+
+	@Override
+	protected boolean hasExternalListeners() {
+		return containsExternalListener(mActivityListeners);
+	}
+
+	@Override
+	public void onSensorChanged(int type, float[] values, long timestamp) {
+		ActivityRecognitionThread activityRecognitionThread = mActivityRecognitionThread;
+		if (activityRecognitionThread == null) {
+			return;
+		}
+
+		if (type == Sensor.TYPE_LINEAR_ACCELERATION) {
+			activityRecognitionThread.pushLinearAccel(values);
+		} else if (type == Sensor.TYPE_GRAVITY) {
+			activityRecognitionThread.pushGravity(values);
+		}
+	}
+
+	private final class ActivityRecognitionThread extends AbstractSensorWorkerThread {
+
+		// Same rate as StepDetector, so that cadence is estimated the same way
+		private static final long DEFAULT_INTERVAL = 80;
+
+		private static final int WINDOW_SIZE = CadenceEstimator.DEFAULT_WINDOW_SIZE;
+
+		private float[] linearAccel;
+		private float[] gravity;
+		private boolean hasLinearAccel;
+		private boolean hasGravity;
+
+		private FloatDataPool window;
+		private double sum;
+		private double sumOfSquares;
+		private CadenceEstimator cadenceEstimator;
+
+		// Short-term vibration energy and since when it's been in vehicle range
+		private float energyRate;
+		private float energy;
+		private long vibrationSince;
+
+		private int candidate;
+		private long candidateSince;
+
+		public ActivityRecognitionThread() {
+			this(DEFAULT_INTERVAL);
+		}
+
+		public ActivityRecognitionThread(long interval) {
+			super(interval);
+
+			this.linearAccel = new float[3];
+			this.gravity = new float[3];
+			this.hasLinearAccel = false;
+			this.hasGravity = false;
+
+			this.window = new FloatDataPool(WINDOW_SIZE);
+			this.sum = 0.0;
+			this.sumOfSquares = 0.0;
+			this.cadenceEstimator = new CadenceEstimator(1000.0F / interval, WINDOW_SIZE,
+					CadenceEstimator.DEFAULT_MIN_FREQUENCY, CadenceEstimator.DEFAULT_MAX_FREQUENCY);
+
+			this.energyRate = Math.min(1.0F, (float) interval / VEHICLE_ENERGY_TIME);
+			this.energy = 0.0F;
+			this.vibrationSince = SystemClock.elapsedRealtime();
+
+			this.candidate = ACTIVITY_UNKNOWN;
+			this.candidateSince = 0;
+		}
+
+		public synchronized void pushLinearAccel(float[] values) {
+			System.arraycopy(values, 0, linearAccel, 0, 3);
+			hasLinearAccel = true;
+		}
+
+		public synchronized void pushGravity(float[] values) {
+			System.arraycopy(values, 0, gravity, 0, 3);
+			hasGravity = true;
+		}
+
+		/**
+		 * Get acceleration in gravity direction of latest sample.
+		 * 
+		 * @return acceleration in m/s^2, or NaN if no sample yet.
+		 */
+		private synchronized float getAccelInGravityDirection() {
+			if (!hasLinearAccel || !hasGravity) {
+				return Float.NaN;
+			}
+
+			return LimitCrossingStepDetectionAlgorithm.getAccelInGravityDirection(linearAccel, gravity);
+		}
+
+		private void push(float value, long now) {
+			if (window.size() == window.getPoolSize()) {
+				float oldest = window.get(0);
+				sum -= oldest;
+				sumOfSquares -= oldest * oldest;
+			}
+			window.append(value);
+			sum += value;
+			sumOfSquares += value * value;
+
+			cadenceEstimator.push(value, now);
+		}
+
+		private float getPeakToPeak() {
+			float min = Float.MAX_VALUE;
+			float max = -Float.MAX_VALUE;
+			for (int i = 0; i < window.size(); i++) {
+				float value = window.get(i);
+				if (value < min) {
+					min = value;
+				}
+				if (value > max) {
+					max = value;
+				}
+			}
+
+			return max - min;
+		}
+
+		/**
+		 * Update short-term vibration energy around window mean. Road 
+		 * vibration doesn't stop while driving, unlike handling the device,
+		 * which has quiet moments.
+		 * 
+		 * @return true if vibration has been sustained.
+		 */
+		private boolean updateVibration(float value, double mean, long now) {
+			float deviation = (float) (value - mean);
+			energy += energyRate * (deviation * deviation - energy);
+
+			if (energy < VEHICLE_MIN_ENERGY || energy >= VEHICLE_VARIANCE_LIMIT) {
+				vibrationSince = now;
+			}
+
+			return now - vibrationSince >= VEHICLE_VIBRATION_TIME;
+		}
+
+		@Override
+		public void run() {
+			while (!isTerminated()) {
+				float value = getAccelInGravityDirection();
+
+				if (!Float.isNaN(value)) {
+					long now = SystemClock.elapsedRealtime();
+					push(value, now);
+
+					if (cadenceEstimator.isReady()) {
+						int n = window.size();
+						double mean = sum / n;
+						float variance = (float) (sumOfSquares / n - mean * mean);
+						boolean sustainedVibration = updateVibration(value, mean, now);
+						boolean vehicleCue = sustainedVibration || hasSpeedCue(now);
+						int activity = classify(variance, getPeakToPeak(),
+								cadenceEstimator.getFrequency(), cadenceEstimator.getConfidence(), vehicleCue);
+
+						if (activity != candidate) {
+							candidate = activity;
+							candidateSince = now;
+						}
+
+						long dwellTime = candidate == ACTIVITY_VEHICLE ? VEHICLE_DWELL_TIME : DWELL_TIME;
+						if (candidate != ACTIVITY_UNKNOWN && now - candidateSince >= dwellTime) {
+							changeActivity(candidate);
+						}
+					}
+				}
+
+				try {
+					sleepInterval();
+				} catch (InterruptedException e) {
+					Log.w(TAG, e.getMessage(), e);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+/**
+ * Estimates walking cadence from acceleration in gravity direction, which
+ * bounces once per step. A sliding DFT keeps the spectrum of the latest
+ * window up to date, but only for bins within walking and running cadence,
+ * so each sample costs O(bins) instead of an FFT over the whole window.
+ * <p>
+ * Hann window is applied in frequency domain from neighbouring bins, and
+ * dominant frequency is refined by parabolic interpolation of log magnitude
+ * between bins. Confidence is the share of the dominant peak in total power
+ * of the band, which is close to 1 for a steady gait and low for random
+ * motion.
+ * <p>
+ * Sliding DFT is only marginally stable, so a damping factor slightly below
+ * 1 is applied to keep rounding errors from accumulating.
+ * 
+ * @author Kaiwen Xu
+ */
+public class CadenceEstimator {
+
+	/**
+	 * Default window is 64 samples, about 5 seconds at StepDetector's rate.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 64;
+
+	/**
+	 * Lowest step frequency considered is 0.5 Hz (30 steps per minute).
+	 */
+	public static final float DEFAULT_MIN_FREQUENCY = 0.5F;
+
+	/**
+	 * Highest step frequency considered is 3.5 Hz (210 steps per minute).
+	 */
+	public static final float DEFAULT_MAX_FREQUENCY = 3.5F;
+
+	private static final double DAMPING = 0.9999;
+
+	// Window restarts after a gap longer than this (in milliseconds), such
+	// as when StepDetector has been parked
+	private static final long MAX_GAP = 1000L;
+
+	private final int mWindowSize;
+	private final float mNominalSampleRate;
+
+	// Bins searched are [mMinBin, mMaxBin], one more bin is kept on each
+	// side for windowing
+	private final int mMinBin;
+	private final int mMaxBin;
+
+	private final double[] mReal;
+	private final double[] mImag;
+	private final double[] mTwiddleReal;
+	private final double[] mTwiddleImag;
+	private final double[] mPower;
+	private final double mDampingN;
+
+	private final float[] mWindow;
+	private int mPosition;
+	private int mCount;
+
+	private long mLastTime;
+	private double mInterval;
+
+	private float mFrequency;
+	private float mConfidence;
+
+	public CadenceEstimator(float sampleRate) {
+		this(sampleRate, DEFAULT_WINDOW_SIZE, DEFAULT_MIN_FREQUENCY, DEFAULT_MAX_FREQUENCY);
+	}
+
+	/**
+	 * @param sampleRate nominal sample rate in Hz.
+	 * @param windowSize number of samples in window.
+	 * @param minFrequency lowest step frequency in Hz.
+	 * @param maxFrequency highest step frequency in Hz.
+	 */
+	public CadenceEstimator(float sampleRate, int windowSize, float minFrequency, float maxFrequency) {
+		mWindowSize = windowSize;
+		mNominalSampleRate = sampleRate;
+
+		mMinBin = Math.max(1, (int) Math.floor(minFrequency * windowSize / sampleRate));
+		mMaxBin = Math.min(windowSize / 2, (int) Math.ceil(maxFrequency * windowSize / sampleRate));
+		if (mMaxBin < mMinBin) {
+			throw new IllegalArgumentException("No bin within frequency range at sample rate " + sampleRate + ".");
+		}
+
+		int bins = mMaxBin - mMinBin + 1;
+		mReal = new double[bins + 2];
+		mImag = new double[bins + 2];
+		mTwiddleReal = new double[bins + 2];
+		mTwiddleImag = new double[bins + 2];
+		mPower = new double[bins];
+		for (int i = 0; i < bins + 2; i++) {
+			double theta = 2 * Math.PI * (mMinBin - 1 + i) / windowSize;
+			mTwiddleReal[i] = DAMPING * Math.cos(theta);
+			mTwiddleImag[i] = DAMPING * Math.sin(theta);
+		}
+		mDampingN = Math.pow(DAMPING, windowSize);
+
+		mWindow = new float[windowSize];
+
+		reset();
+	}
+
+	/**
+	 * Push a new sample.
+	 * 
+	 * @param value acceleration in gravity direction in m/s^2. Non-finite
+	 * values are ignored, since they would stay in the sliding DFT forever.
+	 * @param time sample time in milliseconds, used for measuring actual
+	 * sample rate.
+	 */
+	public void push(float value, long time) {
+		if (Float.isNaN(value) || Float.isInfinite(value)) {
+			return;
+		}
+
+		if (mLastTime > 0 && time - mLastTime > MAX_GAP) {
+			reset();
+		}
+
+		if (mLastTime > 0 && time > mLastTime) {
+			long interval = time - mLastTime;
+			mInterval = mInterval <= 0 ? interval : mInterval + 0.05 * (interval - mInterval);
+		}
+		mLastTime = time;
+
+		double delta = value - mDampingN * mWindow[mPosition];
+		mWindow[mPosition] = value;
+		mPosition = (mPosition + 1) % mWindowSize;
+		if (mCount < mWindowSize) {
+			mCount++;
+		}
+
+		// X[k] = r * e^(j*2*pi*k/N) * (X[k] + x[n] - r^N * x[n-N])
+		for (int i = 0; i < mReal.length; i++) {
+			double real = mReal[i] + delta;
+			double imag = mImag[i];
+			mReal[i] = real * mTwiddleReal[i] - imag * mTwiddleImag[i];
+			mImag[i] = real * mTwiddleImag[i] + imag * mTwiddleReal[i];
+		}
+
+		if (mCount < mWindowSize) {
+			return;
+		}
+
+		// Hann window: W[k] = 0.5 * X[k] - 0.25 * (X[k-1] + X[k+1])
+		int peak = 0;
+		double total = 0;
+		for (int i = 0; i < mPower.length; i++) {
+			double real = 0.5 * mReal[i + 1] - 0.25 * (mReal[i] + mReal[i + 2]);
+			double imag = 0.5 * mImag[i + 1] - 0.25 * (mImag[i] + mImag[i + 2]);
+			mPower[i] = real * real + imag * imag;
+			total += mPower[i];
+			if (mPower[i] > mPower[peak]) {
+				peak = i;
+			}
+		}
+
+		if (total <= 0) {
+			mFrequency = 0.0F;
+			mConfidence = 0.0F;
+			return;
+		}
+
+		double offset = 0;
+		double peakPower = mPower[peak];
+		if (peak > 0 && peak < mPower.length - 1 && mPower[peak - 1] > 0 && mPower[peak + 1] > 0) {
+			// Log of power is close to a parabola around the peak
+			double left = Math.log(mPower[peak - 1]);
+			double center = Math.log(mPower[peak]);
+			double right = Math.log(mPower[peak + 1]);
+			double denominator = left - 2 * center + right;
+			if (denominator < 0) {
+				offset = 0.5 * (left - right) / denominator;
+			}
+			peakPower += mPower[peak - 1] + mPower[peak + 1];
+		}
+
+		mFrequency = (float) ((mMinBin + peak + offset) * getSampleRate() / mWindowSize);
+		mConfidence = (float) (peakPower / total);
+	}
+
+	/**
+	 * Check whether window is full, so that estimation is available.
+	 * 
+	 * @return true if ready.
+	 */
+	public boolean isReady() {
+		return mCount >= mWindowSize;
+	}
+
+	/**
+	 * Get dominant step frequency of latest window.
+	 * 
+	 * @return frequency in Hz, or 0 if not ready.
+	 */
+	public float getFrequency() {
+		return mFrequency;
+	}
+
+	/**
+	 * Get cadence of latest window.
+	 * 
+	 * @return steps per minute, or 0 if not ready.
+	 */
+	public float getCadence() {
+		return mFrequency * 60.0F;
+	}
+
+	/**
+	 * Get confidence of dominant frequency.
+	 * 
+	 * @return value between 0 and 1.
+	 */
+	public float getConfidence() {
+		return mConfidence;
+	}
+
+	/**
+	 * Get sample rate measured from sample times, or nominal sample rate
+	 * until measured.
+	 * 
+	 * @return sample rate in Hz.
+	 */
+	public float getSampleRate() {
+		return mInterval > 0 ? (float) (1000.0 / mInterval) : mNominalSampleRate;
+	}
+
+	public void reset() {
+		for (int i = 0; i < mReal.length; i++) {
+			mReal[i] = 0;
+			mImag[i] = 0;
+		}
+		for (int i = 0; i < mPower.length; i++) {
+			mPower[i] = 0;
+		}
+		for (int i = 0; i < mWindowSize; i++) {
+			mWindow[i] = 0.0F;
+		}
+
+		mPosition = 0;
+		mCount = 0;
+		mLastTime = 0;
+		mInterval = 0;
+		mFrequency = 0.0F;
+		mConfidence = 0.0F;
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates CPU time of worker threads by current activity, owned by
+ * {@link Sense}. Worker threads report their own thread CPU time, and
+ * {@link ActivityRecognitionService} switches current activity.
+ * 
+ * @author Kaiwen Xu
+ */
+final class CpuAccounting {
+
+	private volatile int mActivity;
+	private final AtomicLongArray mCpuTime;
+
+	CpuAccounting() {
+		mActivity = ActivityRecognitionService.ACTIVITY_UNKNOWN;
+		mCpuTime = new AtomicLongArray(ActivityRecognitionService.ACTIVITY_COUNT);
+	}
+
+	void setActivity(int activity) {
+		mActivity = activity;
+	}
+
+	/**
+	 * Add CPU time used by a worker thread to current activity.
+	 * 
+	 * @param cpuTime CPU time in milliseconds.
+	 */
+	void add(long cpuTime) {
+		if (cpuTime > 0) {
+			mCpuTime.addAndGet(mActivity, cpuTime);
+		}
+	}
+
+	long getCpuTime(int activity) {
+		return mCpuTime.get(activity);
+	}
+
+}
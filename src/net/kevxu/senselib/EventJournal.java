@@ -0,0 +1,684 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import net.kevxu.senselib.LocationService.LocationServiceListener;
+import net.kevxu.senselib.StepDetector.StepListener;
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * Append-only journal of steps and locations which survives the process
+ * being killed. Register it as listener of {@link StepDetector} and 
+ * {@link LocationService}, or append records directly.
+ * <p>
+ * Records are compact binary with a CRC32 each, appended into a memory
+ * buffer and written to disk by a background thread in batches. Each batch
+ * is committed with a single fsync, either when commit interval elapsed 
+ * since its first record or when half of buffer is filled, so at most one 
+ * commit interval of records is lost on crash. When buffer is full, 
+ * appending blocks until the pending batch is written.
+ * <p>
+ * On {@link #open()}, segments are checked and each is truncated at its 
+ * first corrupted record, which is normally a torn write at the tail. 
+ * Segments are rolled over at a size limit, and only a limited number of 
+ * them are kept, so journal is compacted by dropping the oldest segments.
+ * 
+ * @author Kaiwen Xu
+ */
+public class EventJournal implements StepListener, LocationServiceListener {
+
+	private static final String TAG = "EventJournal";
+
+	public static final int RECORD_STEP = 1;
+	public static final int RECORD_LOCATION = 2;
+
+	/**
+	 * Default commit interval is 200 milliseconds.
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL = 200;
+
+	/**
+	 * Default segment size is 1 MB.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+	/**
+	 * Default maximum number of segments is 16.
+	 */
+	public static final int DEFAULT_MAX_SEGMENTS = 16;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Time (8), values (3 * 4)
+	private static final int STEP_PAYLOAD_SIZE = 20;
+	// Time (8), latitude (8), longitude (8), accuracy (4)
+	private static final int LOCATION_PAYLOAD_SIZE = 28;
+	// Type (1), CRC32 (4)
+	private static final int RECORD_OVERHEAD = 5;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private final File mDirectory;
+	private final long mCommitInterval;
+	private final int mSegmentSize;
+	private final int mMaxSegments;
+
+	private final Object mLock;
+	private final CRC32 mCrc;
+	private ByteBuffer mBuffer;
+	private ByteBuffer mSpare;
+	private long mBatchStartTime;
+	private long mAppendedCount;
+	private long mCommittedCount;
+	private boolean mSyncRequested;
+	private IOException mWriteException;
+
+	private final List<File> mSegments;
+	private volatile boolean mOpen;
+	private int mRecoveredCount;
+	private long mTruncatedBytes;
+
+	private EventJournalWriterThread mEventJournalWriterThread;
+
+	/**
+	 * Used for reading records back from journal.
+	 */
+	public interface JournalReader {
+
+		/**
+		 * Called for each step record.
+		 * 
+		 * @param time time of step in milliseconds since epoch.
+		 * @param values movement values of step.
+		 */
+		public void onStep(long time, float[] values);
+
+		/**
+		 * Called for each location record.
+		 * 
+		 * @param time time of fix in milliseconds since epoch.
+		 * @param latitude latitude in degrees.
+		 * @param longitude longitude in degrees.
+		 * @param accuracy accuracy in meters.
+		 */
+		public void onLocation(long time, double latitude, double longitude, float accuracy);
+
+	}
+
+	public EventJournal(File directory) {
+		this(directory, DEFAULT_COMMIT_INTERVAL, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * @param directory directory of segment files.
+	 * @param commitInterval maximum time in milliseconds a record waits 
+	 *            before being committed to disk.
+	 * @param segmentSize size in bytes at which segment is rolled over.
+	 * @param maxSegments maximum number of segments kept.
+	 */
+	public EventJournal(File directory, long commitInterval, int segmentSize, int maxSegments) {
+		if (directory == null) {
+			throw new NullPointerException("Directory is null.");
+		}
+		if (commitInterval < 0 || segmentSize <= 0 || maxSegments <= 0) {
+			throw new IllegalArgumentException("Invalid journal parameters.");
+		}
+
+		mDirectory = directory;
+		mCommitInterval = commitInterval;
+		mSegmentSize = segmentSize;
+		mMaxSegments = maxSegments;
+
+		mLock = new Object();
+		mCrc = new CRC32();
+		mSegments = new ArrayList<File>();
+		mOpen = false;
+	}
+
+	/**
+	 * Recover segments and start writing. Records appended before journal
+	 * is opened are dropped.
+	 * 
+	 * @throws IOException if directory or segments can't be accessed.
+	 */
+	public synchronized void open() throws IOException {
+		if (mOpen) {
+			return;
+		}
+
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			throw new IOException("Can't create directory " + mDirectory + ".");
+		}
+
+		synchronized (mSegments) {
+			mSegments.clear();
+			mSegments.addAll(listSegments());
+			mRecoveredCount = 0;
+			mTruncatedBytes = 0;
+			for (File segment : mSegments) {
+				recover(segment);
+			}
+			if (mSegments.isEmpty()) {
+				mSegments.add(getSegmentFile(0));
+			}
+		}
+		Log.i(TAG, "Recovered " + mRecoveredCount + " records, truncated " + mTruncatedBytes + " bytes.");
+
+		synchronized (mLock) {
+			mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+			mSpare = ByteBuffer.allocate(BUFFER_SIZE);
+			mAppendedCount = 0;
+			mCommittedCount = 0;
+			mSyncRequested = false;
+			mWriteException = null;
+		}
+
+		mEventJournalWriterThread = new EventJournalWriterThread(getActiveSegment());
+		mEventJournalWriterThread.start();
+		mOpen = true;
+	}
+
+	/**
+	 * Commit pending records and stop writing.
+	 * 
+	 * @throws IOException if pending records can't be written.
+	 */
+	public synchronized void close() throws IOException {
+		if (!mOpen) {
+			return;
+		}
+
+		mOpen = false;
+		mEventJournalWriterThread.terminate();
+		try {
+			mEventJournalWriterThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mEventJournalWriterThread = null;
+
+		synchronized (mLock) {
+			if (mWriteException != null) {
+				throw mWriteException;
+			}
+		}
+	}
+
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	/**
+	 * Get number of valid records found in segments when journal was opened.
+	 * 
+	 * @return number of recovered records.
+	 */
+	public int getRecoveredCount() {
+		return mRecoveredCount;
+	}
+
+	/**
+	 * Get number of bytes truncated from segments when journal was opened.
+	 * 
+	 * @return number of truncated bytes.
+	 */
+	public long getTruncatedBytes() {
+		return mTruncatedBytes;
+	}
+
+	public void appendStep(long time, float[] values) {
+		synchronized (mLock) {
+			ByteBuffer buffer = reserve(STEP_PAYLOAD_SIZE);
+			if (buffer == null) {
+				return;
+			}
+
+			int start = buffer.position();
+			buffer.put((byte) RECORD_STEP);
+			buffer.putLong(time);
+			buffer.putFloat(values[0]);
+			buffer.putFloat(values[1]);
+			buffer.putFloat(values[2]);
+			commitRecord(buffer, start);
+		}
+	}
+
+	public void appendLocation(long time, double latitude, double longitude, float accuracy) {
+		synchronized (mLock) {
+			ByteBuffer buffer = reserve(LOCATION_PAYLOAD_SIZE);
+			if (buffer == null) {
+				return;
+			}
+
+			int start = buffer.position();
+			buffer.put((byte) RECORD_LOCATION);
+			buffer.putLong(time);
+			buffer.putDouble(latitude);
+			buffer.putDouble(longitude);
+			buffer.putFloat(accuracy);
+			commitRecord(buffer, start);
+		}
+	}
+
+	// Must hold mLock
+	private ByteBuffer reserve(int payloadSize) {
+		while (mOpen && mBuffer.remaining() < payloadSize + RECORD_OVERHEAD) {
+			// Writer was notified when half of buffer was filled, wait for it
+			// to swap buffers
+			try {
+				mLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		return mOpen ? mBuffer : null;
+	}
+
+	// Must hold mLock
+	private void commitRecord(ByteBuffer buffer, int start) {
+		mCrc.reset();
+		mCrc.update(buffer.array(), start, buffer.position() - start);
+		buffer.putInt((int) mCrc.getValue());
+
+		if (start == 0) {
+			mBatchStartTime = System.currentTimeMillis();
+			mLock.notifyAll();
+		} else if (buffer.position() >= BUFFER_SIZE / 2 && start < BUFFER_SIZE / 2) {
+			mLock.notifyAll();
+		}
+		mAppendedCount++;
+	}
+
+	/**
+	 * Block until all records appended so far are committed to disk.
+	 * 
+	 * @throws IOException if records can't be written.
+	 */
+	public void sync() throws IOException {
+		synchronized (mLock) {
+			long target = mAppendedCount;
+			while (mOpen && mCommittedCount < target && mWriteException == null) {
+				mSyncRequested = true;
+				mLock.notifyAll();
+				try {
+					mLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			if (mWriteException != null) {
+				throw mWriteException;
+			}
+		}
+	}
+
+	/**
+	 * Read all committed records, oldest first. Records still pending are
+	 * committed first if journal is open.
+	 * 
+	 * @param reader reader receiving records.
+	 * @throws IOException if segments can't be read.
+	 */
+	public void replay(JournalReader reader) throws IOException {
+		if (reader == null) {
+			throw new NullPointerException("JournalReader is null.");
+		}
+
+		if (mOpen) {
+			sync();
+		}
+
+		List<File> segments;
+		synchronized (mSegments) {
+			segments = new ArrayList<File>(mSegments);
+		}
+		if (segments.isEmpty()) {
+			segments = listSegments();
+		}
+
+		float[] values = new float[3];
+		for (File segment : segments) {
+			byte[] data;
+			try {
+				data = readFile(segment);
+			} catch (FileNotFoundException e) {
+				// Dropped by compaction
+				continue;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (checkRecord(buffer)) {
+				int type = buffer.get();
+				long time = buffer.getLong();
+				if (type == RECORD_STEP) {
+					values[0] = buffer.getFloat();
+					values[1] = buffer.getFloat();
+					values[2] = buffer.getFloat();
+					reader.onStep(time, values);
+				} else {
+					double latitude = buffer.getDouble();
+					double longitude = buffer.getDouble();
+					float accuracy = buffer.getFloat();
+					reader.onLocation(time, latitude, longitude, accuracy);
+				}
+				// Skip CRC
+				buffer.getInt();
+			}
+		}
+	}
+
+	private void recover(File segment) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(readFile(segment));
+		while (checkRecord(buffer)) {
+			buffer.position(buffer.position() + getRecordSize(buffer.get(buffer.position())));
+			mRecoveredCount++;
+		}
+
+		if (buffer.hasRemaining()) {
+			Log.w(TAG, "Truncating " + segment.getName() + " at corrupted record at " + buffer.position() + ".");
+			mTruncatedBytes += buffer.remaining();
+			RandomAccessFile file = new RandomAccessFile(segment, "rw");
+			try {
+				file.setLength(buffer.position());
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Check whether a complete record with valid CRC starts at current 
+	 * position of buffer. Position is not changed.
+	 */
+	private static boolean checkRecord(ByteBuffer buffer) {
+		if (!buffer.hasRemaining()) {
+			return false;
+		}
+
+		int start = buffer.position();
+		int size = getRecordSize(buffer.get(start));
+		if (size < 0 || buffer.remaining() < size) {
+			return false;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), start, size - 4);
+		return (int) crc.getValue() == buffer.getInt(start + size - 4);
+	}
+
+	private static int getRecordSize(int type) {
+		if (type == RECORD_STEP) {
+			return STEP_PAYLOAD_SIZE + RECORD_OVERHEAD;
+		} else if (type == RECORD_LOCATION) {
+			return LOCATION_PAYLOAD_SIZE + RECORD_OVERHEAD;
+		} else {
+			return -1;
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int read = 0;
+			while (read < data.length) {
+				int n = in.read(data, read, data.length - read);
+				if (n < 0) {
+					break;
+				}
+				read += n;
+			}
+
+			if (read < data.length) {
+				byte[] truncated = new byte[read];
+				System.arraycopy(data, 0, truncated, 0, read);
+				return truncated;
+			}
+
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private List<File> listSegments() {
+		List<File> segments = new ArrayList<File>();
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (getSegmentSequence(file) >= 0) {
+					segments.add(file);
+				}
+			}
+		}
+
+		Collections.sort(segments, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long lhsSequence = getSegmentSequence(lhs);
+				long rhsSequence = getSegmentSequence(rhs);
+				return lhsSequence < rhsSequence ? -1 : (lhsSequence == rhsSequence ? 0 : 1);
+			}
+
+		});
+
+		return segments;
+	}
+
+	private static long getSegmentSequence(File file) {
+		String name = file.getName();
+		if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+			try {
+				return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		return -1;
+	}
+
+	private File getSegmentFile(long sequence) {
+		return new File(mDirectory, String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+	}
+
+	private File getActiveSegment() {
+		synchronized (mSegments) {
+			return mSegments.get(mSegments.size() - 1);
+		}
+	}
+
+	@Override
+	public void onStep(float[] values) {
+		if (mOpen) {
+			appendStep(System.currentTimeMillis(), values);
+		}
+	}
+
+	@Override
+	public void onMovement(float[] values) {
+		// Not journaled
+	}
+
+	@Override
+	public void onServiceLevelChanged(int level) {
+		// Not journaled
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		if (mOpen) {
+			appendLocation(location.getTime(), location.getLatitude(), location.getLongitude(), location.getAccuracy());
+		}
+	}
+
+	private final class EventJournalWriterThread extends Thread {
+
+		private volatile boolean terminated;
+
+		private File segment;
+		private FileChannel channel;
+
+		private EventJournalWriterThread(File segment) {
+			super("EventJournalWriterThread");
+			this.terminated = false;
+			this.segment = segment;
+		}
+
+		private void terminate() {
+			synchronized (mLock) {
+				terminated = true;
+				mLock.notifyAll();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				channel = new FileOutputStream(segment, true).getChannel();
+
+				boolean done = false;
+				while (!done) {
+					ByteBuffer batch;
+					long batchCount;
+					synchronized (mLock) {
+						while (!isBatchReady()) {
+							long remaining = mBatchStartTime + mCommitInterval - System.currentTimeMillis();
+							mLock.wait(mBuffer.position() > 0 ? Math.max(remaining, 1) : 0);
+						}
+
+						done = terminated;
+						batch = mBuffer;
+						batchCount = mAppendedCount;
+						mBuffer = mSpare;
+						mSpare = null;
+						mSyncRequested = false;
+						// Appenders waiting for space can continue
+						mLock.notifyAll();
+					}
+
+					write(batch);
+
+					synchronized (mLock) {
+						batch.clear();
+						mSpare = batch;
+						mCommittedCount = batchCount;
+						mLock.notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+				synchronized (mLock) {
+					mWriteException = e;
+					mOpen = false;
+					mLock.notifyAll();
+				}
+			} catch (InterruptedException e) {
+				Log.w(TAG, e.getMessage(), e);
+			} finally {
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						Log.w(TAG, e.getMessage(), e);
+					}
+				}
+			}
+		}
+
+		// Must hold mLock
+		private boolean isBatchReady() {
+			int pending = mBuffer.position();
+			if (terminated) {
+				return true;
+			} else if (pending == 0) {
+				return false;
+			} else {
+				return mSyncRequested || pending >= BUFFER_SIZE / 2
+						|| System.currentTimeMillis() - mBatchStartTime >= mCommitInterval;
+			}
+		}
+
+		private void write(ByteBuffer batch) throws IOException {
+			if (batch.position() == 0) {
+				return;
+			}
+
+			batch.flip();
+			while (batch.hasRemaining()) {
+				channel.write(batch);
+			}
+			channel.force(false);
+
+			if (channel.size() >= mSegmentSize) {
+				rollOver();
+			}
+		}
+
+		private void rollOver() throws IOException {
+			channel.close();
+			channel = null;
+
+			synchronized (mSegments) {
+				segment = getSegmentFile(getSegmentSequence(segment) + 1);
+				mSegments.add(segment);
+
+				// Compaction by dropping the oldest segments
+				while (mSegments.size() > mMaxSegments) {
+					File oldest = mSegments.remove(0);
+					if (!oldest.delete()) {
+						Log.w(TAG, "Can't delete " + oldest.getName() + ".");
+					}
+				}
+			}
+
+			channel = new FileOutputStream(segment, true).getChannel();
+			Log.i(TAG, "Rolled over to " + segment.getName() + ".");
+		}
+
+	}
+
+}
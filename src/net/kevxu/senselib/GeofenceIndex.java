@@ -0,0 +1,573 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.kevxu.senselib.LocationService.LocationServiceListener;
+import net.kevxu.senselib.util.GeoUtils;
+import android.location.Location;
+
+/**
+ * Tracks which of many circular geofences the user is in, as locations are
+ * reported. Register it as listener of {@link LocationService}, and listen 
+ * to it for enter, exit and dwell transitions.
+ * <p>
+ * Fences are indexed in a grid of fixed size cells in latitude and 
+ * longitude, stored as sorted cell keys with offsets into a single array 
+ * of fence indices, and each fence is listed in every cell its bounding box
+ * overlaps. A location is only tested against fences of its cell, found by
+ * binary search, and against fences it's currently in. If a location stays
+ * in the same cell and moved less than the distance to the nearest fence 
+ * boundary found by the previous test, no fence is tested at all.
+ * <p>
+ * Index is built by {@link #build()}, or on the next location after fences
+ * are added.
+ * 
+ * @author Kaiwen Xu
+ */
+public class GeofenceIndex implements LocationServiceListener {
+
+	/**
+	 * User entered geofence.
+	 */
+	public static final int TRANSITION_ENTER = 0x1;
+
+	/**
+	 * User exited geofence.
+	 */
+	public static final int TRANSITION_EXIT = 0x2;
+
+	/**
+	 * User has been in geofence for dwell time.
+	 */
+	public static final int TRANSITION_DWELL = 0x4;
+
+	/**
+	 * Default cell size is 250 meters.
+	 */
+	public static final double DEFAULT_CELL_SIZE = 250.0;
+
+	/**
+	 * Default dwell time is 5 minutes.
+	 */
+	public static final long DEFAULT_DWELL_TIME = 5 * 60 * 1000L;
+
+	/**
+	 * Default hysteresis is 10 meters, so that GPS jitter at a boundary
+	 * doesn't cause repeated enter and exit.
+	 */
+	public static final float DEFAULT_HYSTERESIS = 10.0F;
+
+	private static final double METERS_PER_DEGREE = Math.toRadians(1.0) * GeoUtils.EARTH_RADIUS;
+
+	private static final int STATE_OUTSIDE = 0;
+	private static final int STATE_INSIDE = 1;
+	private static final int STATE_DWELL = 2;
+
+	private final double mCellDegrees;
+	private final long mDwellTime;
+	private final float mHysteresis;
+
+	private List<GeofenceListener> mGeofenceListeners;
+
+	// Fences
+	private int mSize;
+	private int[] mIds;
+	private double[] mLatitudes;
+	private double[] mLongitudes;
+	private float[] mRadii;
+
+	// Grid, fences of cell mCellKeys[i] are mCellFences[mCellStarts[i]] to
+	// mCellFences[mCellStarts[i + 1] - 1]
+	private boolean mBuilt;
+	private long[] mCellKeys;
+	private int[] mCellStarts;
+	private int[] mCellFences;
+
+	// Transition tracking
+	private int[] mStates;
+	private long[] mEnterTimes;
+	private int[] mActive;
+	private int mActiveSize;
+
+	private boolean mHasPosition;
+	private long mLastCell;
+	private double mLastLatitude;
+	private double mLastLongitude;
+	private double mMargin;
+
+	private final double[] mLocal;
+
+	public interface GeofenceListener {
+
+		/**
+		 * Called when user enters, exits or dwells in a geofence.
+		 * 
+		 * @param id id of geofence.
+		 * @param transition GeofenceIndex.TRANSITION_*.
+		 * @param time time of location causing transition.
+		 */
+		public void onGeofenceTransition(int id, int transition, long time);
+
+	}
+
+	public GeofenceIndex() {
+		this(DEFAULT_CELL_SIZE, DEFAULT_DWELL_TIME, DEFAULT_HYSTERESIS);
+	}
+
+	/**
+	 * @param cellSize size of grid cells in meters, which should be around 
+	 *            typical fence radius.
+	 * @param dwellTime time in fence before dwell transition in 
+	 *            milliseconds.
+	 * @param hysteresis distance beyond radius at which user exits fence in
+	 *            meters.
+	 */
+	public GeofenceIndex(double cellSize, long dwellTime, float hysteresis) {
+		if (cellSize <= 0.0 || dwellTime < 0 || hysteresis < 0.0F) {
+			throw new IllegalArgumentException("Invalid geofence index parameters.");
+		}
+
+		mCellDegrees = cellSize / METERS_PER_DEGREE;
+		mDwellTime = dwellTime;
+		mHysteresis = hysteresis;
+		mGeofenceListeners = new CopyOnWriteArrayList<GeofenceListener>();
+
+		mSize = 0;
+		mIds = new int[16];
+		mLatitudes = new double[16];
+		mLongitudes = new double[16];
+		mRadii = new float[16];
+		mBuilt = false;
+		mActive = new int[16];
+		mLocal = new double[2];
+	}
+
+	public GeofenceIndex addListener(GeofenceListener geofenceListener) {
+		if (geofenceListener != null) {
+			mGeofenceListeners.add(geofenceListener);
+
+			return this;
+		} else {
+			throw new NullPointerException("GeofenceListener is null.");
+		}
+	}
+
+	public GeofenceIndex removeListener(GeofenceListener geofenceListener) {
+		if (geofenceListener != null) {
+			mGeofenceListeners.remove(geofenceListener);
+
+			return this;
+		} else {
+			throw new NullPointerException("GeofenceListener is null.");
+		}
+	}
+
+	/**
+	 * Add a circular geofence. User is considered outside of it until the
+	 * next location.
+	 * 
+	 * @param id id of geofence, reported in transitions.
+	 * @param latitude latitude of center in degrees.
+	 * @param longitude longitude of center in degrees.
+	 * @param radius radius in meters.
+	 * @return GeofenceIndex itself.
+	 */
+	public synchronized GeofenceIndex addGeofence(int id, double latitude, double longitude, float radius) {
+		if (radius <= 0.0F) {
+			throw new IllegalArgumentException("Radius must be positive.");
+		}
+
+		if (mSize == mIds.length) {
+			int capacity = mSize * 2;
+			mIds = Arrays.copyOf(mIds, capacity);
+			mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+			mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+			mRadii = Arrays.copyOf(mRadii, capacity);
+		}
+
+		mIds[mSize] = id;
+		mLatitudes[mSize] = latitude;
+		mLongitudes[mSize] = longitude;
+		mRadii[mSize] = radius;
+		mSize++;
+		mBuilt = false;
+
+		return this;
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	private long getCellKey(long row, long column) {
+		return (row << 32) | (column & 0xFFFFFFFFL);
+	}
+
+	private long getCell(double latitude, double longitude) {
+		return getCellKey((long) Math.floor(latitude / mCellDegrees), (long) Math.floor(longitude / mCellDegrees));
+	}
+
+	/**
+	 * Build index of fences added so far. It's built on the next location 
+	 * otherwise, which takes long for many fences, so call it after adding 
+	 * fences and before listening to locations.
+	 */
+	public synchronized void build() {
+		// Cells overlapped by each fence's bounding box
+		int[] firstRows = new int[mSize];
+		int[] lastRows = new int[mSize];
+		int[] firstColumns = new int[mSize];
+		int[] lastColumns = new int[mSize];
+		int entries = 0;
+		for (int i = 0; i < mSize; i++) {
+			double latitudeRadius = mRadii[i] / METERS_PER_DEGREE;
+			double longitudeRadius = latitudeRadius / Math.max(Math.cos(Math.toRadians(mLatitudes[i])), 1e-6);
+			firstRows[i] = (int) Math.floor((mLatitudes[i] - latitudeRadius) / mCellDegrees);
+			lastRows[i] = (int) Math.floor((mLatitudes[i] + latitudeRadius) / mCellDegrees);
+			firstColumns[i] = (int) Math.floor((mLongitudes[i] - longitudeRadius) / mCellDegrees);
+			lastColumns[i] = (int) Math.floor((mLongitudes[i] + longitudeRadius) / mCellDegrees);
+			entries += (lastRows[i] - firstRows[i] + 1) * (lastColumns[i] - firstColumns[i] + 1);
+		}
+
+		long[] keys = new long[entries];
+		int n = 0;
+		for (int i = 0; i < mSize; i++) {
+			for (int row = firstRows[i]; row <= lastRows[i]; row++) {
+				for (int column = firstColumns[i]; column <= lastColumns[i]; column++) {
+					keys[n++] = getCellKey(row, column);
+				}
+			}
+		}
+
+		// Unique cells
+		long[] sortedKeys = keys.clone();
+		Arrays.sort(sortedKeys);
+		int cells = 0;
+		for (int i = 0; i < entries; i++) {
+			if (i == 0 || sortedKeys[i] != sortedKeys[i - 1]) {
+				sortedKeys[cells++] = sortedKeys[i];
+			}
+		}
+		mCellKeys = Arrays.copyOf(sortedKeys, cells);
+
+		// Entries sorted by cell, as rank of cell and fence index packed in a
+		// long
+		long[] packed = new long[entries];
+		n = 0;
+		for (int i = 0; i < mSize; i++) {
+			for (int row = firstRows[i]; row <= lastRows[i]; row++) {
+				for (int column = firstColumns[i]; column <= lastColumns[i]; column++) {
+					long rank = Arrays.binarySearch(mCellKeys, getCellKey(row, column));
+					packed[n++] = (rank << 32) | i;
+				}
+			}
+		}
+		Arrays.sort(packed);
+
+		mCellStarts = new int[cells + 1];
+		mCellFences = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			int rank = (int) (packed[i] >>> 32);
+			mCellFences[i] = (int) packed[i];
+			mCellStarts[rank + 1]++;
+		}
+		for (int i = 0; i < cells; i++) {
+			mCellStarts[i + 1] += mCellStarts[i];
+		}
+
+		// Fences added since last build start outside
+		int[] states = new int[mSize];
+		long[] enterTimes = new long[mSize];
+		if (mStates != null) {
+			System.arraycopy(mStates, 0, states, 0, mStates.length);
+			System.arraycopy(mEnterTimes, 0, enterTimes, 0, mEnterTimes.length);
+		}
+		mStates = states;
+		mEnterTimes = enterTimes;
+		mHasPosition = false;
+		mBuilt = true;
+	}
+
+	/**
+	 * Get distance from a fence's boundary, negative inside.
+	 */
+	private double getBoundaryDistance(int fence, double latitude, double longitude, double cosLatitude) {
+		double north = (mLatitudes[fence] - latitude) * METERS_PER_DEGREE;
+		double east = (mLongitudes[fence] - longitude) * METERS_PER_DEGREE * cosLatitude;
+
+		return Math.sqrt(north * north + east * east) - mRadii[fence];
+	}
+
+	/**
+	 * Update transitions with a new location.
+	 * 
+	 * @param latitude latitude in degrees.
+	 * @param longitude longitude in degrees.
+	 * @param time time of location in milliseconds.
+	 */
+	public synchronized void push(double latitude, double longitude, long time) {
+		if (!mBuilt) {
+			build();
+		}
+
+		long cell = getCell(latitude, longitude);
+		boolean tested = false;
+		if (mHasPosition && cell == mLastCell) {
+			GeoUtils.toLocal(mLastLatitude, mLastLongitude, latitude, longitude, mLocal);
+			double moved = Math.sqrt(mLocal[0] * mLocal[0] + mLocal[1] * mLocal[1]);
+			tested = moved >= mMargin;
+		} else {
+			tested = true;
+		}
+
+		if (tested) {
+			test(latitude, longitude, cell, time);
+		}
+
+		updateDwell(time);
+	}
+
+	private void test(double latitude, double longitude, long cell, long time) {
+		double cosLatitude = Math.cos(Math.toRadians(latitude));
+		double margin = Double.MAX_VALUE;
+
+		// Fences user is in are tested below
+		int index = Arrays.binarySearch(mCellKeys, cell);
+		if (index >= 0) {
+			for (int i = mCellStarts[index]; i < mCellStarts[index + 1]; i++) {
+				int fence = mCellFences[i];
+				if (mStates[fence] == STATE_OUTSIDE) {
+					double distance = getBoundaryDistance(fence, latitude, longitude, cosLatitude);
+					if (distance <= 0.0) {
+						enter(fence, time);
+					} else {
+						margin = Math.min(margin, distance);
+					}
+				}
+			}
+		}
+
+		for (int i = mActiveSize - 1; i >= 0; i--) {
+			double distance = getBoundaryDistance(mActive[i], latitude, longitude, cosLatitude);
+			if (distance > mHysteresis) {
+				exit(i, time);
+				// Fence can be entered again once boundary is crossed
+				margin = Math.min(margin, distance);
+			} else {
+				margin = Math.min(margin, mHysteresis - distance);
+			}
+		}
+
+		mHasPosition = true;
+		mLastCell = cell;
+		mLastLatitude = latitude;
+		mLastLongitude = longitude;
+		mMargin = margin;
+	}
+
+	private void enter(int fence, long time) {
+		mStates[fence] = STATE_INSIDE;
+		mEnterTimes[fence] = time;
+
+		if (mActiveSize == mActive.length) {
+			mActive = Arrays.copyOf(mActive, mActiveSize * 2);
+		}
+		mActive[mActiveSize++] = fence;
+
+		notifyTransition(mIds[fence], TRANSITION_ENTER, time);
+	}
+
+	private void exit(int activeIndex, long time) {
+		int fence = mActive[activeIndex];
+		mStates[fence] = STATE_OUTSIDE;
+		mActive[activeIndex] = mActive[--mActiveSize];
+
+		notifyTransition(mIds[fence], TRANSITION_EXIT, time);
+	}
+
+	private void updateDwell(long time) {
+		for (int i = 0; i < mActiveSize; i++) {
+			int fence = mActive[i];
+			if (mStates[fence] == STATE_INSIDE && time - mEnterTimes[fence] >= mDwellTime) {
+				mStates[fence] = STATE_DWELL;
+				notifyTransition(mIds[fence], TRANSITION_DWELL, time);
+			}
+		}
+	}
+
+	private void notifyTransition(int id, int transition, long time) {
+		for (GeofenceListener listener : mGeofenceListeners) {
+			listener.onGeofenceTransition(id, transition, time);
+		}
+	}
+
+	/**
+	 * Get number of geofences user is currently in.
+	 * 
+	 * @return number of geofences.
+	 */
+	public synchronized int getActiveCount() {
+		return mActiveSize;
+	}
+
+	@Override
+	public void onServiceLevelChanged(int level) {
+		// Fences are only updated by locations
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		push(location.getLatitude(), location.getLongitude(), location.getTime());
+	}
+
+	public static void main(String[] args) {
+		int fences = 100000;
+		int updates = 100000;
+		Random random = new Random(0);
+		double[] position = new double[2];
+
+		// Fences of 50 to 300 meters within 20 km x 20 km
+		GeofenceIndex index = new GeofenceIndex();
+		double[] latitudes = new double[fences];
+		double[] longitudes = new double[fences];
+		float[] radii = new float[fences];
+		for (int i = 0; i < fences; i++) {
+			GeoUtils.offset(47.0, 8.0, (random.nextDouble() - 0.5) * 20000.0, (random.nextDouble() - 0.5) * 20000.0, position);
+			latitudes[i] = position[0];
+			longitudes[i] = position[1];
+			radii[i] = 50.0F + random.nextFloat() * 250.0F;
+			index.addGeofence(i, latitudes[i], longitudes[i], radii[i]);
+		}
+
+		final int[] transitions = new int[1];
+		index.addListener(new GeofenceListener() {
+
+			@Override
+			public void onGeofenceTransition(int id, int transition, long time) {
+				transitions[0]++;
+			}
+
+		});
+
+		long start = System.nanoTime();
+		index.build();
+		System.out.printf("Built index of %d fences in %.1f ms%n", fences, (System.nanoTime() - start) / 1e6);
+
+		// Walk at 1.4 m/s with 1 Hz updates, turning randomly
+		double[] walk = new double[updates * 2];
+		double north = 0.0;
+		double east = 0.0;
+		double heading = 0.0;
+		for (int i = 0; i < updates; i++) {
+			heading += random.nextGaussian() * 0.1;
+			north += 1.4 * Math.cos(heading);
+			east += 1.4 * Math.sin(heading);
+			GeoUtils.offset(47.0, 8.0, north, east, position);
+			walk[i * 2] = position[0];
+			walk[i * 2 + 1] = position[1];
+		}
+
+		start = System.nanoTime();
+		for (int i = 0; i < updates; i++) {
+			index.push(walk[i * 2], walk[i * 2 + 1], i * 1000L);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("Indexed: %.0f ns/update, %d transitions, in %d fences at end%n",
+				(double) elapsed / updates, transitions[0], index.getActiveCount());
+
+		// Linear scan for comparison
+		int linearUpdates = 1000;
+		int inside = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < linearUpdates; i++) {
+			double cosLatitude = Math.cos(Math.toRadians(walk[i * 2]));
+			for (int j = 0; j < fences; j++) {
+				double dn = (latitudes[j] - walk[i * 2]) * METERS_PER_DEGREE;
+				double de = (longitudes[j] - walk[i * 2 + 1]) * METERS_PER_DEGREE * cosLatitude;
+				if (Math.sqrt(dn * dn + de * de) <= radii[j]) {
+					inside++;
+				}
+			}
+		}
+		elapsed = System.nanoTime() - start;
+		System.out.printf("Linear scan: %.0f ns/update (%d)%n", (double) elapsed / linearUpdates, inside);
+
+		// Check enters and exits against brute force with the same 
+		// hysteresis, over sparser fences, so that margins are wide
+		final int checkedUpdates = 50000;
+		final int fenceCount = fences / 10;
+		final Set<Long> indexedTransitions = new HashSet<Long>();
+		GeofenceIndex checkedIndex = new GeofenceIndex();
+		for (int i = 0; i < fenceCount; i++) {
+			checkedIndex.addGeofence(i, latitudes[i], longitudes[i], radii[i]);
+		}
+		checkedIndex.addListener(new GeofenceListener() {
+
+			@Override
+			public void onGeofenceTransition(int id, int transition, long time) {
+				if (transition != TRANSITION_DWELL) {
+					indexedTransitions.add(((time / 1000L) * fenceCount + id) * 2 + (transition == TRANSITION_EXIT ? 1 : 0));
+				}
+			}
+
+		});
+		checkedIndex.build();
+
+		Set<Long> bruteForceTransitions = new HashSet<Long>();
+		boolean[] states = new boolean[fenceCount];
+		north = 0.0;
+		east = 0.0;
+		for (int i = 0; i < checkedUpdates; i++) {
+			heading += random.nextGaussian() * 0.1;
+			north += 1.4 * Math.cos(heading);
+			east += 1.4 * Math.sin(heading);
+			GeoUtils.offset(47.0, 8.0, north, east, position);
+			checkedIndex.push(position[0], position[1], i * 1000L);
+
+			double cosLatitude = Math.cos(Math.toRadians(position[0]));
+			for (int j = 0; j < fenceCount; j++) {
+				double dn = (latitudes[j] - position[0]) * METERS_PER_DEGREE;
+				double de = (longitudes[j] - position[1]) * METERS_PER_DEGREE * cosLatitude;
+				double distance = Math.sqrt(dn * dn + de * de) - radii[j];
+				if (!states[j] && distance <= 0.0) {
+					states[j] = true;
+					bruteForceTransitions.add(((long) i * fenceCount + j) * 2);
+				} else if (states[j] && distance > DEFAULT_HYSTERESIS) {
+					states[j] = false;
+					bruteForceTransitions.add(((long) i * fenceCount + j) * 2 + 1);
+				}
+			}
+		}
+		System.out.printf("Brute force: %d transitions in %d updates, %s%n", bruteForceTransitions.size(), checkedUpdates,
+				bruteForceTransitions.equals(indexedTransitions) ? "matched" : "mismatched");
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+/**
+ * Default step detection algorithm. Acceleration in gravity direction is
+ * calculated for every sample, and a step is detected when it crosses limit
+ * in one direction and then crosses limit in the opposite direction.
+ * 
+ * @author Kaiwen Xu
+ */
+public class LimitCrossingStepDetectionAlgorithm implements StepDetectionAlgorithm {
+
+	/**
+	 * Default limit is 0.87 m/s^2.
+	 */
+	public static final float DEFAULT_LIMIT = 0.87F;
+
+	private final float mLimit;
+
+	private boolean mReadyForStep;
+	private float mPreviousForReadyValue;
+
+	public LimitCrossingStepDetectionAlgorithm() {
+		this(DEFAULT_LIMIT);
+	}
+
+	public LimitCrossingStepDetectionAlgorithm(float limit) {
+		mLimit = limit;
+
+		reset();
+	}
+
+	/**
+	 * Get the limit acceleration in gravity direction has to cross.
+	 * 
+	 * @return limit in m/s^2.
+	 */
+	public float getLimit() {
+		return mLimit;
+	}
+
+	@Override
+	public boolean detectStep(float[] linearAccel, float[] gravity) {
+		boolean step = false;
+
+		float accelInGravityDirection = getAccelInGravityDirection(linearAccel, gravity);
+
+		if (!mReadyForStep) {
+			if (Math.abs(accelInGravityDirection) > mLimit) {
+				mPreviousForReadyValue = accelInGravityDirection;
+				mReadyForStep = true;
+			}
+		} else {
+			if ((mPreviousForReadyValue < 0 && accelInGravityDirection > mLimit)
+					|| (mPreviousForReadyValue > 0 && accelInGravityDirection < -mLimit)) {
+				step = true;
+				mReadyForStep = false;
+			}
+		}
+
+		return step;
+	}
+
+	@Override
+	public void reset() {
+		mReadyForStep = false;
+		mPreviousForReadyValue = 0.0F;
+	}
+
+	/**
+	 * Project linear acceleration onto gravity direction.
+	 * 
+	 * @param linearAccel linear acceleration.
+	 * @param gravity gravity.
+	 * @return acceleration in gravity direction.
+	 */
+	static float getAccelInGravityDirection(float[] linearAccel, float[] gravity) {
+		// float gravityScalar = SensorManager.GRAVITY_EARTH;
+		float gravityScalar = (float) Math.sqrt(gravity[0] * gravity[0]
+				+ gravity[1] * gravity[1] + gravity[2] * gravity[2]);
+		float dotProduct = linearAccel[0] * gravity[0] + linearAccel[1]
+				* gravity[1] + linearAccel[2] * gravity[2];
+
+		float aigd = (float) (dotProduct / gravityScalar);
+
+		return aigd;
+	}
+
+	@Override
+	public String toString() {
+		return "LimitCrossingStepDetectionAlgorithm[limit=" + mLimit + "]";
+	}
+
+}
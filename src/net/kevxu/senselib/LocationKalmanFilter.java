@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+/**
+ * Constant velocity Kalman filter for pedestrian position. State is position
+ * and velocity in a local tangent plane, [north, east, velocity north,
+ * velocity east], in meters and meters per second. Position is measured by
+ * GPS fixes, and velocity is measured from step events and heading.
+ * <p>
+ * All the matrices are preallocated primitive arrays stored in row-major
+ * order, so none of predict() and update*() allocate memory. This class is
+ * NOT thread-safe.
+ * 
+ * @author Kaiwen Xu
+ */
+public class LocationKalmanFilter {
+
+	private static final int N = 4;
+
+	private static final int NORTH = 0;
+	private static final int EAST = 1;
+	private static final int VELOCITY_NORTH = 2;
+	private static final int VELOCITY_EAST = 3;
+
+	/**
+	 * Default acceleration noise spectral density for walking, in
+	 * (m/s^2)^2 per Hz.
+	 */
+	public static final double DEFAULT_ACCELERATION_NOISE = 1.0;
+
+	// Initial velocity uncertainty in m/s
+	private static final double INITIAL_VELOCITY_SIGMA = 2.0;
+
+	private final double mAccelerationNoise;
+
+	private boolean mInitialized;
+	private double[] mX;
+	private double[] mP;
+
+	// Temporary storage
+	private double[] mTmp;
+	private double[] mK;
+
+	public LocationKalmanFilter() {
+		this(DEFAULT_ACCELERATION_NOISE);
+	}
+
+	public LocationKalmanFilter(double accelerationNoise) {
+		mAccelerationNoise = accelerationNoise;
+
+		mX = new double[N];
+		mP = new double[N * N];
+		mTmp = new double[N * N];
+		mK = new double[N * 2];
+		mInitialized = false;
+	}
+
+	/**
+	 * Initialize the filter at given position with zero velocity.
+	 * 
+	 * @param north position towards north in meters.
+	 * @param east position towards east in meters.
+	 * @param sigma standard deviation of position in meters.
+	 */
+	public void init(double north, double east, double sigma) {
+		for (int i = 0; i < N * N; i++) {
+			mP[i] = 0.0;
+		}
+
+		mX[NORTH] = north;
+		mX[EAST] = east;
+		mX[VELOCITY_NORTH] = 0.0;
+		mX[VELOCITY_EAST] = 0.0;
+
+		mP[NORTH * N + NORTH] = sigma * sigma;
+		mP[EAST * N + EAST] = sigma * sigma;
+		mP[VELOCITY_NORTH * N + VELOCITY_NORTH] = INITIAL_VELOCITY_SIGMA * INITIAL_VELOCITY_SIGMA;
+		mP[VELOCITY_EAST * N + VELOCITY_EAST] = INITIAL_VELOCITY_SIGMA * INITIAL_VELOCITY_SIGMA;
+
+		mInitialized = true;
+	}
+
+	public boolean isInitialized() {
+		return mInitialized;
+	}
+
+	public void reset() {
+		mInitialized = false;
+	}
+
+	/**
+	 * Move the origin of local tangent plane, so that position stays small
+	 * and well conditioned. Covariance is not affected.
+	 * 
+	 * @param north origin shift towards north in meters.
+	 * @param east origin shift towards east in meters.
+	 */
+	public void shiftOrigin(double north, double east) {
+		mX[NORTH] -= north;
+		mX[EAST] -= east;
+	}
+
+	/**
+	 * Propagate state and covariance forward in time.
+	 * 
+	 * @param dt elapsed time in seconds.
+	 */
+	public void predict(double dt) {
+		if (!mInitialized || dt <= 0.0) {
+			return;
+		}
+
+		// x = F * x
+		mX[NORTH] += dt * mX[VELOCITY_NORTH];
+		mX[EAST] += dt * mX[VELOCITY_EAST];
+
+		// P = F * P * F', where F = [I dt*I; 0 I]
+		// tmp = F * P
+		for (int c = 0; c < N; c++) {
+			mTmp[NORTH * N + c] = mP[NORTH * N + c] + dt * mP[VELOCITY_NORTH * N + c];
+			mTmp[EAST * N + c] = mP[EAST * N + c] + dt * mP[VELOCITY_EAST * N + c];
+			mTmp[VELOCITY_NORTH * N + c] = mP[VELOCITY_NORTH * N + c];
+			mTmp[VELOCITY_EAST * N + c] = mP[VELOCITY_EAST * N + c];
+		}
+		// P = tmp * F'
+		for (int r = 0; r < N; r++) {
+			mP[r * N + NORTH] = mTmp[r * N + NORTH] + dt * mTmp[r * N + VELOCITY_NORTH];
+			mP[r * N + EAST] = mTmp[r * N + EAST] + dt * mTmp[r * N + VELOCITY_EAST];
+			mP[r * N + VELOCITY_NORTH] = mTmp[r * N + VELOCITY_NORTH];
+			mP[r * N + VELOCITY_EAST] = mTmp[r * N + VELOCITY_EAST];
+		}
+
+		// P += Q, white noise acceleration model
+		double q = mAccelerationNoise;
+		double dt2 = dt * dt;
+		double qPosition = q * dt2 * dt / 3.0;
+		double qCross = q * dt2 / 2.0;
+		double qVelocity = q * dt;
+		mP[NORTH * N + NORTH] += qPosition;
+		mP[EAST * N + EAST] += qPosition;
+		mP[NORTH * N + VELOCITY_NORTH] += qCross;
+		mP[VELOCITY_NORTH * N + NORTH] += qCross;
+		mP[EAST * N + VELOCITY_EAST] += qCross;
+		mP[VELOCITY_EAST * N + EAST] += qCross;
+		mP[VELOCITY_NORTH * N + VELOCITY_NORTH] += qVelocity;
+		mP[VELOCITY_EAST * N + VELOCITY_EAST] += qVelocity;
+	}
+
+	/**
+	 * Correct with a position measurement, e.g. GPS fix.
+	 * 
+	 * @param north measured position towards north in meters.
+	 * @param east measured position towards east in meters.
+	 * @param sigma standard deviation of measurement in meters.
+	 */
+	public void updatePosition(double north, double east, double sigma) {
+		if (!mInitialized) {
+			init(north, east, sigma);
+		} else {
+			update(NORTH, EAST, north, east, sigma * sigma);
+		}
+	}
+
+	/**
+	 * Correct with a velocity measurement, e.g. step length over step
+	 * interval along heading.
+	 * 
+	 * @param velocityNorth measured velocity towards north in m/s.
+	 * @param velocityEast measured velocity towards east in m/s.
+	 * @param sigma standard deviation of measurement in m/s.
+	 */
+	public void updateVelocity(double velocityNorth, double velocityEast, double sigma) {
+		if (mInitialized) {
+			update(VELOCITY_NORTH, VELOCITY_EAST, velocityNorth, velocityEast, sigma * sigma);
+		}
+	}
+
+	/**
+	 * Measurement update where two state components a and b are measured
+	 * directly with independent noise of variance r.
+	 */
+	private void update(int a, int b, double za, double zb, double r) {
+		// S = H * P * H' + R
+		double s00 = mP[a * N + a] + r;
+		double s01 = mP[a * N + b];
+		double s10 = mP[b * N + a];
+		double s11 = mP[b * N + b] + r;
+		double det = s00 * s11 - s01 * s10;
+		if (det == 0.0) {
+			return;
+		}
+		double i00 = s11 / det;
+		double i01 = -s01 / det;
+		double i10 = -s10 / det;
+		double i11 = s00 / det;
+
+		// K = P * H' * inv(S)
+		for (int row = 0; row < N; row++) {
+			double pa = mP[row * N + a];
+			double pb = mP[row * N + b];
+			mK[row * 2] = pa * i00 + pb * i10;
+			mK[row * 2 + 1] = pa * i01 + pb * i11;
+		}
+
+		// x = x + K * (z - H * x)
+		double ya = za - mX[a];
+		double yb = zb - mX[b];
+		for (int row = 0; row < N; row++) {
+			mX[row] += mK[row * 2] * ya + mK[row * 2 + 1] * yb;
+		}
+
+		// P = (I - K * H) * P
+		for (int c = 0; c < N; c++) {
+			mTmp[c] = mP[a * N + c];
+			mTmp[N + c] = mP[b * N + c];
+		}
+		for (int row = 0; row < N; row++) {
+			for (int c = 0; c < N; c++) {
+				mP[row * N + c] -= mK[row * 2] * mTmp[c] + mK[row * 2 + 1] * mTmp[N + c];
+			}
+		}
+	}
+
+	public double getNorth() {
+		return mX[NORTH];
+	}
+
+	public double getEast() {
+		return mX[EAST];
+	}
+
+	public double getVelocityNorth() {
+		return mX[VELOCITY_NORTH];
+	}
+
+	public double getVelocityEast() {
+		return mX[VELOCITY_EAST];
+	}
+
+	/**
+	 * Get position uncertainty as the root mean square of north and east
+	 * standard deviations.
+	 * 
+	 * @return position uncertainty in meters.
+	 */
+	public double getPositionSigma() {
+		return Math.sqrt((mP[NORTH * N + NORTH] + mP[EAST * N + EAST]) / 2.0);
+	}
+
+	/**
+	 * Copy covariance matrix into P.
+	 * 
+	 * @param P array of double with length 16, row-major.
+	 */
+	public void getCovariance(double[] P) {
+		System.arraycopy(mP, 0, P, 0, N * N);
+	}
+
+	public static void main(String[] args) {
+		final int rounds = 1000000;
+		LocationKalmanFilter filter = new LocationKalmanFilter();
+		filter.init(0.0, 0.0, 10.0);
+
+		// Warm up
+		for (int i = 0; i < rounds; i++) {
+			runRound(filter, i);
+		}
+
+		filter.init(0.0, 0.0, 10.0);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			runRound(filter, i);
+		}
+		long timeNanos = System.nanoTime() - startTime;
+
+		// Each round has one predict and one update
+		System.out.println("Rounds: " + rounds);
+		System.out.println("Time: " + timeNanos / 1000000 + " ms");
+		System.out.println("Updates per second: " + (long) (2.0 * rounds / (timeNanos / 1e9)));
+		System.out.println("Position: " + filter.getNorth() + ", " + filter.getEast()
+				+ " +/- " + filter.getPositionSigma());
+	}
+
+	private static void runRound(LocationKalmanFilter filter, int i) {
+		// Walking north-east at 1.4 m/s, 20 Hz, GPS every second
+		double t = i * 0.05;
+		filter.predict(0.05);
+		if (i % 20 == 0) {
+			filter.updatePosition(t, t, 8.0);
+		} else {
+			filter.updateVelocity(1.0, 1.0, 0.3);
+		}
+	}
+
+}
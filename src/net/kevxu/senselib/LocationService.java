@@ -23,16 +23,21 @@
 
 package net.kevxu.senselib;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import net.kevxu.senselib.OrientationService.OrientationServiceListener;
 import net.kevxu.senselib.StepDetector.StepListener;
+import net.kevxu.senselib.util.GeoUtils;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.GeomagneticField;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -41,7 +46,7 @@ import android.util.Log;
  * 
  * @author Kaiwen Xu
  */
-public class LocationService extends SensorService implements LocationListener, StepListener {
+public class LocationService extends SensorService implements LocationListener, StepListener, OrientationServiceListener {
 
 	private static final String TAG = "LocationService";
 
@@ -72,6 +77,56 @@ public class LocationService extends SensorService implements LocationListener,
 	 */
 	public static int LEVEL_GPS_ENABLED_AVAILABLE = 0x9;
 	
+	/**
+	 * GPS updates requested at full rate.
+	 */
+	public static final int GPS_MODE_ACTIVE = 0x0;
+	
+	/**
+	 * GPS updates requested at stretched interval, since walked distance is
+	 * still within current fix's accuracy.
+	 */
+	public static final int GPS_MODE_RELAXED = 0x1;
+	
+	/**
+	 * GPS updates paused, since user is stationary.
+	 */
+	public static final int GPS_MODE_PAUSED = 0x2;
+	
+	/**
+	 * Location is replaced by GPS fix once walked distance exceeds current
+	 * fix's accuracy.
+	 */
+	public static final int FUSION_MODE_STEP_THRESHOLD = 0x0;
+	
+	/**
+	 * Location is advanced on every step using heading and step length, and
+	 * snapped back to GPS fix whenever it's at least as accurate.
+	 */
+	public static final int FUSION_MODE_DEAD_RECKONING = 0x1;
+	
+	/**
+	 * Location is estimated by a constant velocity Kalman filter, which
+	 * combines GPS fixes with velocity measured from steps and heading.
+	 */
+	public static final int FUSION_MODE_KALMAN = 0x2;
+	
+	/**
+	 * Provider name of locations produced by dead reckoning.
+	 */
+	public static final String PROVIDER_DEAD_RECKONING = "dead_reckoning";
+	
+	/**
+	 * Provider name of locations produced by Kalman filter.
+	 */
+	public static final String PROVIDER_KALMAN = "kalman";
+	
+	/**
+	 * Provider name of location restored from previous run, reported on 
+	 * start until replaced by the first acceptable fix.
+	 */
+	public static final String PROVIDER_RESTORED = "restored";
+	
 	// Average step distance for human (in meters)
 	private static final float CONSTANT_AVERAGE_STEP_DISTANCE = 0.7874F;
 	
@@ -81,9 +136,49 @@ public class LocationService extends SensorService implements LocationListener,
 	private static final int GPS_UPDATE_MULTIPLIER = 1;
 	private static final long GPS_UPDATE_MIN_TIME = CONSTANT_AVERGAE_STEP_TIME * GPS_UPDATE_MULTIPLIER;
 	private static final float GPS_UPDATE_MIN_DISTANCE = CONSTANT_AVERAGE_STEP_DISTANCE * GPS_UPDATE_MULTIPLIER;
+	
+	private static final int GPS_RELAXED_MULTIPLIER = 10;
+	private static final long GPS_RELAXED_MIN_TIME = CONSTANT_AVERGAE_STEP_TIME * GPS_RELAXED_MULTIPLIER;
+	private static final float GPS_RELAXED_MIN_DISTANCE = CONSTANT_AVERAGE_STEP_DISTANCE * GPS_RELAXED_MULTIPLIER;
+	
+	// GPS is paused if no step is taken for this long (in milliseconds)
+	private static final long GPS_IDLE_TIME = 10000L;
+	
+	// Uncertainty added per meter walked in dead reckoning
+	private static final float DEAD_RECKONING_ERROR_RATIO = 0.1F;
+	
+	// GPS is re-armed when dead reckoning uncertainty exceeds this (in meters)
+	private static final float DEAD_RECKONING_TOLERANCE = 30.0F;
+	
+	// Standard deviation of velocity measured from steps (in m/s)
+	private static final double KALMAN_STEP_VELOCITY_SIGMA = 0.3;
+	
+	// Standard deviation of zero velocity while not walking (in m/s)
+	private static final double KALMAN_STILL_VELOCITY_SIGMA = 0.1;
+	
+	// User is considered not walking if no step is taken for this long (in 
+	// milliseconds)
+	private static final long KALMAN_STILL_TIME = 2000L;
+	
+	// Local tangent plane is re-centered when position is this far from its
+	// origin (in meters)
+	private static final double KALMAN_RECENTER_DISTANCE = 1000.0;
+	
+	// Restored fix older than this is discarded (in milliseconds)
+	private static final long RESTORED_FIX_MAX_AGE = 10 * 60 * 1000L;
+	
+	// Speed user may have moved at since restored fix, used to grow its 
+	// accuracy (in meters per second)
+	private static final float RESTORED_FIX_DRIFT_SPEED = 1.4F;
+	
+	private static final String KEY_FIX_LATITUDE = "fixLatitude";
+	private static final String KEY_FIX_LONGITUDE = "fixLongitude";
+	private static final String KEY_FIX_ACCURACY = "fixAccuracy";
+	private static final String KEY_FIX_TIME = "fixTime";
 
 	private Context mContext;
 	private LocationManager mLocationManager;
+	private SensorHub mSensorHub;
 	private List<LocationServiceListener> mLocationServiceListeners;
 
 	private StepDetector mStepDetector;
@@ -92,6 +187,18 @@ public class LocationService extends SensorService implements LocationListener,
 
 	private volatile int mServiceLevel;
 
+	private volatile boolean mAdaptiveGPSEnabled;
+	private int mGPSMode;
+	private boolean mPaused;
+
+	private volatile int mFusionMode;
+	private volatile float mStepLength;
+
+	private volatile int mActivity;
+	
+	private Location mLastFix;
+	private Location mRestoredFix;
+
 	public interface LocationServiceListener {
 
 		/**
@@ -112,15 +219,16 @@ public class LocationService extends SensorService implements LocationListener,
 
 	}
 
-	protected LocationService(Context context, StepDetector stepDetector) throws SensorNotAvailableException {
-		this(context, stepDetector, null);
+	protected LocationService(Context context, SensorHub sensorHub, StepDetector stepDetector) throws SensorNotAvailableException {
+		this(context, sensorHub, stepDetector, null);
 	}
 
-	protected LocationService(Context context, StepDetector stepDetector, LocationServiceListener locationServiceListener) throws SensorNotAvailableException {
+	protected LocationService(Context context, SensorHub sensorHub, StepDetector stepDetector, LocationServiceListener locationServiceListener) throws SensorNotAvailableException {
 		mContext = context;
 		mLocationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+		mSensorHub = sensorHub;
 
-		mLocationServiceListeners = new LinkedList<LocationServiceListener>();
+		mLocationServiceListeners = new CopyOnWriteArrayList<LocationServiceListener>();
 
 		if (locationServiceListener != null) {
 			mLocationServiceListeners.add(locationServiceListener);
@@ -128,12 +236,26 @@ public class LocationService extends SensorService implements LocationListener,
 
 		mStepDetector = stepDetector;
 		mStepDetector.addListener(this);
+		mStepDetector.getOrientationService().addListener(this);
+
+		mAdaptiveGPSEnabled = true;
+		mGPSMode = GPS_MODE_PAUSED;
+
+		mFusionMode = FUSION_MODE_STEP_THRESHOLD;
+		mStepLength = CONSTANT_AVERAGE_STEP_DISTANCE;
+
+		mActivity = ActivityRecognitionService.ACTIVITY_UNKNOWN;
 	}
 
 	@Override
 	protected void start() {
 		if (mLocationServiceFusionThread == null) {
 			mLocationServiceFusionThread = new LocationServiceFusionThread();
+			mLocationServiceFusionThread.setCpuAccounting(getCpuAccounting());
+			if (mRestoredFix != null) {
+				mLocationServiceFusionThread.restoreFix(mRestoredFix);
+				mRestoredFix = null;
+			}
 			mLocationServiceFusionThread.start();
 			Log.i(TAG, "LocationServiceFusionThread started.");
 		}
@@ -142,9 +264,7 @@ public class LocationService extends SensorService implements LocationListener,
 			mLocationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
 		}
 
-		mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 
-				GPS_UPDATE_MIN_TIME, GPS_UPDATE_MIN_DISTANCE, this);
-		Log.i(TAG, "GPS update registered.");
+		setPaused(false);
 
 		Log.i(TAG, "LocationService started.");
 	}
@@ -160,28 +280,265 @@ public class LocationService extends SensorService implements LocationListener,
 				Log.w(TAG, e.getMessage(), e);
 			}
 			Log.i(TAG, "LocationServiceFusionThread stoppped.");
+			
+			// Restored fix which was never confirmed isn't kept, otherwise
+			// its age would be lost
+			if (mLocationServiceFusionThread.initialFix && mLocationServiceFusionThread.locationFix != null) {
+				mLastFix = new Location(mLocationServiceFusionThread.locationFix);
+			}
 			mLocationServiceFusionThread = null;
 		}
 
-		mLocationManager.removeUpdates(this);
-		Log.i(TAG, "GPS update unregistered.");
+		setGPSMode(GPS_MODE_PAUSED);
 
 		Log.i(TAG, "LocationService stopped.");
 	}
 
+	@Override
+	protected void pause() {
+		LocationServiceFusionThread locationServiceFusionThread = mLocationServiceFusionThread;
+		if (locationServiceFusionThread == null) {
+			return;
+		}
+
+		// Fusion thread keeps its last fix, so that it's still used when
+		// resumed before GPS re-acquires.
+		locationServiceFusionThread.park();
+		setPaused(true);
+		Log.i(TAG, "LocationService paused.");
+	}
+
+	@Override
+	protected void resume() {
+		LocationServiceFusionThread locationServiceFusionThread = mLocationServiceFusionThread;
+		if (locationServiceFusionThread == null) {
+			start();
+			return;
+		}
+
+		setPaused(false);
+		locationServiceFusionThread.unpark();
+		Log.i(TAG, "LocationService resumed.");
+	}
+
+	/**
+	 * Pause or resume GPS. Fusion thread may still be finishing a round
+	 * after being parked, so GPS mode it chooses is ignored while paused.
+	 * 
+	 * @param paused true to pause GPS.
+	 */
+	private synchronized void setPaused(boolean paused) {
+		mPaused = paused;
+		setGPSMode(paused ? GPS_MODE_PAUSED : GPS_MODE_ACTIVE);
+	}
+
+	/**
+	 * Re-request GPS updates if mode changes. Only GPS_MODE_PAUSED is 
+	 * accepted while service is paused.
+	 * 
+	 * @param gpsMode LocationService.GPS_MODE_*.
+	 */
+	private synchronized void setGPSMode(int gpsMode) {
+		if (gpsMode == mGPSMode || (mPaused && gpsMode != GPS_MODE_PAUSED)) {
+			return;
+		}
+
+		mLocationManager.removeUpdates(this);
+
+		if (gpsMode == GPS_MODE_ACTIVE) {
+			mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 
+					GPS_UPDATE_MIN_TIME, GPS_UPDATE_MIN_DISTANCE, this, mSensorHub.getLooper());
+			Log.i(TAG, "GPS update registered.");
+		} else if (gpsMode == GPS_MODE_RELAXED) {
+			mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 
+					GPS_RELAXED_MIN_TIME, GPS_RELAXED_MIN_DISTANCE, this, mSensorHub.getLooper());
+			Log.i(TAG, "GPS update registered with relaxed interval.");
+		} else {
+			Log.i(TAG, "GPS update unregistered.");
+		}
+
+		mGPSMode = gpsMode;
+	}
+
+	/**
+	 * Get current GPS mode.
+	 * 
+	 * @return LocationService.GPS_MODE_*.
+	 */
+	public synchronized int getGPSMode() {
+		return mGPSMode;
+	}
+
+	/**
+	 * Enable or disable adaptive GPS scheduling. When enabled, GPS is paused
+	 * while user is stationary, and its interval is stretched while walked
+	 * distance is within current fix's accuracy. GPS is re-armed to full rate
+	 * once walked distance exceeds the accuracy. It's enabled by default.
+	 * 
+	 * @param enabled true to enable adaptive GPS scheduling.
+	 * @return LocationService itself.
+	 */
+	public LocationService setAdaptiveGPSEnabled(boolean enabled) {
+		mAdaptiveGPSEnabled = enabled;
+
+		if (!enabled && mLocationServiceFusionThread != null) {
+			setGPSMode(GPS_MODE_ACTIVE);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Check whether adaptive GPS scheduling is enabled.
+	 * 
+	 * @return true if enabled, false otherwise.
+	 */
+	public boolean isAdaptiveGPSEnabled() {
+		return mAdaptiveGPSEnabled;
+	}
+
+	/**
+	 * Set how GPS fixes and steps are fused into reported location.
+	 * 
+	 * @param fusionMode LocationService.FUSION_MODE_*.
+	 * @return LocationService itself.
+	 */
+	public LocationService setFusionMode(int fusionMode) {
+		mFusionMode = fusionMode;
+
+		return this;
+	}
+
+	/**
+	 * Get how GPS fixes and steps are fused into reported location. Default
+	 * is LocationService.FUSION_MODE_STEP_THRESHOLD.
+	 * 
+	 * @return LocationService.FUSION_MODE_*.
+	 */
+	public int getFusionMode() {
+		return mFusionMode;
+	}
+
+	/**
+	 * Set user's step length, used for converting steps into distance.
+	 * 
+	 * @param stepLength step length in meters.
+	 * @return LocationService itself.
+	 */
+	public LocationService setStepLength(float stepLength) {
+		mStepLength = stepLength;
+
+		return this;
+	}
+
+	/**
+	 * Get user's step length. Default is average human step length, which is
+	 * 0.7874 meters.
+	 * 
+	 * @return step length in meters.
+	 */
+	public float getStepLength() {
+		return mStepLength;
+	}
+
+	@Override
+	protected void onSaveState(SharedPreferences.Editor editor) {
+		Location lastFix = mLastFix;
+		if (lastFix == null || !lastFix.hasAccuracy()) {
+			// Keep fix saved by previous run, which still has its own time
+			return;
+		}
+		
+		editor.putLong(getStateKey(KEY_FIX_LATITUDE), Double.doubleToLongBits(lastFix.getLatitude()));
+		editor.putLong(getStateKey(KEY_FIX_LONGITUDE), Double.doubleToLongBits(lastFix.getLongitude()));
+		editor.putFloat(getStateKey(KEY_FIX_ACCURACY), lastFix.getAccuracy());
+		editor.putLong(getStateKey(KEY_FIX_TIME), lastFix.getTime());
+	}
+	
+	@Override
+	protected void onRestoreState(SharedPreferences preferences, long age) {
+		if (!preferences.contains(getStateKey(KEY_FIX_TIME))) {
+			return;
+		}
+		
+		// Fix may be older than the state if it was saved again without a
+		// new fix
+		long fixAge = System.currentTimeMillis() - preferences.getLong(getStateKey(KEY_FIX_TIME), 0);
+		if (fixAge < 0 || fixAge > RESTORED_FIX_MAX_AGE) {
+			Log.i(TAG, "Saved fix is stale.");
+			return;
+		}
+		
+		Location restoredFix = new Location(PROVIDER_RESTORED);
+		restoredFix.setLatitude(Double.longBitsToDouble(preferences.getLong(getStateKey(KEY_FIX_LATITUDE), 0)));
+		restoredFix.setLongitude(Double.longBitsToDouble(preferences.getLong(getStateKey(KEY_FIX_LONGITUDE), 0)));
+		restoredFix.setAccuracy(preferences.getFloat(getStateKey(KEY_FIX_ACCURACY), 0.0F)
+				+ fixAge / 1000.0F * RESTORED_FIX_DRIFT_SPEED);
+		restoredFix.setTime(preferences.getLong(getStateKey(KEY_FIX_TIME), 0));
+		mRestoredFix = restoredFix;
+		Log.i(TAG, "Restored fix from " + (fixAge / 1000) + " seconds ago.");
+	}
+
+	@Override
+	protected void setActivity(int activity) {
+		// In a vehicle, steps say nothing about position, so GPS is kept
+		// active and its fixes are relayed directly
+		mActivity = activity;
+	}
+
+	@Override
+	protected void setStationary(boolean stationary) {
+		LocationServiceFusionThread locationServiceFusionThread = mLocationServiceFusionThread;
+		if (locationServiceFusionThread == null) {
+			return;
+		}
+
+		if (stationary) {
+			locationServiceFusionThread.park();
+			if (mAdaptiveGPSEnabled) {
+				setGPSMode(GPS_MODE_PAUSED);
+			}
+			Log.i(TAG, "LocationService parked.");
+		} else {
+			locationServiceFusionThread.unpark();
+			Log.i(TAG, "LocationService resumed.");
+		}
+	}
+
 	private final class LocationServiceFusionThread extends AbstractSensorWorkerThread {
 		
 		private static final float ACCEPTABLE_ACCURACY = 15.0F;
 
 		// Variables for accepting data from outside
 		private Location gpsLocation;
+		private volatile long gpsReceivedTime = 0;
 		private float[] aiwcs;
 		private volatile long steps = 0;
+		private volatile long lastStepTime;
+		private volatile float azimuth = 0.0F;
 		
 		// Internal data
 		private boolean initialFix = false;
 		private Location locationFix;
+		private long fixReceivedTime = 0;
 		private long previousSteps = 0;
+		
+		// Dead reckoning data
+		private int fusionMode = FUSION_MODE_STEP_THRESHOLD;
+		private boolean inVehicle = false;
+		private long deadReckonedSteps = 0;
+		private long consideredGPSTime = 0;
+		private float declination = 0.0F;
+		private double[] position;
+		
+		// Kalman filter data
+		private LocationKalmanFilter kalmanFilter;
+		private double[] gpsFix;
+		private double originLatitude;
+		private double originLongitude;
+		private long kalmanTime;
+		private long kalmanSteps;
+		private long kalmanStepTime;
 
 		public LocationServiceFusionThread() {
 			this(DEFAULT_INTERVAL);
@@ -191,6 +548,10 @@ public class LocationService extends SensorService implements LocationListener,
 			super(interval);
 			
 			aiwcs = new float[3];
+			lastStepTime = SystemClock.elapsedRealtime();
+			position = new double[2];
+			kalmanFilter = new LocationKalmanFilter();
+			gpsFix = new double[3];
 		}
 
 		public synchronized void pushGPSLocation(Location location) {
@@ -199,6 +560,7 @@ public class LocationService extends SensorService implements LocationListener,
 			} else {
 				gpsLocation.set(location);
 			}
+			gpsReceivedTime = SystemClock.elapsedRealtime();
 			
 			// Debug
 			for (LocationServiceListener listener : mLocationServiceListeners) {
@@ -210,24 +572,279 @@ public class LocationService extends SensorService implements LocationListener,
 			return gpsLocation;
 		}
 		
+		/**
+		 * Use fix restored from previous run as current location until the
+		 * first acceptable fix, which replaces it regardless of accuracy.
+		 * Must be called before thread is started.
+		 * 
+		 * @param restoredFix restored fix.
+		 */
+		public void restoreFix(Location restoredFix) {
+			locationFix = new Location(restoredFix);
+			initialFix = false;
+		}
+		
+		/**
+		 * Copy latitude, longitude and accuracy of latest GPS location into
+		 * fix, without copying the whole Location.
+		 * 
+		 * @param fix array of double with length 3.
+		 * @return time GPS location was received, 0 if there is none.
+		 */
+		private synchronized long getGPSFix(double[] fix) {
+			if (gpsLocation == null || !gpsLocation.hasAccuracy()) {
+				return 0;
+			}
+			
+			fix[0] = gpsLocation.getLatitude();
+			fix[1] = gpsLocation.getLongitude();
+			fix[2] = gpsLocation.getAccuracy();
+			
+			return gpsReceivedTime;
+		}
+		
 		public synchronized void pushStep(float[] aiwcs) {
 			steps++;
+			lastStepTime = SystemClock.elapsedRealtime();
 			
 			System.arraycopy(aiwcs, 0, this.aiwcs, 0, 3);
 		}
+		
+		public void pushAzimuth(float azimuth) {
+			this.azimuth = azimuth;
+		}
+
+		/**
+		 * Choose GPS mode from current fix and steps walked since then.
+		 * 
+		 * @return LocationService.GPS_MODE_*.
+		 */
+		private int chooseGPSMode() {
+			if (!initialFix || locationFix == null) {
+				// No fix yet
+				return GPS_MODE_ACTIVE;
+			}
+			
+			if (inVehicle) {
+				return GPS_MODE_ACTIVE;
+			}
+			
+			if (fusionMode != FUSION_MODE_STEP_THRESHOLD) {
+				if (locationFix.getAccuracy() >= DEAD_RECKONING_TOLERANCE) {
+					// Dead reckoning out of tolerance, re-arm GPS
+					return GPS_MODE_ACTIVE;
+				}
+			} else {
+				float distanceWalked = (steps - previousSteps) * mStepLength;
+				if (distanceWalked >= locationFix.getAccuracy()) {
+					// Walked out of accuracy, re-arm GPS
+					return GPS_MODE_ACTIVE;
+				}
+			}
+			
+			if (SystemClock.elapsedRealtime() - lastStepTime >= GPS_IDLE_TIME) {
+				return GPS_MODE_PAUSED;
+			}
+			
+			return GPS_MODE_RELAXED;
+		}
+
+		/**
+		 * Snap to GPS fix when it's fresh and at least as accurate as current
+		 * location, otherwise advance current location by steps walked since
+		 * last round along current heading.
+		 * 
+		 * @param currentLocation acceptable GPS location, or null.
+		 */
+		private void fuseDeadReckoning(Location currentLocation) {
+			// Each GPS location is only considered once, so that a location
+			// which wasn't accurate enough can't be snapped to later on
+			boolean fresh = gpsReceivedTime > consideredGPSTime;
+			consideredGPSTime = gpsReceivedTime;
+			
+			if (currentLocation != null && fresh && (locationFix == null || !initialFix
+					|| currentLocation.getAccuracy() <= locationFix.getAccuracy())) {
+				if (locationFix == null) {
+					locationFix = new Location(currentLocation);
+				} else {
+					locationFix.set(currentLocation);
+				}
+				fixReceivedTime = gpsReceivedTime;
+				initialFix = true;
+				previousSteps = steps;
+				deadReckonedSteps = steps;
+				
+				declination = new GeomagneticField((float) currentLocation.getLatitude(),
+						(float) currentLocation.getLongitude(), (float) currentLocation.getAltitude(),
+						currentLocation.getTime()).getDeclination();
+				
+				setLocation(locationFix);
+			} else if (initialFix && locationFix != null && steps > deadReckonedSteps) {
+				float distance = (steps - deadReckonedSteps) * mStepLength;
+				deadReckonedSteps = steps;
+				
+				// Azimuth is relative to magnetic north
+				double heading = azimuth + Math.toRadians(declination);
+				GeoUtils.offset(locationFix.getLatitude(), locationFix.getLongitude(),
+						distance * Math.cos(heading), distance * Math.sin(heading), position);
+				
+				locationFix.setProvider(PROVIDER_DEAD_RECKONING);
+				locationFix.setLatitude(position[0]);
+				locationFix.setLongitude(position[1]);
+				locationFix.setAccuracy(locationFix.getAccuracy() + distance * DEAD_RECKONING_ERROR_RATIO);
+				locationFix.setBearing((float) ((Math.toDegrees(heading) + 360.0) % 360.0));
+				locationFix.setTime(System.currentTimeMillis());
+				
+				setLocation(locationFix);
+			}
+		}
+
+		/**
+		 * Predict Kalman filter forward to now, then correct it with fresh GPS
+		 * fix and velocity measured from steps walked since last round.
+		 */
+		private void fuseKalman() {
+			long now = SystemClock.elapsedRealtime();
+			long receivedTime = getGPSFix(gpsFix);
+			boolean fresh = receivedTime > consideredGPSTime;
+			consideredGPSTime = receivedTime;
+			
+			if (!kalmanFilter.isInitialized()) {
+				if (fresh && gpsFix[2] <= ACCEPTABLE_ACCURACY) {
+					setKalmanOrigin(gpsFix[0], gpsFix[1]);
+					kalmanFilter.init(0.0, 0.0, gpsFix[2]);
+					kalmanTime = now;
+					kalmanSteps = steps;
+					kalmanStepTime = now;
+					
+					setKalmanLocation();
+				}
+				
+				return;
+			}
+			
+			kalmanFilter.predict((now - kalmanTime) / 1000.0);
+			kalmanTime = now;
+			boolean updated = false;
+			
+			if (fresh) {
+				GeoUtils.toLocal(originLatitude, originLongitude, gpsFix[0], gpsFix[1], position);
+				kalmanFilter.updatePosition(position[0], position[1], gpsFix[2]);
+				updated = true;
+			}
+			
+			long newSteps = steps - kalmanSteps;
+			if (newSteps > 0) {
+				// Speed is step length over step interval along heading
+				long interval = now - kalmanStepTime;
+				if (interval > KALMAN_STILL_TIME || interval < CONSTANT_AVERGAE_STEP_TIME * newSteps) {
+					interval = CONSTANT_AVERGAE_STEP_TIME * newSteps;
+				}
+				double speed = newSteps * mStepLength / (interval / 1000.0);
+				double heading = azimuth + Math.toRadians(declination);
+				kalmanFilter.updateVelocity(speed * Math.cos(heading), speed * Math.sin(heading), KALMAN_STEP_VELOCITY_SIGMA);
+				
+				kalmanSteps = steps;
+				kalmanStepTime = now;
+				updated = true;
+			} else if (now - lastStepTime >= KALMAN_STILL_TIME) {
+				// Not walking
+				kalmanFilter.updateVelocity(0.0, 0.0, KALMAN_STILL_VELOCITY_SIGMA);
+			}
+			
+			if (Math.abs(kalmanFilter.getNorth()) > KALMAN_RECENTER_DISTANCE
+					|| Math.abs(kalmanFilter.getEast()) > KALMAN_RECENTER_DISTANCE) {
+				double north = kalmanFilter.getNorth();
+				double east = kalmanFilter.getEast();
+				GeoUtils.offset(originLatitude, originLongitude, north, east, position);
+				setKalmanOrigin(position[0], position[1]);
+				kalmanFilter.shiftOrigin(north, east);
+			}
+			
+			if (updated) {
+				setKalmanLocation();
+			}
+		}
+		
+		private void setKalmanOrigin(double latitude, double longitude) {
+			originLatitude = latitude;
+			originLongitude = longitude;
+			declination = new GeomagneticField((float) latitude, (float) longitude, 0.0F,
+					System.currentTimeMillis()).getDeclination();
+		}
+		
+		private void setKalmanLocation() {
+			if (locationFix == null) {
+				locationFix = new Location(PROVIDER_KALMAN);
+			}
+			
+			GeoUtils.offset(originLatitude, originLongitude, kalmanFilter.getNorth(), kalmanFilter.getEast(), position);
+			double velocityNorth = kalmanFilter.getVelocityNorth();
+			double velocityEast = kalmanFilter.getVelocityEast();
+			
+			locationFix.setProvider(PROVIDER_KALMAN);
+			locationFix.setLatitude(position[0]);
+			locationFix.setLongitude(position[1]);
+			locationFix.setAccuracy((float) kalmanFilter.getPositionSigma());
+			locationFix.setSpeed((float) Math.sqrt(velocityNorth * velocityNorth + velocityEast * velocityEast));
+			locationFix.setBearing((float) ((Math.toDegrees(Math.atan2(velocityEast, velocityNorth)) + 360.0) % 360.0));
+			locationFix.setTime(System.currentTimeMillis());
+			initialFix = true;
+			
+			setLocation(locationFix);
+		}
 
 		@Override
 		public void run() {
+			if (locationFix != null && !initialFix) {
+				// Restored fix
+				setLocation(locationFix);
+			}
+			
 			while (!isTerminated()) {
 				Location currentLocation = getGPSLocation();
-				if (currentLocation != null && currentLocation.hasAccuracy() && currentLocation.getAccuracy() <= ACCEPTABLE_ACCURACY) {
+				if (fusionMode != mFusionMode) {
+					// Steps walked before switching aren't dead reckoned
+					fusionMode = mFusionMode;
+					deadReckonedSteps = steps;
+					kalmanFilter.reset();
+				}
+				
+				boolean vehicle = mActivity == ActivityRecognitionService.ACTIVITY_VEHICLE;
+				if (inVehicle && !vehicle) {
+					// Fusion restarts from GPS after leaving vehicle
+					deadReckonedSteps = steps;
+					kalmanFilter.reset();
+				}
+				inVehicle = vehicle;
+				
+				if (inVehicle) {
+					if (currentLocation != null && gpsReceivedTime > fixReceivedTime) {
+						if (locationFix == null) {
+							locationFix = new Location(currentLocation);
+						} else {
+							locationFix.set(currentLocation);
+						}
+						fixReceivedTime = gpsReceivedTime;
+						initialFix = true;
+						previousSteps = steps;
+						
+						setLocation(locationFix);
+					}
+				} else if (fusionMode == FUSION_MODE_KALMAN) {
+					fuseKalman();
+				} else if (fusionMode == FUSION_MODE_DEAD_RECKONING) {
+					boolean acceptable = currentLocation != null && currentLocation.hasAccuracy()
+							&& currentLocation.getAccuracy() <= ACCEPTABLE_ACCURACY;
+					fuseDeadReckoning(acceptable ? currentLocation : null);
+				} else if (currentLocation != null && currentLocation.hasAccuracy() && currentLocation.getAccuracy() <= ACCEPTABLE_ACCURACY) {
 					// Acceptable GPS data
 					
-					if (initialFix && locationFix != null && steps - previousSteps > 0) {
+					if (initialFix && locationFix != null && steps - previousSteps > 0 && gpsReceivedTime > fixReceivedTime) {
 						// Steps walked since last fix
 						long stepsWalked = steps - previousSteps;
 						
-						float distanceWalked = stepsWalked * CONSTANT_AVERAGE_STEP_DISTANCE;
+						float distanceWalked = stepsWalked * mStepLength;
 						
 						if (distanceWalked >= locationFix.getAccuracy()) {
 							Log.i(TAG, "Walked out of accuracy");
@@ -235,6 +852,7 @@ public class LocationService extends SensorService implements LocationListener,
 							// Walk out of current location accuracy range
 							previousSteps = steps;
 							locationFix.set(currentLocation);
+							fixReceivedTime = gpsReceivedTime;
 							
 							// Call listener
 							setLocation(locationFix);
@@ -244,12 +862,14 @@ public class LocationService extends SensorService implements LocationListener,
 					// Initial fix
 					if (!initialFix && locationFix == null) {
 						locationFix = new Location(currentLocation);
+						fixReceivedTime = gpsReceivedTime;
 						initialFix = true;
 						previousSteps = steps;
 						
 						setLocation(locationFix);
 					} else if (!initialFix) {
 						locationFix.set(currentLocation);
+						fixReceivedTime = gpsReceivedTime;
 						initialFix = true;
 						previousSteps = steps;
 						
@@ -257,8 +877,12 @@ public class LocationService extends SensorService implements LocationListener,
 					}
 				}
 				
+				if (mAdaptiveGPSEnabled) {
+					setGPSMode(chooseGPSMode());
+				}
+				
 				try {
-					Thread.sleep(getInterval());
+					sleepInterval();
 				} catch (InterruptedException e) {
 					Log.w(TAG, e.getMessage(), e);
 				}
@@ -270,6 +894,18 @@ public class LocationService extends SensorService implements LocationListener,
 	public LocationService addListener(LocationServiceListener locationServiceListener) {
 		if (locationServiceListener != null) {
 			mLocationServiceListeners.add(locationServiceListener);
+			notifyDemandChanged();
+			
+			return this;
+		} else {
+			throw new NullPointerException("LocationServiceListener is null.");
+		}
+	}
+
+	public LocationService removeListener(LocationServiceListener locationServiceListener) {
+		if (locationServiceListener != null) {
+			mLocationServiceListeners.remove(locationServiceListener);
+			notifyDemandChanged();
 			
 			return this;
 		} else {
@@ -279,10 +915,16 @@ public class LocationService extends SensorService implements LocationListener,
 
 	protected LocationService removeListeners() {
 		mLocationServiceListeners.clear();
+		notifyDemandChanged();
 		
 		return this;
 	}
 
+	@Override
+	protected boolean hasExternalListeners() {
+		return containsExternalListener(mLocationServiceListeners);
+	}
+
 	private synchronized void setServiceLevel(int serviceLevel) {
 		if (serviceLevel != mServiceLevel) {
 			mServiceLevel = serviceLevel;
@@ -294,9 +936,16 @@ public class LocationService extends SensorService implements LocationListener,
 	
 	private synchronized void setLocation(Location location) {
 		if (location != null) {
+			SnapshotPublisher snapshotPublisher = getSnapshotPublisher();
+			if (snapshotPublisher != null) {
+				snapshotPublisher.publishLocation(location);
+			}
+
 			for (LocationServiceListener listener : mLocationServiceListeners) {
 				listener.onLocationChanged(location);
 			}
+
+			markCallbackDelivered();
 		}
 	}
 	
@@ -373,4 +1022,22 @@ public class LocationService extends SensorService implements LocationListener,
 		// Not used
 	}
 
+	@Override
+	public void onOrientationChanged(float[] values) {
+		LocationServiceFusionThread locationServiceFusionThread = mLocationServiceFusionThread;
+		if (locationServiceFusionThread != null) {
+			locationServiceFusionThread.pushAzimuth(values[0]);
+		}
+	}
+
+	@Override
+	public void onRotationMatrixChanged(float[] R, float[] I) {
+		// Not used
+	}
+
+	@Override
+	public void onMagneticFieldChanged(float[] values) {
+		// Not used
+	}
+
 }
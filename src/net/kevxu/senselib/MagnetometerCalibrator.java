@@ -0,0 +1,533 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+/**
+ * Estimates hard-iron offset and soft-iron scale of magnetometer from raw
+ * samples while the device is used, and removes them. Raw samples lie on an
+ * ellipsoid whose center is the hard-iron offset, and whose radii differ by
+ * soft-iron distortion, which is assumed to be along device axes.
+ * <p>
+ * The ellipsoid Ax^2 + By^2 + Cz^2 + Dx + Ey + Fz = 1 is fitted by least 
+ * squares. Its 6x6 normal equations are accumulated on every sample with a
+ * forgetting factor, so each sample costs O(1) and old samples fade out 
+ * when distortion changes. Equations are solved every 
+ * {@link #SOLVE_INTERVAL} samples. If the device has only been turned 
+ * around one axis, such as lying flat on a table, that axis is left out of
+ * the fit and keeps its calibration.
+ * <p>
+ * Quality in [0, 1] combines how well samples fit the ellipsoid with how
+ * much of each axis has been covered by rotation. Coverage is the spread of
+ * samples along each axis against the fitted radius, so noise around a 
+ * fixed reading doesn't count as rotation. A new calibration is only 
+ * applied if it's plausible and not worse than the current one.
+ * 
+ * @author Kaiwen Xu
+ */
+public class MagnetometerCalibrator {
+
+	/**
+	 * Default forgetting factor is 0.9995 per sample, which keeps about 2000
+	 * samples, 40 seconds at SENSOR_DELAY_GAME.
+	 */
+	public static final double DEFAULT_FORGETTING_FACTOR = 0.9995;
+
+	/**
+	 * Normal equations are solved every 50 samples.
+	 */
+	public static final int SOLVE_INTERVAL = 50;
+
+	/**
+	 * Calibration with quality at least this is applied even if current 
+	 * calibration is better, so that calibration follows changes of 
+	 * distortion.
+	 */
+	public static final float ACCEPTABLE_QUALITY = 0.6F;
+
+	// Samples are normalized by typical geomagnetic field strength (in uT)
+	private static final double FIELD_SCALE = 50.0;
+
+	// Plausible field strength and distortion, in normalized units
+	private static final double MIN_RADIUS = 0.2;
+	private static final double MAX_RADIUS = 2.0;
+	private static final double MAX_RADIUS_RATIO = 1.5;
+	private static final double MAX_OFFSET = 20.0;
+
+	// Relative radial error at which fit quality drops to 0
+	private static final double MAX_RELATIVE_ERROR = 0.1;
+
+	// Standard deviation along an axis below which it's considered not
+	// rotated around, in normalized units (5 uT)
+	private static final double MIN_AXIS_SPREAD = 0.1;
+
+	private static final double SINGULAR_PIVOT = 1e-12;
+
+	// Effective samples needed before solving
+	private static final double MIN_SAMPLES = SOLVE_INTERVAL;
+
+	private final double mForgettingFactor;
+
+	// Normal equations, M theta = b, with sum of weights n
+	private final double[][] mM;
+	private final double[] mB;
+	private double mN;
+
+	// Weighted variance of samples along each axis
+	private final double[] mVariance;
+
+	// Preallocated for solving
+	private final double[] mPhi;
+	private final int[] mParameters;
+	private final double[][] mA;
+	private final double[] mTheta;
+	private final double[] mEllipsoid;
+	private final double[] mCenter;
+	private final double[] mRadius;
+
+	private int mSamplesSinceSolve;
+
+	private final float[] mOffset;
+	private final float[] mScale;
+	private float mQuality;
+	private boolean mCalibrated;
+
+	public MagnetometerCalibrator() {
+		this(DEFAULT_FORGETTING_FACTOR);
+	}
+
+	/**
+	 * @param forgettingFactor weight each sample loses per new sample, in 
+	 * (0, 1].
+	 */
+	public MagnetometerCalibrator(double forgettingFactor) {
+		if (forgettingFactor <= 0.0 || forgettingFactor > 1.0) {
+			throw new IllegalArgumentException("Forgetting factor must be in (0, 1].");
+		}
+
+		mForgettingFactor = forgettingFactor;
+		mM = new double[6][6];
+		mB = new double[6];
+		mVariance = new double[3];
+		mPhi = new double[6];
+		mParameters = new int[6];
+		mA = new double[6][7];
+		mTheta = new double[6];
+		mEllipsoid = new double[7];
+		mCenter = new double[3];
+		mRadius = new double[3];
+		mOffset = new float[3];
+		mScale = new float[3];
+
+		reset();
+	}
+
+	/**
+	 * Add a raw magnetometer sample.
+	 * 
+	 * @param values raw magnetic field in uT, array of float with length 3.
+	 */
+	public synchronized void push(float[] values) {
+		double x = values[0] / FIELD_SCALE;
+		double y = values[1] / FIELD_SCALE;
+		double z = values[2] / FIELD_SCALE;
+
+		mPhi[0] = x * x;
+		mPhi[1] = y * y;
+		mPhi[2] = z * z;
+		mPhi[3] = x;
+		mPhi[4] = y;
+		mPhi[5] = z;
+
+		double lambda = mForgettingFactor;
+		for (int i = 0; i < 6; i++) {
+			double phi = mPhi[i];
+			double[] row = mM[i];
+			// Symmetric, only upper triangle is kept
+			for (int j = i; j < 6; j++) {
+				row[j] = lambda * row[j] + phi * mPhi[j];
+			}
+			mB[i] = lambda * mB[i] + phi;
+		}
+		mN = lambda * mN + 1.0;
+
+		mSamplesSinceSolve++;
+		if (mSamplesSinceSolve >= SOLVE_INTERVAL && mN >= MIN_SAMPLES) {
+			mSamplesSinceSolve = 0;
+			solve();
+		}
+	}
+
+	/**
+	 * Remove hard-iron offset and soft-iron scale from raw sample. Values
+	 * are copied unchanged until calibrated.
+	 * 
+	 * @param values raw magnetic field, array of float with length 3.
+	 * @param calibrated calibrated magnetic field, array of float with 
+	 *            length 3. Can be the same array as values.
+	 */
+	public synchronized void calibrate(float[] values, float[] calibrated) {
+		for (int i = 0; i < 3; i++) {
+			calibrated[i] = (values[i] - mOffset[i]) * mScale[i];
+		}
+	}
+
+	/**
+	 * Get element of normal equations extended with a constant parameter,
+	 * which has index 6.
+	 */
+	private double getNormal(int i, int j) {
+		if (i == 6 && j == 6) {
+			return mN;
+		} else if (i == 6) {
+			return mB[j];
+		} else if (j == 6) {
+			return mB[i];
+		} else {
+			return i <= j ? mM[i][j] : mM[j][i];
+		}
+	}
+
+	/**
+	 * Get right hand side of normal equations, where target is either 1 or
+	 * the negative of parameter with given index.
+	 */
+	private double getTarget(int i, int target) {
+		return target < 0 ? getNormal(i, 6) : -getNormal(i, target);
+	}
+
+	private void solve() {
+		// Axes which the device has been rotated around enough. Sums of x
+		// and x^2 are already in the right hand side of normal equations.
+		int uncovered = -1;
+		for (int i = 0; i < 3; i++) {
+			double mean = mB[i + 3] / mN;
+			mVariance[i] = Math.max(0.0, mB[i] / mN - mean * mean);
+			if (mVariance[i] < MIN_AXIS_SPREAD * MIN_AXIS_SPREAD) {
+				if (uncovered >= 0) {
+					// Only one axis can be left out, which also keeps a
+					// stationary device from being calibrated on noise
+					return;
+				}
+				uncovered = i;
+			}
+		}
+
+		// Fit is Ax^2 + By^2 + Cz^2 + Dx + Ey + Fz = 1. With an uncovered 
+		// axis, its terms are constant, so an ellipse x^2 + By^2 + Dx + Ey
+		// + K = 0 is fitted over the other two axes instead, and the 
+		// uncovered axis keeps its calibration.
+		int target = -1;
+		int n = 0;
+		for (int i = 0; i < 6; i++) {
+			if (uncovered < 0 || i % 3 != uncovered) {
+				if (uncovered >= 0 && target < 0) {
+					target = i;
+				} else {
+					mParameters[n++] = i;
+				}
+			}
+		}
+		if (uncovered >= 0) {
+			mParameters[n++] = 6;
+		}
+
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				mA[i][j] = getNormal(mParameters[i], mParameters[j]);
+			}
+			mA[i][n] = getTarget(mParameters[i], target);
+		}
+
+		if (!gaussianElimination(mA, mTheta, n)) {
+			return;
+		}
+
+		// Residual, sum of (phi' theta - target)^2, from normal equations.
+		// Both fits are turned into sum of c_i x_i^2 + d_i x_i + k = 0.
+		double residual = target < 0 ? mN : getNormal(target, target);
+		for (int i = 0; i < 7; i++) {
+			mEllipsoid[i] = 0.0;
+		}
+		for (int i = 0; i < n; i++) {
+			double product = 0.0;
+			for (int j = 0; j < n; j++) {
+				product += getNormal(mParameters[i], mParameters[j]) * mTheta[j];
+			}
+			residual += mTheta[i] * (product - 2.0 * getTarget(mParameters[i], target));
+			mEllipsoid[mParameters[i]] = mTheta[i];
+		}
+		if (target < 0) {
+			mEllipsoid[6] = -1.0;
+		} else {
+			mEllipsoid[target] = 1.0;
+		}
+
+		double g = -mEllipsoid[6];
+		for (int i = 0; i < 3; i++) {
+			if (i == uncovered) {
+				continue;
+			}
+			if (mEllipsoid[i] <= 0.0) {
+				return;
+			}
+			mCenter[i] = -mEllipsoid[i + 3] / (2.0 * mEllipsoid[i]);
+			g += mEllipsoid[i] * mCenter[i] * mCenter[i];
+		}
+		if (g <= 0.0) {
+			return;
+		}
+
+		// Variance along each axis is r^2/3 when the sphere is covered, or
+		// r^2/2 when the circle around an uncovered axis is
+		double fullVariance = uncovered < 0 ? 3.0 : 2.0;
+		double coverage = 0.0;
+		double minRadius = Double.MAX_VALUE;
+		double maxRadius = 0.0;
+		double radiusProduct = 1.0;
+		for (int i = 0; i < 3; i++) {
+			if (i == uncovered) {
+				continue;
+			}
+			mRadius[i] = Math.sqrt(g / mEllipsoid[i]);
+			coverage += Math.min(1.0, fullVariance * mVariance[i] / (mRadius[i] * mRadius[i])) / 3.0;
+			minRadius = Math.min(minRadius, mRadius[i]);
+			maxRadius = Math.max(maxRadius, mRadius[i]);
+			radiusProduct *= mRadius[i];
+			if (Math.abs(mCenter[i]) > MAX_OFFSET) {
+				return;
+			}
+		}
+		if (minRadius < MIN_RADIUS || maxRadius > MAX_RADIUS || maxRadius / minRadius > MAX_RADIUS_RATIO) {
+			return;
+		}
+
+		// Algebraic residual is about twice the relative radial error
+		double relativeError = Math.sqrt(Math.max(residual, 0.0) / mN) / (2.0 * g);
+		double fit = Math.max(0.0, 1.0 - relativeError / MAX_RELATIVE_ERROR);
+
+		float quality = (float) (fit * coverage);
+		if (mCalibrated && quality < mQuality && quality < ACCEPTABLE_QUALITY) {
+			return;
+		}
+
+		// Scale covered axes to their mean radius, keeping field strength.
+		// Next to an uncovered axis, their mean scale is kept instead.
+		double scale;
+		if (uncovered < 0) {
+			scale = Math.cbrt(radiusProduct);
+		} else {
+			double scaleProduct = 1.0;
+			for (int i = 0; i < 3; i++) {
+				if (i != uncovered) {
+					scaleProduct *= mScale[i];
+				}
+			}
+			scale = Math.sqrt(scaleProduct * radiusProduct);
+		}
+
+		for (int i = 0; i < 3; i++) {
+			if (i != uncovered) {
+				mOffset[i] = (float) (mCenter[i] * FIELD_SCALE);
+				mScale[i] = (float) (scale / mRadius[i]);
+			}
+		}
+		mQuality = quality;
+		mCalibrated = true;
+	}
+
+	/**
+	 * Solve augmented n x (n + 1) matrix in place with partial pivoting.
+	 * 
+	 * @return false if matrix is singular.
+	 */
+	private static boolean gaussianElimination(double[][] a, double[] x, int n) {
+		for (int k = 0; k < n; k++) {
+			int pivot = k;
+			for (int i = k + 1; i < n; i++) {
+				if (Math.abs(a[i][k]) > Math.abs(a[pivot][k])) {
+					pivot = i;
+				}
+			}
+			if (Math.abs(a[pivot][k]) < SINGULAR_PIVOT) {
+				return false;
+			}
+			double[] row = a[pivot];
+			a[pivot] = a[k];
+			a[k] = row;
+
+			for (int i = k + 1; i < n; i++) {
+				double factor = a[i][k] / a[k][k];
+				for (int j = k; j <= n; j++) {
+					a[i][j] -= factor * a[k][j];
+				}
+			}
+		}
+
+		for (int i = n - 1; i >= 0; i--) {
+			double sum = a[i][n];
+			for (int j = i + 1; j < n; j++) {
+				sum -= a[i][j] * x[j];
+			}
+			x[i] = sum / a[i][i];
+		}
+
+		return true;
+	}
+
+	/**
+	 * Check whether a calibration has been estimated or restored.
+	 * 
+	 * @return true if calibrated.
+	 */
+	public synchronized boolean isCalibrated() {
+		return mCalibrated;
+	}
+
+	/**
+	 * Get quality of current calibration, 0 if not calibrated.
+	 * 
+	 * @return quality in [0, 1].
+	 */
+	public synchronized float getQuality() {
+		return mQuality;
+	}
+
+	/**
+	 * Get current calibration.
+	 * 
+	 * @param offset array of float with length 3 for hard-iron offset in uT.
+	 * @param scale array of float with length 3 for soft-iron scale.
+	 */
+	public synchronized void getCalibration(float[] offset, float[] scale) {
+		System.arraycopy(mOffset, 0, offset, 0, 3);
+		System.arraycopy(mScale, 0, scale, 0, 3);
+	}
+
+	/**
+	 * Set calibration, for example restored from a previous run. It's 
+	 * replaced once a calibration with better or acceptable quality is
+	 * estimated.
+	 * 
+	 * @param offset hard-iron offset in uT, array of float with length 3.
+	 * @param scale soft-iron scale, array of float with length 3.
+	 * @param quality quality of calibration.
+	 */
+	public synchronized void setCalibration(float[] offset, float[] scale, float quality) {
+		System.arraycopy(offset, 0, mOffset, 0, 3);
+		System.arraycopy(scale, 0, mScale, 0, 3);
+		mQuality = quality;
+		mCalibrated = true;
+	}
+
+	/**
+	 * Forget samples and calibration.
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < 6; i++) {
+			for (int j = 0; j < 6; j++) {
+				mM[i][j] = 0.0;
+			}
+			mB[i] = 0.0;
+		}
+		mN = 0.0;
+
+		for (int i = 0; i < 3; i++) {
+			mOffset[i] = 0.0F;
+			mScale[i] = 1.0F;
+		}
+
+		mSamplesSinceSolve = 0;
+		mQuality = 0.0F;
+		mCalibrated = false;
+	}
+
+	/**
+	 * Simulate a magnetometer with hard-iron offset [30, -20, 10] uT and 
+	 * soft-iron distortion, turned around all axes, turned flat on a table,
+	 * and left still after being calibrated.
+	 */
+	public static void main(String[] args) {
+		float[] offset = new float[3];
+		float[] scale = new float[3];
+
+		MagnetometerCalibrator full = new MagnetometerCalibrator();
+		java.util.Random random = new java.util.Random(0);
+		for (int i = 0; i < 3000; i++) {
+			double x = random.nextGaussian();
+			double y = random.nextGaussian();
+			double z = random.nextGaussian();
+			double norm = Math.sqrt(x * x + y * y + z * z);
+			full.push(simulateSample(x / norm, y / norm, z / norm, random));
+		}
+		full.getCalibration(offset, scale);
+		System.out.println("Full: offset " + java.util.Arrays.toString(offset) + ", scale " 
+				+ java.util.Arrays.toString(scale) + ", quality " + full.getQuality());
+
+		// Field inclined 60 degrees, turned around z only
+		MagnetometerCalibrator flat = new MagnetometerCalibrator();
+		double inclination = Math.toRadians(60.0);
+		for (int i = 0; i < 3000; i++) {
+			double heading = random.nextDouble() * 2.0 * Math.PI;
+			flat.push(simulateSample(Math.cos(inclination) * Math.cos(heading), 
+					Math.cos(inclination) * Math.sin(heading), -Math.sin(inclination), random));
+		}
+		flat.getCalibration(offset, scale);
+		System.out.println("Flat: offset " + java.util.Arrays.toString(offset) + ", scale " 
+				+ java.util.Arrays.toString(scale) + ", quality " + flat.getQuality());
+
+		// Calibration has to survive a long still period, at any reading
+		for (int seed = 0; seed < 4; seed++) {
+			random = new java.util.Random(seed);
+			MagnetometerCalibrator still = new MagnetometerCalibrator();
+			for (int i = 0; i < 3000; i++) {
+				double x = random.nextGaussian();
+				double y = random.nextGaussian();
+				double z = random.nextGaussian();
+				double norm = Math.sqrt(x * x + y * y + z * z);
+				still.push(simulateSample(x / norm, y / norm, z / norm, random));
+			}
+			double x = random.nextGaussian();
+			double y = random.nextGaussian();
+			double z = random.nextGaussian();
+			double norm = Math.sqrt(x * x + y * y + z * z);
+			for (int i = 0; i < 20000; i++) {
+				still.push(simulateSample(x / norm, y / norm, z / norm, random));
+			}
+			still.getCalibration(offset, scale);
+			System.out.println("Still " + seed + ": offset " + java.util.Arrays.toString(offset) 
+					+ ", quality " + still.getQuality());
+		}
+	}
+
+	private static float[] simulateSample(double x, double y, double z, java.util.Random random) {
+		double field = 48.0;
+		double noise = 0.5;
+
+		return new float[] {
+				(float) (x * field * 1.10 + 30.0 + random.nextGaussian() * noise),
+				(float) (y * field * 0.95 - 20.0 + random.nextGaussian() * noise),
+				(float) (z * field * 1.00 + 10.0 + random.nextGaussian() * noise) };
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import net.kevxu.senselib.util.FloatDataPool;
+import android.os.SystemClock;
+
+/**
+ * Detects whether the device is stationary from the variance of linear
+ * acceleration magnitude over a window. Device becomes stationary after the
+ * window has stayed quiet for a while, and becomes moving again as soon as a
+ * single sample exceeds wake limit, so wake up latency is bounded by one
+ * sample period.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author Kaiwen Xu
+ */
+public class MotionStateDetector {
+
+	/**
+	 * Device is moving.
+	 */
+	public static final int STATE_MOVING = 0x0;
+
+	/**
+	 * Device is stationary.
+	 */
+	public static final int STATE_STATIONARY = 0x1;
+
+	private static final int DEFAULT_WINDOW_SIZE = 50;
+
+	// Variance limit in (m/s^2)^2
+	private static final float DEFAULT_VARIANCE_LIMIT = 0.01F;
+
+	// Wake limit in m/s^2, lower than step detection limit
+	private static final float DEFAULT_WAKE_LIMIT = 0.6F;
+
+	// Window has to stay quiet for this long (in milliseconds)
+	private static final long DEFAULT_STATIONARY_TIME = 3000L;
+
+	private final float mVarianceLimit;
+	private final float mWakeLimit;
+	private final long mStationaryTime;
+
+	private List<MotionStateListener> mMotionStateListeners;
+
+	private FloatDataPool mMagnitudes;
+	private double mSum;
+	private double mSumOfSquares;
+
+	private int mState;
+	private long mQuietSince;
+	private long mStateSince;
+	private long[] mTimeInState;
+
+	public interface MotionStateListener {
+
+		/**
+		 * Called when motion state changes.
+		 * 
+		 * @param state MotionStateDetector.STATE_*.
+		 */
+		public void onMotionStateChanged(int state);
+
+	}
+
+	protected MotionStateDetector() {
+		this(DEFAULT_WINDOW_SIZE, DEFAULT_VARIANCE_LIMIT, DEFAULT_WAKE_LIMIT, DEFAULT_STATIONARY_TIME);
+	}
+
+	protected MotionStateDetector(int windowSize, float varianceLimit, float wakeLimit, long stationaryTime) {
+		mVarianceLimit = varianceLimit;
+		mWakeLimit = wakeLimit;
+		mStationaryTime = stationaryTime;
+
+		mMotionStateListeners = new LinkedList<MotionStateListener>();
+		mMagnitudes = new FloatDataPool(windowSize);
+		mTimeInState = new long[2];
+
+		mState = STATE_MOVING;
+		mQuietSince = -1;
+		mStateSince = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Push a new linear acceleration sample.
+	 * 
+	 * @param values linear acceleration in device's coordinate system.
+	 */
+	protected void pushLinearAccel(float[] values) {
+		float magnitude = (float) Math.sqrt(values[0] * values[0]
+				+ values[1] * values[1] + values[2] * values[2]);
+		long now = SystemClock.elapsedRealtime();
+		int newState;
+
+		synchronized (this) {
+			newState = mState;
+			if (mMagnitudes.size() == mMagnitudes.getPoolSize()) {
+				float oldest = mMagnitudes.get(0);
+				mSum -= oldest;
+				mSumOfSquares -= oldest * oldest;
+			}
+			mMagnitudes.append(magnitude);
+			mSum += magnitude;
+			mSumOfSquares += magnitude * magnitude;
+
+			if (magnitude > mWakeLimit) {
+				mQuietSince = -1;
+				newState = STATE_MOVING;
+			} else if (mMagnitudes.size() == mMagnitudes.getPoolSize()) {
+				int n = mMagnitudes.size();
+				double mean = mSum / n;
+				double variance = mSumOfSquares / n - mean * mean;
+
+				if (variance < mVarianceLimit) {
+					if (mQuietSince < 0) {
+						mQuietSince = now;
+					} else if (now - mQuietSince >= mStationaryTime) {
+						newState = STATE_STATIONARY;
+					}
+				} else {
+					mQuietSince = -1;
+				}
+			}
+		}
+
+		setState(newState, now);
+	}
+
+	/**
+	 * Clear the window and go back to moving state.
+	 */
+	protected void reset() {
+		synchronized (this) {
+			mMagnitudes = new FloatDataPool(mMagnitudes.getPoolSize());
+			mSum = 0.0;
+			mSumOfSquares = 0.0;
+			mQuietSince = -1;
+		}
+
+		setState(STATE_MOVING, SystemClock.elapsedRealtime());
+	}
+
+	private void setState(int state, long now) {
+		synchronized (this) {
+			if (state == mState) {
+				return;
+			}
+
+			mTimeInState[mState] += now - mStateSince;
+			mStateSince = now;
+			mState = state;
+		}
+
+		for (MotionStateListener listener : mMotionStateListeners) {
+			listener.onMotionStateChanged(state);
+		}
+	}
+
+	/**
+	 * Get current motion state.
+	 * 
+	 * @return MotionStateDetector.STATE_*.
+	 */
+	public synchronized int getState() {
+		return mState;
+	}
+
+	/**
+	 * Get total time spent in given state, including time spent in current
+	 * state so far.
+	 * 
+	 * @param state MotionStateDetector.STATE_*.
+	 * @return time in milliseconds.
+	 */
+	public synchronized long getTimeInState(int state) {
+		long time = mTimeInState[state];
+		if (state == mState) {
+			time += SystemClock.elapsedRealtime() - mStateSince;
+		}
+
+		return time;
+	}
+
+	public MotionStateDetector addListener(MotionStateListener motionStateListener) {
+		if (motionStateListener != null) {
+			mMotionStateListeners.add(motionStateListener);
+
+			return this;
+		} else {
+			throw new NullPointerException("MotionStateListener is null.");
+		}
+	}
+
+	protected MotionStateDetector removeListeners() {
+		mMotionStateListeners.clear();
+
+		return this;
+	}
+
+}
@@ -23,13 +23,13 @@
 
 package net.kevxu.senselib;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import net.kevxu.senselib.SensorHub.SensorHubListener;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.util.Log;
 
@@ -39,17 +39,33 @@ import android.util.Log;
  * 
  * @author Kaiwen Xu
  */
-public class OrientationService extends SensorService implements SensorEventListener {
+public class OrientationService extends SensorService implements SensorHubListener {
 
 	private static final String TAG = "SensorService";
 
+	// Sensor rate used while device is stationary
+	private static final int SENSOR_DELAY_STATIONARY = SensorManager.SENSOR_DELAY_NORMAL;
+
+	// Restored magnetometer calibration older than this is discarded (in 
+	// milliseconds)
+	private static final long CALIBRATION_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+	private static final String KEY_MAGNETIC_OFFSET = "magneticOffset";
+	private static final String KEY_MAGNETIC_SCALE = "magneticScale";
+	private static final String KEY_MAGNETIC_QUALITY = "magneticQuality";
+
 	private Context mContext;
-	private SensorManager mSensorManager;
+	private SensorHub mSensorHub;
 	private List<OrientationServiceListener> mOrientationServiceListeners;
 
 	private Sensor mGravitySensor;
 	private Sensor mMagneticFieldSensor;
 
+	private MagnetometerCalibrator mMagnetometerCalibrator;
+	private volatile boolean mMagnetometerCalibrationEnabled;
+	private float[] mCalibratedMagneticField;
+	private volatile boolean mStationary;
+
 	private OrientationSensorThread mOrientationSensorThread;
 
 	public interface OrientationServiceListener {
@@ -123,35 +139,28 @@ public class OrientationService extends SensorService implements SensorEventList
 
 	}
 
-	protected OrientationService(Context context) throws SensorNotAvailableException {
-		this(context, null);
+	protected OrientationService(Context context, SensorHub sensorHub) throws SensorNotAvailableException {
+		this(context, sensorHub, null);
 	}
 
-	protected OrientationService(Context context, OrientationServiceListener orientationServiceListener) throws SensorNotAvailableException {
+	protected OrientationService(Context context, SensorHub sensorHub, OrientationServiceListener orientationServiceListener) throws SensorNotAvailableException {
 		mContext = context;
-		mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+		mSensorHub = sensorHub;
 
-		List<Sensor> gravitySensors = mSensorManager.getSensorList(Sensor.TYPE_GRAVITY);
-		List<Sensor> magneticFieldSensor = mSensorManager.getSensorList(Sensor.TYPE_MAGNETIC_FIELD);
+		// Sensors are chosen by SensorSelectionPolicy of the Sense instance
+		mGravitySensor = mSensorHub.selectSensor(Sensor.TYPE_GRAVITY);
+		mMagneticFieldSensor = mSensorHub.selectSensor(Sensor.TYPE_MAGNETIC_FIELD);
 		
 		int notAvailabelSensors = 0;
 
-		if (gravitySensors.size() == 0) {
+		if (mGravitySensor == null) {
 			// Gravity sensor not available
 			notAvailabelSensors = notAvailabelSensors | Sensor.TYPE_GRAVITY;
-		} else {
-			// Assume the first in the list is the default sensor
-			// Assumption may not be true though
-			mGravitySensor = gravitySensors.get(0);
 		}
 
-		if (magneticFieldSensor.size() == 0) {
+		if (mMagneticFieldSensor == null) {
 			// Magnetic Field sensor not available
 			notAvailabelSensors = notAvailabelSensors | Sensor.TYPE_MAGNETIC_FIELD;
-		} else {
-			// Assume the first in the list is the default sensor
-			// Assumption may not be true though
-			mMagneticFieldSensor = magneticFieldSensor.get(0);
 		}
 		
 		if (notAvailabelSensors != 0) {
@@ -159,29 +168,32 @@ public class OrientationService extends SensorService implements SensorEventList
 			throw new SensorNotAvailableException(notAvailabelSensors, "Orientation Service");
 		}
 
-		mOrientationServiceListeners = new LinkedList<OrientationServiceListener>();
+		mOrientationServiceListeners = new CopyOnWriteArrayList<OrientationServiceListener>();
 
 		if (orientationServiceListener != null) {
 			mOrientationServiceListeners.add(orientationServiceListener);
 		}
+
+		mMagnetometerCalibrator = new MagnetometerCalibrator();
+		mMagnetometerCalibrationEnabled = true;
+		mCalibratedMagneticField = new float[3];
 	}
 
 	@Override
 	protected void start() {
 		if (mOrientationSensorThread == null) {
 			mOrientationSensorThread = new OrientationSensorThread();
+			mOrientationSensorThread.setCpuAccounting(getCpuAccounting());
 			mOrientationSensorThread.start();
 			Log.i(TAG, "OrientationSensorThread started.");
 		}
 
-		if (mSensorManager == null) {
-			mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
-		}
+		mStationary = false;
 
-		mSensorManager.registerListener(this, mGravitySensor, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
 		Log.i(TAG, "Gravity sensor registered.");
 
-		mSensorManager.registerListener(this, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_MAGNETIC_FIELD, SensorManager.SENSOR_DELAY_GAME);
 		Log.i(TAG, "Magnetic field sensor registered.");
 
 		Log.i(TAG, "OrientationService started.");
@@ -201,12 +213,60 @@ public class OrientationService extends SensorService implements SensorEventList
 			mOrientationSensorThread = null;
 		}
 
-		mSensorManager.unregisterListener(this);
+		mSensorHub.unregisterListener(this);
 		Log.i(TAG, "Sensors unregistered.");
 
 		Log.i(TAG, "OrientationService stopped.");
 	}
 
+	@Override
+	protected void pause() {
+		OrientationSensorThread orientationSensorThread = mOrientationSensorThread;
+		if (orientationSensorThread == null) {
+			return;
+		}
+
+		orientationSensorThread.park();
+		mSensorHub.unregisterListener(this);
+		Log.i(TAG, "OrientationService paused.");
+	}
+
+	@Override
+	protected void resume() {
+		OrientationSensorThread orientationSensorThread = mOrientationSensorThread;
+		if (orientationSensorThread == null) {
+			start();
+			return;
+		}
+
+		mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_MAGNETIC_FIELD, SensorManager.SENSOR_DELAY_GAME);
+		orientationSensorThread.unpark();
+		Log.i(TAG, "OrientationService resumed.");
+	}
+
+	@Override
+	protected void setStationary(boolean stationary) {
+		OrientationSensorThread orientationSensorThread = mOrientationSensorThread;
+		if (orientationSensorThread == null) {
+			return;
+		}
+
+		mStationary = stationary;
+
+		int rate = stationary ? SENSOR_DELAY_STATIONARY : SensorManager.SENSOR_DELAY_GAME;
+		mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, rate);
+		mSensorHub.registerListener(this, Sensor.TYPE_MAGNETIC_FIELD, rate);
+
+		if (stationary) {
+			orientationSensorThread.park();
+			Log.i(TAG, "OrientationService parked.");
+		} else {
+			orientationSensorThread.unpark();
+			Log.i(TAG, "OrientationService resumed.");
+		}
+	}
+
 	private final class OrientationSensorThread extends AbstractSensorWorkerThread {
 
 		private float[] gravity;
@@ -258,6 +318,11 @@ public class OrientationService extends SensorService implements SensorEventList
 				if (getGravity() != null && getGeomagnetic() != null) {
 					SensorManager.getRotationMatrix(R, I, getGravity(), getGeomagnetic());
 					SensorManager.getOrientation(R, orientation);
+
+					SnapshotPublisher snapshotPublisher = getSnapshotPublisher();
+					if (snapshotPublisher != null) {
+						snapshotPublisher.publishOrientation(orientation);
+					}
 				}
 
 				for (OrientationServiceListener listener : mOrientationServiceListeners) {
@@ -269,8 +334,10 @@ public class OrientationService extends SensorService implements SensorEventList
 					}
 				}
 
+				markCallbackDelivered();
+
 				try {
-					Thread.sleep(getInterval());
+					sleepInterval();
 				} catch (InterruptedException e) {
 					Log.w(TAG, e.getMessage(), e);
 				}
@@ -283,6 +350,18 @@ public class OrientationService extends SensorService implements SensorEventList
 	public OrientationService addListener(OrientationServiceListener orientationServiceListener) {
 		if (orientationServiceListener != null) {
 			mOrientationServiceListeners.add(orientationServiceListener);
+			notifyDemandChanged();
+			
+			return this;
+		} else {
+			throw new NullPointerException("OrientationServiceListener is null.");
+		}
+	}
+
+	public OrientationService removeListener(OrientationServiceListener orientationServiceListener) {
+		if (orientationServiceListener != null) {
+			mOrientationServiceListeners.remove(orientationServiceListener);
+			notifyDemandChanged();
 			
 			return this;
 		} else {
@@ -292,27 +371,109 @@ public class OrientationService extends SensorService implements SensorEventList
 
 	protected OrientationService removeListeners() {
 		mOrientationServiceListeners.clear();
+		notifyDemandChanged();
 		
 		return this;
 	}
 
 	@Override
-	public void onSensorChanged(SensorEvent event) {
+	protected void onSaveState(SharedPreferences.Editor editor) {
+		if (!mMagnetometerCalibrator.isCalibrated()) {
+			return;
+		}
+
+		float[] offset = new float[3];
+		float[] scale = new float[3];
+		mMagnetometerCalibrator.getCalibration(offset, scale);
+		for (int i = 0; i < 3; i++) {
+			editor.putFloat(getStateKey(KEY_MAGNETIC_OFFSET + i), offset[i]);
+			editor.putFloat(getStateKey(KEY_MAGNETIC_SCALE + i), scale[i]);
+		}
+		editor.putFloat(getStateKey(KEY_MAGNETIC_QUALITY), mMagnetometerCalibrator.getQuality());
+	}
+
+	@Override
+	protected void onRestoreState(SharedPreferences preferences, long age) {
+		// Calibration estimated since process started is more recent
+		if (mMagnetometerCalibrator.isCalibrated() || !preferences.contains(getStateKey(KEY_MAGNETIC_QUALITY))) {
+			return;
+		}
+
+		// Distortion changes with phone cases and mounts
+		if (age > CALIBRATION_MAX_AGE) {
+			Log.i(TAG, "Saved magnetometer calibration is stale.");
+			return;
+		}
+
+		float[] offset = new float[3];
+		float[] scale = new float[3];
+		for (int i = 0; i < 3; i++) {
+			offset[i] = preferences.getFloat(getStateKey(KEY_MAGNETIC_OFFSET + i), 0.0F);
+			scale[i] = preferences.getFloat(getStateKey(KEY_MAGNETIC_SCALE + i), 1.0F);
+		}
+		mMagnetometerCalibrator.setCalibration(offset, scale, preferences.getFloat(getStateKey(KEY_MAGNETIC_QUALITY), 0.0F));
+		Log.i(TAG, "Magnetometer calibration restored.");
+	}
+
+	/**
+	 * Get calibrator which removes hard-iron and soft-iron distortion from
+	 * magnetic field, for example to show its quality.
+	 * 
+	 * @return magnetometer calibrator.
+	 */
+	public MagnetometerCalibrator getMagnetometerCalibrator() {
+		return mMagnetometerCalibrator;
+	}
+
+	/**
+	 * Enable or disable magnetometer calibration. Disable it if the device
+	 * already delivers calibrated magnetic field and calibration has to be
+	 * left to the device. It's enabled by default.
+	 * 
+	 * @param enabled true to enable magnetometer calibration.
+	 * @return OrientationService itself.
+	 */
+	public OrientationService setMagnetometerCalibrationEnabled(boolean enabled) {
+		mMagnetometerCalibrationEnabled = enabled;
+
+		return this;
+	}
+
+	/**
+	 * Check whether magnetometer calibration is enabled.
+	 * 
+	 * @return true if enabled, false otherwise.
+	 */
+	public boolean isMagnetometerCalibrationEnabled() {
+		return mMagnetometerCalibrationEnabled;
+	}
+
+	@Override
+	protected boolean hasExternalListeners() {
+		return containsExternalListener(mOrientationServiceListeners);
+	}
+
+	@Override
+	public void onSensorChanged(int type, float[] values, long timestamp) {
 		synchronized (this) {
 			if (mOrientationSensorThread != null) {
-				Sensor sensor = event.sensor;
-				int type = sensor.getType();
 				if (type == Sensor.TYPE_GRAVITY) {
-					mOrientationSensorThread.pushGravity(event.values);
+					mOrientationSensorThread.pushGravity(values);
 				} else if (type == Sensor.TYPE_MAGNETIC_FIELD) {
-					mOrientationSensorThread.pushGeomagnetic(event.values);
+					if (mMagnetometerCalibrationEnabled) {
+						// Samples of a stationary device add nothing but 
+						// noise, and would fade out rotation samples
+						if (!mStationary) {
+							mMagnetometerCalibrator.push(values);
+						}
+						mMagnetometerCalibrator.calibrate(values, mCalibratedMagneticField);
+						mOrientationSensorThread.pushGeomagnetic(mCalibratedMagneticField);
+					} else {
+						mOrientationSensorThread.pushGeomagnetic(values);
+					}
 				}
 			}
 		}
 	}
 
-	@Override
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// Not used
-	}
 }
@@ -0,0 +1,609 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.kevxu.senselib.LocationService.LocationServiceListener;
+import net.kevxu.senselib.util.GeoUtils;
+import android.location.Location;
+
+/**
+ * Answers nearest and within-radius queries over a static set of points of
+ * interest. Register it as listener of {@link LocationService} to have the
+ * nearest points tracked as user moves.
+ * <p>
+ * Points are stored as unit vectors on the sphere in a k-d tree, laid out 
+ * implicitly in primitive arrays: the node of a range is its middle 
+ * element, with its left and right halves as children, and split axis is 
+ * the one with the largest spread. Chord length between unit vectors grows
+ * with great-circle distance, so tree search works the same anywhere on 
+ * Earth, including poles and the antimeridian. Coordinates are stored as
+ * floats, which is accurate to about a meter.
+ * <p>
+ * Nearest points are tracked with k + 1 neighbors, so that their set can't
+ * change until user moves half of the gap between the k-th and the 
+ * (k + 1)-th. Within that margin, only distances to the cached points are 
+ * updated.
+ * 
+ * @author Kaiwen Xu
+ */
+public class PoiIndex implements LocationServiceListener {
+
+	/**
+	 * Default number of nearest points tracked is 10.
+	 */
+	public static final int DEFAULT_TRACKED_COUNT = 10;
+
+	private final int mSize;
+	private final int[] mIds;
+	private final float[] mX;
+	private final float[] mY;
+	private final float[] mZ;
+	private final byte[] mAxes;
+
+	private List<PoiListener> mPoiListeners;
+
+	// Query point and neighbors found, as a max-heap on squared chord
+	private final double[] mQuery;
+	private int mHeapCapacity;
+	private int mHeapSize;
+	private int[] mHeapPoints;
+	private double[] mHeapChords;
+
+	// Tracking with margin
+	private int mTrackedCount;
+	private boolean mHasTracked;
+	private final double[] mTrackedQuery;
+	private double mTrackedMargin;
+	private int[] mTrackedPoints;
+	private int mTrackedSize;
+	private int[] mTrackedIds;
+	private float[] mTrackedDistances;
+	private long mTrackedQueries;
+	private long mCacheHits;
+
+	public interface PoiListener {
+
+		/**
+		 * Called on every location with the nearest points of interest, 
+		 * nearest first. Arrays should not be modified or kept.
+		 * 
+		 * @param ids ids of points.
+		 * @param distances distances to points in meters.
+		 * @param count number of points, which is less than tracked count if
+		 *            there are fewer points.
+		 */
+		public void onNearestPoisChanged(int[] ids, float[] distances, int count);
+
+	}
+
+	/**
+	 * Build index of points of interest. Arrays are not kept.
+	 * 
+	 * @param ids ids of points, reported in results.
+	 * @param latitudes latitudes of points in degrees.
+	 * @param longitudes longitudes of points in degrees.
+	 */
+	public PoiIndex(int[] ids, double[] latitudes, double[] longitudes) {
+		if (ids.length != latitudes.length || ids.length != longitudes.length) {
+			throw new IllegalArgumentException("Arrays have different lengths.");
+		}
+
+		mSize = ids.length;
+		mIds = ids.clone();
+		mX = new float[mSize];
+		mY = new float[mSize];
+		mZ = new float[mSize];
+		mAxes = new byte[mSize];
+
+		double[] vector = new double[3];
+		for (int i = 0; i < mSize; i++) {
+			toVector(latitudes[i], longitudes[i], vector);
+			mX[i] = (float) vector[0];
+			mY[i] = (float) vector[1];
+			mZ[i] = (float) vector[2];
+		}
+		build(0, mSize);
+
+		mPoiListeners = new CopyOnWriteArrayList<PoiListener>();
+		mQuery = new double[3];
+		mTrackedQuery = new double[3];
+		setHeapCapacity(DEFAULT_TRACKED_COUNT + 1);
+		setTrackedCount(DEFAULT_TRACKED_COUNT);
+	}
+
+	public PoiIndex addListener(PoiListener poiListener) {
+		if (poiListener != null) {
+			mPoiListeners.add(poiListener);
+
+			return this;
+		} else {
+			throw new NullPointerException("PoiListener is null.");
+		}
+	}
+
+	public PoiIndex removeListener(PoiListener poiListener) {
+		if (poiListener != null) {
+			mPoiListeners.remove(poiListener);
+
+			return this;
+		} else {
+			throw new NullPointerException("PoiListener is null.");
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	private static void toVector(double latitude, double longitude, double[] vector) {
+		double latitudeRadians = Math.toRadians(latitude);
+		double longitudeRadians = Math.toRadians(longitude);
+		double cosLatitude = Math.cos(latitudeRadians);
+		vector[0] = cosLatitude * Math.cos(longitudeRadians);
+		vector[1] = cosLatitude * Math.sin(longitudeRadians);
+		vector[2] = Math.sin(latitudeRadians);
+	}
+
+	private static double toDistance(double squaredChord) {
+		return 2.0 * GeoUtils.EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(squaredChord) / 2.0));
+	}
+
+	private static double toSquaredChord(double distance) {
+		double chord = 2.0 * Math.sin(Math.min(distance / GeoUtils.EARTH_RADIUS, Math.PI) / 2.0);
+		return chord * chord;
+	}
+
+	private float getCoordinate(int axis, int i) {
+		return axis == 0 ? mX[i] : (axis == 1 ? mY[i] : mZ[i]);
+	}
+
+	private void build(int low, int high) {
+		if (high - low <= 1) {
+			return;
+		}
+
+		// Split along axis with largest spread
+		float minX = Float.MAX_VALUE, maxX = -Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		float minZ = Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int i = low; i < high; i++) {
+			minX = Math.min(minX, mX[i]);
+			maxX = Math.max(maxX, mX[i]);
+			minY = Math.min(minY, mY[i]);
+			maxY = Math.max(maxY, mY[i]);
+			minZ = Math.min(minZ, mZ[i]);
+			maxZ = Math.max(maxZ, mZ[i]);
+		}
+		int axis = 0;
+		float spread = maxX - minX;
+		if (maxY - minY > spread) {
+			axis = 1;
+			spread = maxY - minY;
+		}
+		if (maxZ - minZ > spread) {
+			axis = 2;
+		}
+
+		int middle = (low + high) >>> 1;
+		select(low, high - 1, middle, axis);
+		mAxes[middle] = (byte) axis;
+
+		build(low, middle);
+		build(middle + 1, high);
+	}
+
+	/**
+	 * Partially sort range [left, right] along axis, so that k-th element is
+	 * in place with smaller ones before it and larger ones after it.
+	 */
+	private void select(int left, int right, int k, int axis) {
+		while (left < right) {
+			float pivot = getCoordinate(axis, (left + right) >>> 1);
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (getCoordinate(axis, i) < pivot) {
+					i++;
+				}
+				while (getCoordinate(axis, j) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = mIds[i];
+		mIds[i] = mIds[j];
+		mIds[j] = id;
+		float x = mX[i];
+		mX[i] = mX[j];
+		mX[j] = x;
+		float y = mY[i];
+		mY[i] = mY[j];
+		mY[j] = y;
+		float z = mZ[i];
+		mZ[i] = mZ[j];
+		mZ[j] = z;
+	}
+
+	private double getSquaredChord(int i) {
+		double dx = mX[i] - mQuery[0];
+		double dy = mY[i] - mQuery[1];
+		double dz = mZ[i] - mQuery[2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private void setHeapCapacity(int capacity) {
+		if (mHeapPoints == null || mHeapPoints.length < capacity) {
+			mHeapPoints = new int[capacity];
+			mHeapChords = new double[capacity];
+		}
+		mHeapCapacity = capacity;
+	}
+
+	private void searchNearest(int low, int high) {
+		if (low >= high) {
+			return;
+		}
+
+		int middle = (low + high) >>> 1;
+		offer(middle, getSquaredChord(middle));
+
+		int axis = mAxes[middle];
+		double difference = mQuery[axis] - getCoordinate(axis, middle);
+		if (difference < 0.0) {
+			searchNearest(low, middle);
+			if (mHeapSize < mHeapCapacity || difference * difference < mHeapChords[0]) {
+				searchNearest(middle + 1, high);
+			}
+		} else {
+			searchNearest(middle + 1, high);
+			if (mHeapSize < mHeapCapacity || difference * difference < mHeapChords[0]) {
+				searchNearest(low, middle);
+			}
+		}
+	}
+
+	private void offer(int point, double squaredChord) {
+		if (mHeapSize < mHeapCapacity) {
+			// Sift up
+			int i = mHeapSize++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (mHeapChords[parent] >= squaredChord) {
+					break;
+				}
+				mHeapPoints[i] = mHeapPoints[parent];
+				mHeapChords[i] = mHeapChords[parent];
+				i = parent;
+			}
+			mHeapPoints[i] = point;
+			mHeapChords[i] = squaredChord;
+		} else if (squaredChord < mHeapChords[0]) {
+			// Replace farthest and sift down
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= mHeapSize) {
+					break;
+				}
+				if (child + 1 < mHeapSize && mHeapChords[child + 1] > mHeapChords[child]) {
+					child++;
+				}
+				if (mHeapChords[child] <= squaredChord) {
+					break;
+				}
+				mHeapPoints[i] = mHeapPoints[child];
+				mHeapChords[i] = mHeapChords[child];
+				i = child;
+			}
+			mHeapPoints[i] = point;
+			mHeapChords[i] = squaredChord;
+		}
+	}
+
+	/**
+	 * Sort heap in place, nearest first.
+	 */
+	private void sortHeap() {
+		for (int end = mHeapSize - 1; end > 0; end--) {
+			int point = mHeapPoints[end];
+			double squaredChord = mHeapChords[end];
+			mHeapPoints[end] = mHeapPoints[0];
+			mHeapChords[end] = mHeapChords[0];
+
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= end) {
+					break;
+				}
+				if (child + 1 < end && mHeapChords[child + 1] > mHeapChords[child]) {
+					child++;
+				}
+				if (mHeapChords[child] <= squaredChord) {
+					break;
+				}
+				mHeapPoints[i] = mHeapPoints[child];
+				mHeapChords[i] = mHeapChords[child];
+				i = child;
+			}
+			mHeapPoints[i] = point;
+			mHeapChords[i] = squaredChord;
+		}
+	}
+
+	/**
+	 * Find the k nearest points.
+	 * 
+	 * @param latitude latitude in degrees.
+	 * @param longitude longitude in degrees.
+	 * @param ids array for ids of points, its length is k.
+	 * @param distances array for distances in meters, with at least the 
+	 *            length of ids, or null.
+	 * @return number of points found, nearest first.
+	 */
+	public synchronized int getNearest(double latitude, double longitude, int[] ids, float[] distances) {
+		toVector(latitude, longitude, mQuery);
+		int count = findNearest(ids.length);
+		for (int i = 0; i < count; i++) {
+			ids[i] = mIds[mHeapPoints[i]];
+			if (distances != null) {
+				distances[i] = (float) toDistance(mHeapChords[i]);
+			}
+		}
+
+		return count;
+	}
+
+	private int findNearest(int k) {
+		setHeapCapacity(k);
+		mHeapSize = 0;
+		searchNearest(0, mSize);
+		sortHeap();
+
+		return mHeapSize;
+	}
+
+	/**
+	 * Find points within radius, in no particular order. If arrays are too
+	 * small, only some of the points are returned.
+	 * 
+	 * @param latitude latitude in degrees.
+	 * @param longitude longitude in degrees.
+	 * @param radius radius in meters.
+	 * @param ids array for ids of points.
+	 * @param distances array for distances in meters, with at least the 
+	 *            length of ids, or null.
+	 * @return number of points returned.
+	 */
+	public synchronized int getWithinRadius(double latitude, double longitude, double radius, int[] ids, float[] distances) {
+		toVector(latitude, longitude, mQuery);
+		return searchRadius(0, mSize, toSquaredChord(radius), ids, distances, 0);
+	}
+
+	private int searchRadius(int low, int high, double maxSquaredChord, int[] ids, float[] distances, int count) {
+		if (low >= high || count >= ids.length) {
+			return count;
+		}
+
+		int middle = (low + high) >>> 1;
+		double squaredChord = getSquaredChord(middle);
+		if (squaredChord <= maxSquaredChord) {
+			ids[count] = mIds[middle];
+			if (distances != null) {
+				distances[count] = (float) toDistance(squaredChord);
+			}
+			count++;
+		}
+
+		int axis = mAxes[middle];
+		double difference = mQuery[axis] - getCoordinate(axis, middle);
+		if (difference <= 0.0 || difference * difference <= maxSquaredChord) {
+			count = searchRadius(low, middle, maxSquaredChord, ids, distances, count);
+		}
+		if (difference >= 0.0 || difference * difference <= maxSquaredChord) {
+			count = searchRadius(middle + 1, high, maxSquaredChord, ids, distances, count);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Set number of nearest points reported to listeners.
+	 * 
+	 * @param trackedCount number of points.
+	 * @return PoiIndex itself.
+	 */
+	public synchronized PoiIndex setTrackedCount(int trackedCount) {
+		if (trackedCount <= 0) {
+			throw new IllegalArgumentException("Tracked count must be positive.");
+		}
+
+		mTrackedCount = trackedCount;
+		mTrackedPoints = new int[trackedCount];
+		mTrackedIds = new int[trackedCount];
+		mTrackedDistances = new float[trackedCount];
+		mHasTracked = false;
+
+		return this;
+	}
+
+	public synchronized int getTrackedCount() {
+		return mTrackedCount;
+	}
+
+	/**
+	 * Update nearest points for a new position, reusing previous result if
+	 * position moved within its margin.
+	 * 
+	 * @param latitude latitude in degrees.
+	 * @param longitude longitude in degrees.
+	 * @return number of nearest points.
+	 */
+	private int track(double latitude, double longitude) {
+		toVector(latitude, longitude, mQuery);
+		mTrackedQueries++;
+
+		double dx = mQuery[0] - mTrackedQuery[0];
+		double dy = mQuery[1] - mTrackedQuery[1];
+		double dz = mQuery[2] - mTrackedQuery[2];
+		if (mHasTracked && toDistance(dx * dx + dy * dy + dz * dz) < mTrackedMargin) {
+			// Same points, only their order may have changed
+			mCacheHits++;
+			mHeapSize = 0;
+			setHeapCapacity(mTrackedSize);
+			for (int i = 0; i < mTrackedSize; i++) {
+				offer(mTrackedPoints[i], getSquaredChord(mTrackedPoints[i]));
+			}
+			sortHeap();
+		} else {
+			int count = findNearest(mTrackedCount + 1);
+			if (count > mTrackedCount) {
+				mTrackedMargin = (toDistance(mHeapChords[mTrackedCount]) - toDistance(mHeapChords[mTrackedCount - 1])) / 2.0;
+				count = mTrackedCount;
+			} else {
+				// All points are tracked
+				mTrackedMargin = Double.MAX_VALUE;
+			}
+			System.arraycopy(mQuery, 0, mTrackedQuery, 0, 3);
+			mHasTracked = true;
+			mHeapSize = count;
+		}
+
+		mTrackedSize = mHeapSize;
+		for (int i = 0; i < mTrackedSize; i++) {
+			mTrackedPoints[i] = mHeapPoints[i];
+			mTrackedIds[i] = mIds[mHeapPoints[i]];
+			mTrackedDistances[i] = (float) toDistance(mHeapChords[i]);
+		}
+
+		return mTrackedSize;
+	}
+
+	/**
+	 * Get share of tracked updates answered from cached points.
+	 * 
+	 * @return cache hit rate in [0, 1].
+	 */
+	public synchronized float getCacheHitRate() {
+		return mTrackedQueries == 0 ? 0.0F : (float) mCacheHits / mTrackedQueries;
+	}
+
+	@Override
+	public void onServiceLevelChanged(int level) {
+		// Nearest points only depend on location
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		synchronized (this) {
+			int count = track(location.getLatitude(), location.getLongitude());
+			for (PoiListener listener : mPoiListeners) {
+				listener.onNearestPoisChanged(mTrackedIds, mTrackedDistances, count);
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		int size = 1000000;
+		Random random = new Random(0);
+		double[] position = new double[2];
+
+		// Points within 100 km x 100 km
+		int[] ids = new int[size];
+		double[] latitudes = new double[size];
+		double[] longitudes = new double[size];
+		for (int i = 0; i < size; i++) {
+			GeoUtils.offset(47.0, 8.0, (random.nextDouble() - 0.5) * 100000.0, (random.nextDouble() - 0.5) * 100000.0, position);
+			ids[i] = i;
+			latitudes[i] = position[0];
+			longitudes[i] = position[1];
+		}
+
+		long start = System.nanoTime();
+		PoiIndex index = new PoiIndex(ids, latitudes, longitudes);
+		System.out.printf("Built index of %d points in %.1f ms%n", size, (System.nanoTime() - start) / 1e6);
+
+		int queries = 100000;
+		int[] nearestIds = new int[10];
+		float[] distances = new float[10];
+		int[] radiusIds = new int[1000];
+		double[] queryLatitudes = new double[queries];
+		double[] queryLongitudes = new double[queries];
+		for (int i = 0; i < queries; i++) {
+			GeoUtils.offset(47.0, 8.0, (random.nextDouble() - 0.5) * 100000.0, (random.nextDouble() - 0.5) * 100000.0, position);
+			queryLatitudes[i] = position[0];
+			queryLongitudes[i] = position[1];
+		}
+
+		start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			index.getNearest(queryLatitudes[i], queryLongitudes[i], nearestIds, distances);
+		}
+		System.out.printf("10 nearest: %.0f ns/query%n", (double) (System.nanoTime() - start) / queries);
+
+		start = System.nanoTime();
+		long found = 0;
+		for (int i = 0; i < queries; i++) {
+			found += index.getWithinRadius(queryLatitudes[i], queryLongitudes[i], 200.0, radiusIds, null);
+		}
+		System.out.printf("Within 200 m: %.0f ns/query, %.1f points/query%n",
+				(double) (System.nanoTime() - start) / queries, (double) found / queries);
+
+		// Walk at 1.4 m/s with 1 Hz updates
+		double north = 0.0;
+		double east = 0.0;
+		double heading = 0.0;
+		start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			heading += random.nextGaussian() * 0.1;
+			north += 1.4 * Math.cos(heading);
+			east += 1.4 * Math.sin(heading);
+			GeoUtils.offset(47.0, 8.0, north, east, position);
+			index.track(position[0], position[1]);
+		}
+		System.out.printf("Tracking 10 nearest while walking: %.0f ns/update, %.0f%% from cache%n",
+				(double) (System.nanoTime() - start) / queries, index.getCacheHitRate() * 100.0);
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.List;
+import java.util.Locale;
+
+import android.hardware.Sensor;
+
+/**
+ * Default sensor selection policy. Candidates are ranked by whether they are
+ * backed by hardware, their power, min delay and resolution, with order of
+ * the criteria depending on preference. Ties are broken by the order
+ * SensorManager reports the sensors in.
+ * <p>
+ * Android doesn't tell whether a sensor is virtual, so sensors whose name or
+ * vendor suggests software fusion are considered virtual.
+ * 
+ * @author Kaiwen Xu
+ */
+public class RankingSensorSelectionPolicy implements SensorSelectionPolicy {
+
+	/**
+	 * Prefer sensors using least power, among those fast enough for the 
+	 * rate services use. This is the default.
+	 */
+	public static final int PREFER_LOWEST_POWER = 0;
+
+	/**
+	 * Prefer sensors with shortest min delay.
+	 */
+	public static final int PREFER_LOWEST_LATENCY = 1;
+
+	/**
+	 * Sensors with larger min delay can't deliver SENSOR_DELAY_GAME (20 ms),
+	 * which services use while moving.
+	 */
+	private static final int MAX_ADEQUATE_MIN_DELAY_US = 20000;
+
+	private static final String[] VIRTUAL_SENSOR_KEYWORDS = { 
+		"virtual", "software", "fusion", "aosp", "google", "android"
+	};
+
+	private final int mPreference;
+
+	public RankingSensorSelectionPolicy() {
+		this(PREFER_LOWEST_POWER);
+	}
+
+	/**
+	 * @param preference RankingSensorSelectionPolicy.PREFER_*.
+	 */
+	public RankingSensorSelectionPolicy(int preference) {
+		mPreference = preference;
+	}
+
+	/**
+	 * Get preference.
+	 * 
+	 * @return RankingSensorSelectionPolicy.PREFER_*.
+	 */
+	public int getPreference() {
+		return mPreference;
+	}
+
+	@Override
+	public Sensor selectSensor(int type, List<Sensor> candidates) {
+		Sensor best = null;
+
+		for (Sensor candidate : candidates) {
+			if (best == null || compare(candidate, best) < 0) {
+				best = candidate;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Compare two sensors of the same type.
+	 * 
+	 * @return negative if s1 ranks before s2, positive if after, 0 if tied.
+	 */
+	private int compare(Sensor s1, Sensor s2) {
+		int result;
+
+		if (mPreference == PREFER_LOWEST_LATENCY) {
+			result = compareInt(getEffectiveMinDelay(s1), getEffectiveMinDelay(s2));
+			if (result == 0) {
+				result = compareBoolean(isVirtual(s1), isVirtual(s2));
+			}
+			if (result == 0) {
+				result = Float.compare(s1.getPower(), s2.getPower());
+			}
+		} else {
+			result = compareBoolean(!isAdequate(s1), !isAdequate(s2));
+			if (result == 0) {
+				result = compareBoolean(isVirtual(s1), isVirtual(s2));
+			}
+			if (result == 0) {
+				result = Float.compare(s1.getPower(), s2.getPower());
+			}
+			if (result == 0) {
+				result = compareInt(getEffectiveMinDelay(s1), getEffectiveMinDelay(s2));
+			}
+		}
+
+		if (result == 0) {
+			// Smaller resolution is finer
+			result = Float.compare(s1.getResolution(), s2.getResolution());
+		}
+
+		return result;
+	}
+
+	private static int compareInt(int i1, int i2) {
+		return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+	}
+
+	/**
+	 * False ranks before true.
+	 */
+	private static int compareBoolean(boolean b1, boolean b2) {
+		return b1 == b2 ? 0 : (b1 ? 1 : -1);
+	}
+
+	/**
+	 * Min delay of 0 means sensor only reports on change, which has no
+	 * guaranteed latency.
+	 */
+	private static int getEffectiveMinDelay(Sensor sensor) {
+		int minDelay = sensor.getMinDelay();
+
+		return minDelay > 0 ? minDelay : Integer.MAX_VALUE;
+	}
+
+	private static boolean isAdequate(Sensor sensor) {
+		return sensor.getMinDelay() <= MAX_ADEQUATE_MIN_DELAY_US;
+	}
+
+	/**
+	 * Guess whether sensor is computed in software from other sensors.
+	 * 
+	 * @param sensor sensor.
+	 * @return true if sensor looks virtual.
+	 */
+	public static boolean isVirtual(Sensor sensor) {
+		String name = sensor.getName() != null ? sensor.getName().toLowerCase(Locale.US) : "";
+		String vendor = sensor.getVendor() != null ? sensor.getVendor().toLowerCase(Locale.US) : "";
+
+		for (String keyword : VIRTUAL_SENSOR_KEYWORDS) {
+			if (name.contains(keyword) || vendor.contains(keyword)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "RankingSensorSelectionPolicy[preference=" 
+				+ (mPreference == PREFER_LOWEST_LATENCY ? "lowest latency" : "lowest power") + "]";
+	}
+
+}
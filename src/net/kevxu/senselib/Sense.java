@@ -23,10 +23,24 @@
 
 package net.kevxu.senselib;
 
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import net.kevxu.senselib.ActivityRecognitionService.ActivityListener;
+import net.kevxu.senselib.MotionStateDetector.MotionStateListener;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -36,6 +50,11 @@ import android.util.Log;
  * call start() to start the SenseLib. After SenseLib is no longer needed, 
  * remember to call stop().
  * 
+ * Services are activated lazily. After start(), a service only runs while it 
+ * or a service depending on it has listeners, so services which are 
+ * initialized but not listened to cost nothing. If you only poll snapshot(),
+ * use acquire() to keep services running.
+ * 
  * @author Kaiwen Xu
  */
 public class Sense {
@@ -59,62 +78,195 @@ public class Sense {
 	 */
 	public static final int SERVICE_LOCATION = 0x7;
 	
+	/**
+	 * Activity recognition service. It only relies on sensors, but it's 
+	 * initialized along with step detector service, and started while step
+	 * detector service or location service runs, to gate them by activity.
+	 */
+	public static final int SERVICE_ACTIVITY = 0x8;
+	
 	/**
 	 * All services available.
 	 */
 	public static final int SERVICE_ALL = 0xFFFFFFFF;
+	
+	/**
+	 * Default time services stay paused before they are fully stopped is
+	 * 60 seconds.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+	
+	// Name of preferences where services save state across restarts
+	private static final String STATE_PREFERENCES_NAME = "net.kevxu.senselib.state";
+	
+	/**
+	 * Derive gravity and linear acceleration from accelerometer only when 
+	 * the device doesn't have those sensors. This is the default.
+	 */
+	public static final int DERIVED_SENSORS_FALLBACK = 0;
+	
+	/**
+	 * Always derive gravity and linear acceleration from accelerometer, 
+	 * which avoids power and latency of framework sensor fusion.
+	 */
+	public static final int DERIVED_SENSORS_FORCED = 1;
+	
+	/**
+	 * Never derive gravity and linear acceleration.
+	 */
+	public static final int DERIVED_SENSORS_DISABLED = 2;
 
-	private static Sense mSense;
+	private static volatile Sense mSense;
+	private static ExecutorService mInitExecutor;
 	
 	private Context mContext;
+	private SensorHub mSensorHub;
+	private SnapshotPublisher mSnapshotPublisher;
 	
 	private List<SensorService> mServices;
 	private OrientationService mOrientationService;
 	private StepDetector mStepDetector;
 	private LocationService mLocationService;
+	private ActivityRecognitionService mActivityRecognitionService;
+	
+	private CpuAccounting mCpuAccounting;
+	private ActivityListener mActivityController;
 	
-	private Sense(Context context, int services) throws SensorNotAvailableException {
+	private volatile boolean mDutyCyclingEnabled;
+	private MotionStateListener mDutyCycleController;
+	
+	private Handler mHandler;
+	private Runnable mTeardown;
+	private long mIdleTimeout;
+	private volatile boolean mPaused;
+	private boolean mTornDown;
+	
+	private boolean mStarted;
+	private Set<SensorService> mActiveServices;
+	private int mOrientationAcquired;
+	private int mStepDetectorAcquired;
+	private int mLocationAcquired;
+	private int mActivityAcquired;
+	private SensorService.DemandListener mDemandController;
+	private Runnable mDemandUpdate;
+	
+	private volatile boolean mWarmStartEnabled;
+	private SharedPreferences mStatePreferences;
+	
+	private Sense(Context context, int services, SensorSelectionPolicy sensorSelectionPolicy) throws SensorNotAvailableException {
 		mContext = context;
+		mSensorHub = new SensorHub(mContext);
+		if (sensorSelectionPolicy != null) {
+			mSensorHub.setSensorSelectionPolicy(sensorSelectionPolicy);
+		}
+		mSnapshotPublisher = new SnapshotPublisher();
 		mServices = new LinkedList<SensorService>();
+		mDutyCyclingEnabled = true;
+		mDutyCycleController = new DutyCycleController();
+		mCpuAccounting = new CpuAccounting();
+		mActivityController = new ActivityController();
+		mHandler = new Handler(mSensorHub.getLooper());
+		mTeardown = new Teardown();
+		mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+		mPaused = false;
+		mTornDown = false;
+		mStarted = false;
+		mActiveServices = new HashSet<SensorService>();
+		mDemandController = new DemandController();
+		mDemandUpdate = new DemandUpdate();
+		mWarmStartEnabled = true;
 		
 		initializeServices(services);
 	}
 	
-	private void initializeServices(int services) throws SensorNotAvailableException {
+	private synchronized void initializeServices(int services) throws SensorNotAvailableException {
 		if ((services & SERVICE_ORIENTATION) == SERVICE_ORIENTATION && mOrientationService == null) {
 			// Initialize OrientationService.
-			mOrientationService = new OrientationService(mContext);
+			mOrientationService = new OrientationService(mContext, mSensorHub);
+			mOrientationService.setSnapshotPublisher(mSnapshotPublisher);
+			mOrientationService.setDemandListener(mDemandController);
+			mOrientationService.setCpuAccounting(mCpuAccounting);
 			mServices.add(mOrientationService);
 		} else if ((services & SERVICE_ORIENTATION) != SERVICE_ORIENTATION && mOrientationService != null) {
 			// Remove OrientationService.
 			mServices.remove(mOrientationService);
+			mActiveServices.remove(mOrientationService);
 			mOrientationService.stop();
 			mOrientationService = null;
 		}
 		
 		if ((services & SERVICE_STEP_DETECTOR) == SERVICE_STEP_DETECTOR && mStepDetector == null) {
 			// Initialize StepDetector.
-			mStepDetector = new StepDetector(mContext, mOrientationService);
+			mStepDetector = new StepDetector(mContext, mSensorHub, mOrientationService);
+			mStepDetector.getMotionStateDetector().addListener(mDutyCycleController);
+			mStepDetector.setSnapshotPublisher(mSnapshotPublisher);
+			mStepDetector.setDemandListener(mDemandController);
+			mStepDetector.setCpuAccounting(mCpuAccounting);
 			mServices.add(mStepDetector);
 		} else if ((services & SERVICE_STEP_DETECTOR) != SERVICE_STEP_DETECTOR && mStepDetector != null) {
 			// Remove StepDetector.
 			mServices.remove(mStepDetector);
+			mActiveServices.remove(mStepDetector);
 			mStepDetector.stop();
 			mStepDetector = null;
 		}
 		
 		if ((services & SERVICE_LOCATION) == SERVICE_LOCATION && mLocationService == null) {
 			// Initialze LocationService.
-			mLocationService = new LocationService(mContext, mStepDetector);
+			mLocationService = new LocationService(mContext, mSensorHub, mStepDetector);
+			mLocationService.setSnapshotPublisher(mSnapshotPublisher);
+			mLocationService.setDemandListener(mDemandController);
+			mLocationService.setCpuAccounting(mCpuAccounting);
 			mServices.add(mLocationService);
 		} else if ((services & SERVICE_LOCATION) != SERVICE_LOCATION && mLocationService != null) {
 			// Remove LocationService.
 			mServices.remove(mLocationService);
-			mStepDetector.stop();
-			mStepDetector = null;
+			mActiveServices.remove(mLocationService);
+			mLocationService.stop();
+			mLocationService = null;
+		}
+		
+		// Step detection is gated by activity, so it implies activity 
+		// recognition, unless its sensors are missing
+		boolean activityRequested = (services & SERVICE_ACTIVITY) == SERVICE_ACTIVITY;
+		boolean activityImplied = mStepDetector != null;
+		ActivityRecognitionService activityRecognitionService = null;
+		if ((activityRequested || activityImplied) && mActivityRecognitionService == null) {
+			try {
+				activityRecognitionService = new ActivityRecognitionService(mContext, mSensorHub);
+			} catch (SensorNotAvailableException e) {
+				if (activityRequested) {
+					throw e;
+				}
+				Log.w(TAG, "Steps are not gated by activity: " + e.getMessage());
+			}
+		}
+		
+		if (activityRecognitionService != null) {
+			// Initialize ActivityRecognitionService.
+			mActivityRecognitionService = activityRecognitionService;
+			mActivityRecognitionService.setSnapshotPublisher(mSnapshotPublisher);
+			mActivityRecognitionService.setDemandListener(mDemandController);
+			mActivityRecognitionService.setCpuAccounting(mCpuAccounting);
+			mActivityRecognitionService.setActivityGate(mActivityController);
+			mServices.add(mActivityRecognitionService);
+		} else if (!activityRequested && !activityImplied && mActivityRecognitionService != null) {
+			// Remove ActivityRecognitionService.
+			mServices.remove(mActivityRecognitionService);
+			mActiveServices.remove(mActivityRecognitionService);
+			mActivityRecognitionService.setActivityGate(null);
+			mActivityRecognitionService.stop();
+			mActivityRecognitionService = null;
+			
+			// Nothing is gated without activity recognition
+			for (SensorService service : mServices) {
+				service.setActivity(ActivityRecognitionService.ACTIVITY_UNKNOWN);
+			}
 		}
 		
 		Log.i(TAG, "Enabled services: " + mServices);
+		
+		updateActiveServices();
 	}
 	
 	/**
@@ -144,27 +296,142 @@ public class Sense {
 	 * @throws SensorNotAvailableException If sensor required by a specific 
 	 * service is not present, SensorNotAvailableException will be thrown. 
 	 */
-	public static Sense init(Context context, int services) throws SensorNotAvailableException {
+	public static synchronized Sense init(Context context, int services) throws SensorNotAvailableException {
+		return init(context, services, null);
+	}
+	
+	/**
+	 * Same as init(Context, int), with policy used to choose among sensors
+	 * of the same type. Policy only applies to sensors not chosen yet, so it
+	 * should be passed on the first init.
+	 * 
+	 * @param context Context of current activity or application.
+	 * @param services Bit masked argument, same as the one for init().
+	 * @param sensorSelectionPolicy sensor selection policy, null to use 
+	 * RankingSensorSelectionPolicy preferring lowest power.
+	 * @return Sense instance.
+	 * @throws SensorNotAvailableException If sensor required by a specific 
+	 * service is not present, SensorNotAvailableException will be thrown. 
+	 */
+	public static synchronized Sense init(Context context, int services, SensorSelectionPolicy sensorSelectionPolicy) throws SensorNotAvailableException {
 		if (mSense == null) {
-			mSense = new Sense(context.getApplicationContext(), services);
+			mSense = new Sense(context.getApplicationContext(), services, sensorSelectionPolicy);
 		} else {
+			if (sensorSelectionPolicy != null) {
+				mSense.mSensorHub.setSensorSelectionPolicy(sensorSelectionPolicy);
+			}
 			mSense.initializeServices(services);
 		}
 		
 		return mSense;
 	}
 	
+	/**
+	 * Used for receiving result of initAsync().
+	 */
+	public interface InitCallback {
+		
+		/**
+		 * Called on main thread when Sense is initialized.
+		 * 
+		 * @param sense Sense instance.
+		 */
+		public void onInitialized(Sense sense);
+		
+		/**
+		 * Called on main thread when Sense fails to initialize.
+		 * 
+		 * @param e exception thrown by init().
+		 */
+		public void onInitFailed(SensorNotAvailableException e);
+		
+	}
+	
+	/**
+	 * Same as init(Context, int), but runs on a background thread, so sensor
+	 * enumeration and thread creation don't block the caller. Sensor list is
+	 * probed only once per process, so later calls are cheap.
+	 * 
+	 * @param context Context of current activity or application.
+	 * @param services Bit masked argument, same as the one for init().
+	 * @param callback callback called on main thread when done, can be null.
+	 * @return Future of Sense instance. Its get() throws ExecutionException 
+	 * wrapping SensorNotAvailableException if init failed.
+	 */
+	public static Future<Sense> initAsync(Context context, int services, InitCallback callback) {
+		final Context applicationContext = context.getApplicationContext();
+		final int initServices = services;
+		final InitCallback initCallback = callback;
+		final Handler mainHandler = new Handler(Looper.getMainLooper());
+		
+		return getInitExecutor().submit(new Callable<Sense>() {
+
+			@Override
+			public Sense call() throws SensorNotAvailableException {
+				try {
+					final Sense sense = init(applicationContext, initServices);
+					if (initCallback != null) {
+						mainHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								initCallback.onInitialized(sense);
+							}
+							
+						});
+					}
+					
+					return sense;
+				} catch (final SensorNotAvailableException e) {
+					if (initCallback != null) {
+						mainHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								initCallback.onInitFailed(e);
+							}
+							
+						});
+					}
+					
+					throw e;
+				}
+			}
+			
+		});
+	}
+	
+	private static synchronized ExecutorService getInitExecutor() {
+		if (mInitExecutor == null) {
+			mInitExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SenseInitThread");
+					thread.setDaemon(true);
+					
+					return thread;
+				}
+				
+			});
+		}
+		
+		return mInitExecutor;
+	}
+	
 	/**
 	 * Get Sense instance.
 	 * 
 	 * @return Sense instance.
 	 */
 	public static Sense getInstance() {
-		if (mSense == null) {
+		// Not synchronized, so that it doesn't wait for initAsync()
+		Sense sense = mSense;
+		if (sense == null) {
 			throw new SenseServiceException("init() has to be called.");
 		}
 		
-		return mSense;
+		return sense;
 	}
 	
 	/**
@@ -177,25 +444,515 @@ public class Sense {
 	}
 
 	/**
-	 * Call to start all the services you have initialized.
+	 * Call to start all the services you have initialized. If services are
+	 * paused, it's the same as calling resume().
+	 */
+	public synchronized void start() {
+		if (mPaused) {
+			resume();
+			return;
+		}
+		
+		mStarted = true;
+		updateActiveServices();
+	}
+
+	/**
+	 * Call to stop all the services you have initialized.
 	 */
-	public void start() {
+	public synchronized void stop() {
+		mHandler.removeCallbacks(mTeardown);
+		mHandler.removeCallbacks(mDemandUpdate);
+		mPaused = false;
+		mTornDown = false;
+		mStarted = false;
+		
 		for (SensorService service : mServices) {
 			if (service != null) {
-				service.start();
+				if (mActiveServices.contains(service)) {
+					stopService(service);
+				} else {
+					service.stop();
+				}
+			}
+		}
+		mActiveServices.clear();
+	}
+	
+	/**
+	 * Start service, restoring state saved by its last stop if warm start
+	 * is enabled.
+	 */
+	private void startService(SensorService service) {
+		if (mWarmStartEnabled) {
+			service.restoreState(getStatePreferences());
+		}
+		
+		service.start();
+	}
+	
+	/**
+	 * Stop service, saving its state if warm start is enabled.
+	 */
+	private void stopService(SensorService service) {
+		service.stop();
+		
+		if (mWarmStartEnabled) {
+			service.saveState(getStatePreferences());
+		}
+	}
+	
+	private synchronized SharedPreferences getStatePreferences() {
+		if (mStatePreferences == null) {
+			mStatePreferences = mContext.getSharedPreferences(STATE_PREFERENCES_NAME, Context.MODE_PRIVATE);
+		}
+		
+		return mStatePreferences;
+	}
+	
+	/**
+	 * Enable or disable warm start. When enabled, services save compact 
+	 * state such as last location fix when stopped, and restore it when
+	 * started, so that useful callbacks are delivered right after start 
+	 * instead of after sensors and GPS settle. Each service discards state 
+	 * which is too old. It's enabled by default.
+	 * 
+	 * @param enabled true to enable warm start.
+	 */
+	public void setWarmStartEnabled(boolean enabled) {
+		mWarmStartEnabled = enabled;
+	}
+	
+	/**
+	 * Check whether warm start is enabled.
+	 * 
+	 * @return true if enabled, false otherwise.
+	 */
+	public boolean isWarmStartEnabled() {
+		return mWarmStartEnabled;
+	}
+	
+	/**
+	 * Discard state saved by services for warm start.
+	 */
+	public void clearSavedState() {
+		getStatePreferences().edit().clear().apply();
+	}
+	
+	/**
+	 * Keep services running even when they have no listeners, for example 
+	 * when they are only read through snapshot(). Each call has to be 
+	 * paired with a call to release() with the same argument.
+	 * 
+	 * @param services Bit masked argument, same as the one for init().
+	 */
+	public synchronized void acquire(int services) {
+		updateAcquired(services, 1);
+	}
+	
+	/**
+	 * Release services acquired by acquire().
+	 * 
+	 * @param services Bit masked argument, same as the one for acquire().
+	 */
+	public synchronized void release(int services) {
+		updateAcquired(services, -1);
+	}
+	
+	private void updateAcquired(int services, int delta) {
+		if ((services & SERVICE_ORIENTATION) == SERVICE_ORIENTATION) {
+			mOrientationAcquired = Math.max(mOrientationAcquired + delta, 0);
+		}
+		
+		if ((services & SERVICE_STEP_DETECTOR) == SERVICE_STEP_DETECTOR) {
+			mStepDetectorAcquired = Math.max(mStepDetectorAcquired + delta, 0);
+		}
+		
+		if ((services & SERVICE_LOCATION) == SERVICE_LOCATION) {
+			mLocationAcquired = Math.max(mLocationAcquired + delta, 0);
+		}
+		
+		if ((services & SERVICE_ACTIVITY) == SERVICE_ACTIVITY) {
+			mActivityAcquired = Math.max(mActivityAcquired + delta, 0);
+		}
+		
+		updateActiveServices();
+	}
+	
+	/**
+	 * Get services demanded by listeners or acquire(). Services a demanded 
+	 * service depends on are implied by its SERVICE_* mask.
+	 * 
+	 * @return Bit masked services.
+	 */
+	private int getDemandedServices() {
+		int demanded = 0;
+		
+		if (mOrientationService != null 
+				&& (mOrientationAcquired > 0 || mOrientationService.hasExternalListeners())) {
+			demanded |= SERVICE_ORIENTATION;
+		}
+		
+		if (mStepDetector != null 
+				&& (mStepDetectorAcquired > 0 || mStepDetector.hasExternalListeners())) {
+			demanded |= SERVICE_STEP_DETECTOR;
+		}
+		
+		if (mLocationService != null 
+				&& (mLocationAcquired > 0 || mLocationService.hasExternalListeners())) {
+			demanded |= SERVICE_LOCATION;
+		}
+		
+		// Activity recognition gates step detection, so it runs whenever
+		// steps are needed
+		if (mActivityRecognitionService != null 
+				&& (mActivityAcquired > 0 || mActivityRecognitionService.hasExternalListeners()
+						|| (demanded & SERVICE_STEP_DETECTOR) == SERVICE_STEP_DETECTOR)) {
+			demanded |= SERVICE_ACTIVITY;
+		}
+		
+		return demanded;
+	}
+	
+	private int getServiceMask(SensorService service) {
+		if (service == mOrientationService) {
+			return SERVICE_ORIENTATION;
+		} else if (service == mStepDetector) {
+			return SERVICE_STEP_DETECTOR;
+		} else if (service == mLocationService) {
+			return SERVICE_LOCATION;
+		} else {
+			return SERVICE_ACTIVITY;
+		}
+	}
+	
+	/**
+	 * Start services which are demanded and stop those which are not. 
+	 * Dependencies are started before and stopped after services depending
+	 * on them.
+	 */
+	private synchronized void updateActiveServices() {
+		if (!mStarted || mPaused) {
+			return;
+		}
+		
+		int demanded = getDemandedServices();
+		
+		for (int i = mServices.size() - 1; i >= 0; i--) {
+			SensorService service = mServices.get(i);
+			int mask = getServiceMask(service);
+			if ((demanded & mask) != mask && mActiveServices.remove(service)) {
+				stopService(service);
+				Log.i(TAG, service.getClass().getSimpleName() + " stopped as it has no listeners.");
+			}
+		}
+		
+		for (SensorService service : mServices) {
+			int mask = getServiceMask(service);
+			if ((demanded & mask) == mask && mActiveServices.add(service)) {
+				service.markResumed();
+				startService(service);
 			}
 		}
 	}
+	
+	/**
+	 * Schedule active services update when listeners change. Services are
+	 * started and stopped on sensor thread, so that a listener can be 
+	 * removed from inside a callback without stopping the thread it's 
+	 * running on.
+	 */
+	private final class DemandController implements SensorService.DemandListener {
+
+		@Override
+		public void onDemandChanged(SensorService service) {
+			mHandler.removeCallbacks(mDemandUpdate);
+			mHandler.post(mDemandUpdate);
+		}
+		
+	}
+	
+	private final class DemandUpdate implements Runnable {
 
+		@Override
+		public void run() {
+			updateActiveServices();
+		}
+		
+	}
+	
 	/**
-	 * Call to stop all the services you have initialized.
+	 * Pause all the services you have initialized. Sensors and GPS are 
+	 * released, but worker threads and their state, such as last location 
+	 * fix, are kept, so that resume() is much cheaper than start(). Call it 
+	 * in onPause() of your activity. If not resumed within idle timeout, 
+	 * services are fully stopped.
 	 */
-	public void stop() {
+	public synchronized void pause() {
+		if (mPaused) {
+			return;
+		}
+		
+		mPaused = true;
+		mTornDown = false;
+		
 		for (SensorService service : mServices) {
-			if (service != null) {
-				service.stop();
+			if (mActiveServices.contains(service)) {
+				service.pause();
+			}
+		}
+		
+		mHandler.postDelayed(mTeardown, mIdleTimeout);
+		Log.i(TAG, "Services paused.");
+	}
+	
+	/**
+	 * Resume all the services paused by pause(). Call it in onResume() of 
+	 * your activity. If services have been fully stopped after idle 
+	 * timeout, they are started again.
+	 */
+	public synchronized void resume() {
+		if (!mPaused) {
+			return;
+		}
+		
+		mHandler.removeCallbacks(mTeardown);
+		mPaused = false;
+		
+		for (SensorService service : mServices) {
+			if (mActiveServices.contains(service)) {
+				service.markResumed();
+				if (mTornDown) {
+					startService(service);
+				} else {
+					service.resume();
+				}
+			}
+		}
+		
+		// Motion state is kept while paused, so services are put back to
+		// stationary if they were before.
+		if (!mTornDown && mDutyCyclingEnabled && mStepDetector != null
+				&& mStepDetector.getMotionStateDetector().getState() == MotionStateDetector.STATE_STATIONARY) {
+			for (SensorService service : mServices) {
+				service.setStationary(true);
+			}
+		}
+		
+		// Activity changes aren't applied while paused.
+		if (mActivityRecognitionService != null) {
+			int activity = mActivityRecognitionService.getActivity();
+			for (SensorService service : mServices) {
+				service.setActivity(activity);
+			}
+		}
+		
+		Log.i(TAG, mTornDown ? "Services restarted." : "Services resumed.");
+		mTornDown = false;
+		
+		// Listeners may have changed while paused.
+		updateActiveServices();
+	}
+	
+	/**
+	 * Check whether services are paused.
+	 * 
+	 * @return true if paused, false otherwise.
+	 */
+	public boolean isPaused() {
+		return mPaused;
+	}
+	
+	/**
+	 * Set how long services stay paused before they are fully stopped.
+	 * Takes effect from next pause().
+	 * 
+	 * @param idleTimeout idle timeout in milliseconds.
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		mIdleTimeout = idleTimeout;
+	}
+	
+	/**
+	 * Get how long services stay paused before they are fully stopped.
+	 * Default is Sense.DEFAULT_IDLE_TIMEOUT.
+	 * 
+	 * @return idle timeout in milliseconds.
+	 */
+	public synchronized long getIdleTimeout() {
+		return mIdleTimeout;
+	}
+	
+	/**
+	 * Fully stop services which have been paused for idle timeout.
+	 */
+	private final class Teardown implements Runnable {
+
+		@Override
+		public void run() {
+			synchronized (Sense.this) {
+				if (!mPaused || mTornDown) {
+					return;
+				}
+				
+				for (SensorService service : mServices) {
+					if (mActiveServices.contains(service)) {
+						stopService(service);
+					}
+				}
+				
+				mTornDown = true;
+				Log.i(TAG, "Services stopped after idle timeout.");
 			}
 		}
+		
+	}
+	
+	/**
+	 * Set when gravity and linear acceleration are derived from raw 
+	 * accelerometer in the library, instead of using sensors provided by
+	 * the device. Takes effect the next time services register sensors, 
+	 * such as start() or resume().
+	 * 
+	 * @param derivedSensorMode Sense.DERIVED_SENSORS_*.
+	 */
+	public void setDerivedSensorMode(int derivedSensorMode) {
+		mSensorHub.setDerivedSensorMode(derivedSensorMode);
+	}
+	
+	/**
+	 * Get when gravity and linear acceleration are derived from raw 
+	 * accelerometer. Default is Sense.DERIVED_SENSORS_FALLBACK.
+	 * 
+	 * @return Sense.DERIVED_SENSORS_*.
+	 */
+	public int getDerivedSensorMode() {
+		return mSensorHub.getDerivedSensorMode();
+	}
+	
+	/**
+	 * Get policy used to choose among sensors of the same type.
+	 * 
+	 * @return sensor selection policy.
+	 */
+	public SensorSelectionPolicy getSensorSelectionPolicy() {
+		return mSensorHub.getSensorSelectionPolicy();
+	}
+	
+	/**
+	 * Get sensors chosen for initialized services.
+	 * 
+	 * @return unmodifiable map from Sensor.TYPE_* to sensor.
+	 */
+	public Map<Integer, Sensor> getSelectedSensors() {
+		return mSensorHub.getSelectedSensors();
+	}
+	
+	/**
+	 * Get latest state of all initialized services. Snapshot is immutable and
+	 * published atomically by the services, so values from different 
+	 * services in it are always consistent with each other. This call never 
+	 * blocks and never allocates, so it's suitable for polling from a render 
+	 * loop.
+	 * 
+	 * @return latest snapshot.
+	 */
+	public SenseSnapshot snapshot() {
+		return mSnapshotPublisher.getSnapshot();
+	}
+	
+	/**
+	 * Enable or disable motion-gated duty cycling. When enabled, services 
+	 * lower their sensor rates and park their worker threads while 
+	 * StepDetector's motion state detector reports the device is stationary.
+	 * It's enabled by default.
+	 * 
+	 * @param enabled true to enable duty cycling.
+	 */
+	public void setDutyCyclingEnabled(boolean enabled) {
+		mDutyCyclingEnabled = enabled;
+		
+		if (!enabled) {
+			postStationary(false);
+		}
+	}
+	
+	/**
+	 * Check whether motion-gated duty cycling is enabled.
+	 * 
+	 * @return true if enabled, false otherwise.
+	 */
+	public boolean isDutyCyclingEnabled() {
+		return mDutyCyclingEnabled;
+	}
+	
+	/**
+	 * Apply stationary state to all initialized services on sensor thread
+	 * with Sense locked, same as other changes to services. It's skipped 
+	 * unless services are running, since resume() applies it again.
+	 * 
+	 * @param stationary true if device is stationary.
+	 */
+	private void postStationary(final boolean stationary) {
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (Sense.this) {
+					if (mPaused || !mStarted || (stationary && !mDutyCyclingEnabled)) {
+						return;
+					}
+					
+					Log.i(TAG, stationary ? "Device is stationary." : "Device is moving.");
+					for (SensorService service : mServices) {
+						service.setStationary(stationary);
+					}
+				}
+			}
+			
+		});
+	}
+	
+	/**
+	 * Apply motion state to all initialized services.
+	 */
+	private final class DutyCycleController implements MotionStateListener {
+
+		@Override
+		public void onMotionStateChanged(int state) {
+			mSnapshotPublisher.publishMotionState(state);
+			postStationary(state == MotionStateDetector.STATE_STATIONARY);
+		}
+		
+	}
+	
+	/**
+	 * Apply recognized activity to all initialized services. Activity is
+	 * recognized on its own thread, so it's applied on sensor thread with
+	 * Sense locked, same as other changes to services.
+	 */
+	private final class ActivityController implements ActivityListener {
+
+		@Override
+		public void onActivityChanged(final int activity) {
+			mHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					synchronized (Sense.this) {
+						if (mPaused) {
+							return;
+						}
+						
+						for (SensorService service : mServices) {
+							service.setActivity(activity);
+						}
+					}
+				}
+				
+			});
+		}
+		
 	}
 	
 	/**
@@ -249,10 +1006,28 @@ public class Sense {
 		return mLocationService;
 	}
 	
+	/**
+	 * Check whether Activity Recognition Service has been initialized.
+	 * 
+	 * @return true if has been initialized, false otherwise.
+	 */
+	public boolean hasActivityRecognitionServiceInit() {
+		return mActivityRecognitionService != null;
+	}
+	
+	public ActivityRecognitionService getActivityRecognitionServiceInstance() {
+		if (mActivityRecognitionService == null) {
+			throw new SenseServiceException("Activity recognition service has not been initialized.");
+		}
+		
+		return mActivityRecognitionService;
+	}
+	
 	// Clean up if you forgot to do so.
 	@Override
 	protected void finalize() {
 		stop();
+		mSensorHub.quit();
 	}
 
 }
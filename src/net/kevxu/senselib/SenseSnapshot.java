@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+/**
+ * Immutable view of all service outputs at one moment. A new snapshot is
+ * published by the worker threads with a single volatile write whenever any
+ * output changes, so all the values in one snapshot are mutually consistent.
+ * Use {@link Sense#snapshot()} to get the latest one, which never blocks and
+ * never allocates, so it can be polled at frame rate. Compare
+ * {@link #getVersion()} to tell whether anything changed since last poll.
+ * 
+ * @author Kaiwen Xu
+ */
+public final class SenseSnapshot {
+
+	static final SenseSnapshot EMPTY = new SenseSnapshot(0, 0L, null, 0L, null,
+			false, 0.0, 0.0, 0.0F, 0L, null, MotionStateDetector.STATE_MOVING);
+
+	private final long mVersion;
+	private final long mTime;
+
+	// Arrays are never modified after construction, so they are shared
+	// between consecutive snapshots when unchanged
+	private final float[] mOrientation;
+
+	private final long mSteps;
+	private final float[] mMovement;
+
+	private final boolean mHasLocation;
+	private final double mLatitude;
+	private final double mLongitude;
+	private final float mAccuracy;
+	private final long mLocationTime;
+	private final String mLocationProvider;
+
+	private final int mMotionState;
+
+	private SenseSnapshot(long version, long time, float[] orientation, long steps, float[] movement,
+			boolean hasLocation, double latitude, double longitude, float accuracy, long locationTime,
+			String locationProvider, int motionState) {
+		mVersion = version;
+		mTime = time;
+		mOrientation = orientation;
+		mSteps = steps;
+		mMovement = movement;
+		mHasLocation = hasLocation;
+		mLatitude = latitude;
+		mLongitude = longitude;
+		mAccuracy = accuracy;
+		mLocationTime = locationTime;
+		mLocationProvider = locationProvider;
+		mMotionState = motionState;
+	}
+
+	SenseSnapshot withOrientation(float[] orientation, long time) {
+		return new SenseSnapshot(mVersion + 1, time, copy(orientation), mSteps, mMovement,
+				mHasLocation, mLatitude, mLongitude, mAccuracy, mLocationTime, mLocationProvider, mMotionState);
+	}
+
+	SenseSnapshot withMovement(float[] movement, int newSteps, long time) {
+		return new SenseSnapshot(mVersion + 1, time, mOrientation, mSteps + newSteps,
+				movement != null ? copy(movement) : mMovement,
+				mHasLocation, mLatitude, mLongitude, mAccuracy, mLocationTime, mLocationProvider, mMotionState);
+	}
+
+	SenseSnapshot withLocation(double latitude, double longitude, float accuracy, long locationTime,
+			String locationProvider, long time) {
+		return new SenseSnapshot(mVersion + 1, time, mOrientation, mSteps, mMovement,
+				true, latitude, longitude, accuracy, locationTime, locationProvider, mMotionState);
+	}
+
+	SenseSnapshot withMotionState(int motionState, long time) {
+		return new SenseSnapshot(mVersion + 1, time, mOrientation, mSteps, mMovement,
+				mHasLocation, mLatitude, mLongitude, mAccuracy, mLocationTime, mLocationProvider, motionState);
+	}
+
+	private static float[] copy(float[] values) {
+		float[] valuesCopy = new float[values.length];
+		System.arraycopy(values, 0, valuesCopy, 0, values.length);
+
+		return valuesCopy;
+	}
+
+	/**
+	 * Get version of this snapshot. Version increases by one every time a
+	 * new snapshot is published.
+	 * 
+	 * @return version.
+	 */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * Get time this snapshot was published, in milliseconds since boot.
+	 * 
+	 * @return publish time.
+	 */
+	public long getTime() {
+		return mTime;
+	}
+
+	public boolean hasOrientation() {
+		return mOrientation != null;
+	}
+
+	/**
+	 * Copy orientation into values. Values are the same as those in
+	 * {@link OrientationService.OrientationServiceListener#onOrientationChanged(float[])}.
+	 * 
+	 * @param values array of float with length 3.
+	 * @return true if orientation is available, false otherwise.
+	 */
+	public boolean getOrientation(float[] values) {
+		if (mOrientation == null) {
+			return false;
+		}
+
+		System.arraycopy(mOrientation, 0, values, 0, 3);
+
+		return true;
+	}
+
+	/**
+	 * Get number of steps detected since Sense was initialized.
+	 * 
+	 * @return step count.
+	 */
+	public long getSteps() {
+		return mSteps;
+	}
+
+	public boolean hasMovement() {
+		return mMovement != null;
+	}
+
+	/**
+	 * Copy latest movement into values. Values are the same as those in
+	 * {@link StepDetector.StepListener#onMovement(float[])}.
+	 * 
+	 * @param values array of float with length 3.
+	 * @return true if movement is available, false otherwise.
+	 */
+	public boolean getMovement(float[] values) {
+		if (mMovement == null) {
+			return false;
+		}
+
+		System.arraycopy(mMovement, 0, values, 0, 3);
+
+		return true;
+	}
+
+	public boolean hasLocation() {
+		return mHasLocation;
+	}
+
+	public double getLatitude() {
+		return mLatitude;
+	}
+
+	public double getLongitude() {
+		return mLongitude;
+	}
+
+	public float getAccuracy() {
+		return mAccuracy;
+	}
+
+	/**
+	 * Get UTC time of fused location, in milliseconds since January 1, 1970.
+	 * 
+	 * @return location time.
+	 */
+	public long getLocationTime() {
+		return mLocationTime;
+	}
+
+	public String getLocationProvider() {
+		return mLocationProvider;
+	}
+
+	/**
+	 * Get motion state.
+	 * 
+	 * @return MotionStateDetector.STATE_*.
+	 */
+	public int getMotionState() {
+		return mMotionState;
+	}
+
+	@Override
+	public String toString() {
+		return "SenseSnapshot[version=" + mVersion + ", steps=" + mSteps
+				+ ", location=" + (mHasLocation ? mLatitude + "," + mLongitude + "+/-" + mAccuracy : "none")
+				+ ", motionState=" + mMotionState + "]";
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.util.Log;
+
+/**
+ * Sensors present on the device. Sensor list is enumerated only once per 
+ * process, and cached for all the services, so re-initializing services
+ * doesn't query SensorManager again.
+ * 
+ * @author Kaiwen Xu
+ */
+public final class SensorCapabilities {
+
+	private static final String TAG = "SensorCapabilities";
+
+	private static SensorCapabilities mSensorCapabilities;
+
+	private final Map<Integer, List<Sensor>> mSensors;
+
+	private SensorCapabilities(List<Sensor> sensors) {
+		mSensors = new HashMap<Integer, List<Sensor>>();
+
+		for (Sensor sensor : sensors) {
+			List<Sensor> sensorsOfType = mSensors.get(sensor.getType());
+			if (sensorsOfType == null) {
+				sensorsOfType = new ArrayList<Sensor>();
+				mSensors.put(sensor.getType(), sensorsOfType);
+			}
+			sensorsOfType.add(sensor);
+		}
+
+		for (Map.Entry<Integer, List<Sensor>> entry : mSensors.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+	}
+
+	/**
+	 * Get sensor capabilities of this device. First call enumerates sensors,
+	 * later calls return the cached result.
+	 * 
+	 * @param context Context of current activity or application.
+	 * @return sensor capabilities.
+	 */
+	public static synchronized SensorCapabilities getInstance(Context context) {
+		if (mSensorCapabilities == null) {
+			SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+			mSensorCapabilities = new SensorCapabilities(sensorManager.getSensorList(Sensor.TYPE_ALL));
+			Log.i(TAG, mSensorCapabilities.toString());
+		}
+
+		return mSensorCapabilities;
+	}
+
+	/**
+	 * Get all the sensors of a type, in the order reported by SensorManager.
+	 * 
+	 * @param type Sensor.TYPE_*.
+	 * @return unmodifiable list of sensors, empty if none is present.
+	 */
+	public List<Sensor> getSensors(int type) {
+		List<Sensor> sensors = mSensors.get(type);
+
+		if (sensors == null) {
+			return Collections.emptyList();
+		} else {
+			return sensors;
+		}
+	}
+
+	/**
+	 * Get the first sensor of a type.
+	 * 
+	 * @param type Sensor.TYPE_*.
+	 * @return sensor, or null if none is present.
+	 */
+	public Sensor getSensor(int type) {
+		List<Sensor> sensors = mSensors.get(type);
+
+		return sensors == null ? null : sensors.get(0);
+	}
+
+	public boolean hasSensor(int type) {
+		return mSensors.containsKey(type);
+	}
+
+	/**
+	 * Get minimum delay of the first sensor of a type.
+	 * 
+	 * @param type Sensor.TYPE_*.
+	 * @return minimum delay in microseconds, 0 if it's not a streaming 
+	 * sensor, or -1 if none is present.
+	 */
+	public int getMinDelay(int type) {
+		Sensor sensor = getSensor(type);
+
+		return sensor == null ? -1 : sensor.getMinDelay();
+	}
+
+	/**
+	 * Get power used by the first sensor of a type.
+	 * 
+	 * @param type Sensor.TYPE_*.
+	 * @return power in mA, or -1 if none is present.
+	 */
+	public float getPower(int type) {
+		Sensor sensor = getSensor(type);
+
+		return sensor == null ? -1.0F : sensor.getPower();
+	}
+
+	/**
+	 * Get vendor of the first sensor of a type.
+	 * 
+	 * @param type Sensor.TYPE_*.
+	 * @return vendor, or null if none is present.
+	 */
+	public String getVendor(int type) {
+		Sensor sensor = getSensor(type);
+
+		return sensor == null ? null : sensor.getVendor();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("SensorCapabilities[");
+
+		for (List<Sensor> sensors : mSensors.values()) {
+			for (Sensor sensor : sensors) {
+				sb.append("\n  type=").append(sensor.getType())
+						.append(", name=").append(sensor.getName())
+						.append(", vendor=").append(sensor.getVendor())
+						.append(", minDelay=").append(sensor.getMinDelay())
+						.append(", power=").append(sensor.getPower());
+			}
+		}
+
+		return sb.append("]").toString();
+	}
+
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.kevxu.senselib.util.AccelerometerFilter;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Central place for sensor registrations, owned by {@link Sense}. Each sensor
+ * is registered with SensorManager only once, at the highest rate and lowest
+ * report latency any service asks for, and its events are fanned out to all
+ * interested services. Rate is re-negotiated whenever a service registers or
+ * unregisters.
+ * <p>
+ * Sensor events are delivered on a high priority HandlerThread owned by
+ * SensorHub, so ingestion latency doesn't depend on the load of the
+ * application's main thread.
+ * <p>
+ * Gravity and linear acceleration can be derived from the raw accelerometer
+ * by {@link AccelerometerFilter}, either when the device lacks those virtual
+ * sensors or always, depending on derived sensor mode. Listeners see derived
+ * values as events of the type they registered for.
+ * 
+ * @author Kaiwen Xu
+ */
+class SensorHub implements SensorEventListener {
+
+	private static final String TAG = "SensorHub";
+
+	// Batching is only available since API 19
+	private static final int SDK_BATCHING = 19;
+
+	private Context mContext;
+	private SensorManager mSensorManager;
+
+	private HandlerThread mSensorThread;
+	private Handler mSensorHandler;
+
+	private Map<Sensor, SensorEntry> mSensorEntries;
+
+	private SensorSelectionPolicy mSensorSelectionPolicy;
+	private Map<Integer, Sensor> mPhysicalSensors;
+	private Map<Integer, Sensor> mSelectedSensors;
+
+	private int mDerivedSensorMode;
+	private AccelerometerFilter mAccelerometerFilter;
+
+	/**
+	 * Used for receiving sensor data from SensorHub.
+	 */
+	interface SensorHubListener {
+
+		/**
+		 * Called when there is a new sensor value. Values must not be kept
+		 * by the listener, since they are shared with other listeners.
+		 * 
+		 * @param type sensor type.
+		 * @param values sensor values.
+		 * @param timestamp time in nanoseconds at which the event happened.
+		 */
+		public void onSensorChanged(int type, float[] values, long timestamp);
+
+	}
+
+	/**
+	 * Registration of one listener on one sensor.
+	 */
+	private static final class Registration {
+
+		private final SensorHubListener listener;
+		private final int type;
+		private int rate;
+		private int maxReportLatencyUs;
+
+		private Registration(SensorHubListener listener, int type, int rate, int maxReportLatencyUs) {
+			this.listener = listener;
+			this.type = type;
+			this.rate = rate;
+			this.maxReportLatencyUs = maxReportLatencyUs;
+		}
+
+	}
+
+	/**
+	 * All registrations on one sensor, and what has been negotiated with
+	 * SensorManager.
+	 */
+	private static final class SensorEntry {
+
+		private final List<Registration> registrations;
+		private int rate;
+		private int maxReportLatencyUs;
+
+		// Whether any registration asks for values derived from this sensor
+		private volatile boolean derived;
+
+		private SensorEntry() {
+			this.registrations = new CopyOnWriteArrayList<Registration>();
+			this.rate = -1;
+			this.maxReportLatencyUs = -1;
+			this.derived = false;
+		}
+
+	}
+
+	SensorHub(Context context) {
+		mContext = context;
+		mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+		mSensorEntries = new ConcurrentHashMap<Sensor, SensorEntry>();
+
+		mSensorSelectionPolicy = new RankingSensorSelectionPolicy();
+		mPhysicalSensors = new HashMap<Integer, Sensor>();
+		mSelectedSensors = new HashMap<Integer, Sensor>();
+
+		mDerivedSensorMode = Sense.DERIVED_SENSORS_FALLBACK;
+		mAccelerometerFilter = new AccelerometerFilter();
+
+		mSensorThread = new HandlerThread("SenseSensorThread", Process.THREAD_PRIORITY_DISPLAY);
+		mSensorThread.start();
+		mSensorHandler = new Handler(mSensorThread.getLooper());
+		Log.i(TAG, "SenseSensorThread started.");
+	}
+
+	/**
+	 * Get Looper of the thread sensor events are delivered on. Other
+	 * callbacks, such as location updates, can be delivered on it as well.
+	 * 
+	 * @return Looper of sensor thread.
+	 */
+	Looper getLooper() {
+		return mSensorThread.getLooper();
+	}
+
+	/**
+	 * Set policy used for choosing among sensors of the same type. Only 
+	 * types which haven't been selected yet are affected.
+	 * 
+	 * @param sensorSelectionPolicy sensor selection policy.
+	 */
+	synchronized void setSensorSelectionPolicy(SensorSelectionPolicy sensorSelectionPolicy) {
+		mSensorSelectionPolicy = sensorSelectionPolicy;
+	}
+
+	synchronized SensorSelectionPolicy getSensorSelectionPolicy() {
+		return mSensorSelectionPolicy;
+	}
+
+	/**
+	 * Set when gravity and linear acceleration are derived from the raw
+	 * accelerometer. Takes effect from next registration.
+	 * 
+	 * @param derivedSensorMode Sense.DERIVED_SENSORS_*.
+	 */
+	synchronized void setDerivedSensorMode(int derivedSensorMode) {
+		mDerivedSensorMode = derivedSensorMode;
+	}
+
+	synchronized int getDerivedSensorMode() {
+		return mDerivedSensorMode;
+	}
+
+	/**
+	 * Select sensor of a type using current policy. Selection is remembered,
+	 * so all services get the same sensor for the same type. For gravity and
+	 * linear acceleration, accelerometer is returned if they are derived.
+	 * 
+	 * @param type Sensor.TYPE_*.
+	 * @return selected sensor, or null if none of the type is present.
+	 */
+	synchronized Sensor selectSensor(int type) {
+		Sensor sensor = null;
+
+		if (isDerived(type)) {
+			sensor = selectPhysicalSensor(Sensor.TYPE_ACCELEROMETER);
+			if (sensor != null && mSelectedSensors.get(type) != sensor) {
+				Log.i(TAG, "Sensor type " + type + " derived from " + sensor.getName() + ".");
+			}
+		}
+
+		if (sensor == null) {
+			sensor = selectPhysicalSensor(type);
+		}
+
+		if (sensor != null) {
+			mSelectedSensors.put(type, sensor);
+		}
+
+		return sensor;
+	}
+
+	private boolean isDerived(int type) {
+		if (type != Sensor.TYPE_GRAVITY && type != Sensor.TYPE_LINEAR_ACCELERATION) {
+			return false;
+		}
+
+		switch (mDerivedSensorMode) {
+		case Sense.DERIVED_SENSORS_FORCED:
+			return true;
+		case Sense.DERIVED_SENSORS_FALLBACK:
+			return !SensorCapabilities.getInstance(mContext).hasSensor(type);
+		default:
+			return false;
+		}
+	}
+
+	private Sensor selectPhysicalSensor(int type) {
+		Sensor sensor = mPhysicalSensors.get(type);
+		if (sensor != null) {
+			return sensor;
+		}
+
+		List<Sensor> candidates = SensorCapabilities.getInstance(mContext).getSensors(type);
+		if (candidates.isEmpty()) {
+			return null;
+		}
+
+		sensor = mSensorSelectionPolicy.selectSensor(type, candidates);
+		mPhysicalSensors.put(type, sensor);
+		Log.i(TAG, "Selected sensor for type " + type + " out of " + candidates.size() + ": " 
+				+ sensor.getName() + " (" + sensor.getVendor() + "), power=" + sensor.getPower() 
+				+ "mA, minDelay=" + sensor.getMinDelay() + "us.");
+
+		return sensor;
+	}
+
+	/**
+	 * Get sensors selected so far.
+	 * 
+	 * @return unmodifiable map from Sensor.TYPE_* to sensor.
+	 */
+	synchronized Map<Integer, Sensor> getSelectedSensors() {
+		return Collections.unmodifiableMap(new HashMap<Integer, Sensor>(mSelectedSensors));
+	}
+
+	/**
+	 * Unregister all sensors and stop sensor thread. SensorHub can't be used
+	 * afterwards.
+	 */
+	synchronized void quit() {
+		mSensorManager.unregisterListener(this);
+		mSensorEntries.clear();
+		mSensorThread.quit();
+		Log.i(TAG, "SenseSensorThread stopped.");
+	}
+
+	/**
+	 * Register listener on sensor type, or change its rate if already 
+	 * registered.
+	 * 
+	 * @param listener listener.
+	 * @param type Sensor.TYPE_*.
+	 * @param rate SensorManager.SENSOR_DELAY_* or delay in microseconds.
+	 */
+	synchronized void registerListener(SensorHubListener listener, int type, int rate) {
+		registerListener(listener, type, rate, 0);
+	}
+
+	/**
+	 * Register listener on sensor type, or change its rate and report 
+	 * latency if already registered.
+	 * 
+	 * @param listener listener.
+	 * @param type Sensor.TYPE_*.
+	 * @param rate SensorManager.SENSOR_DELAY_* or delay in microseconds.
+	 * @param maxReportLatencyUs maximum report latency in microseconds, 0
+	 * disables batching.
+	 */
+	synchronized void registerListener(SensorHubListener listener, int type, int rate, int maxReportLatencyUs) {
+		Sensor sensor = selectSensor(type);
+		if (sensor == null) {
+			Log.w(TAG, "No sensor of type " + type + " to register.");
+			return;
+		}
+
+		// Derived sensor mode may have changed since last registration
+		for (Map.Entry<Sensor, SensorEntry> other : mSensorEntries.entrySet()) {
+			if (other.getKey() != sensor) {
+				removeRegistration(other.getKey(), other.getValue(), listener, type);
+			}
+		}
+
+		SensorEntry entry = mSensorEntries.get(sensor);
+		if (entry == null) {
+			entry = new SensorEntry();
+			mSensorEntries.put(sensor, entry);
+		}
+
+		Registration registration = findRegistration(entry, listener, type);
+		if (registration == null) {
+			entry.registrations.add(new Registration(listener, type, rate, maxReportLatencyUs));
+		} else {
+			registration.rate = rate;
+			registration.maxReportLatencyUs = maxReportLatencyUs;
+		}
+
+		negotiate(sensor, entry);
+	}
+
+	/**
+	 * Unregister listener from sensor type.
+	 * 
+	 * @param listener listener.
+	 * @param type Sensor.TYPE_*.
+	 */
+	synchronized void unregisterListener(SensorHubListener listener, int type) {
+		for (Map.Entry<Sensor, SensorEntry> entry : mSensorEntries.entrySet()) {
+			removeRegistration(entry.getKey(), entry.getValue(), listener, type);
+		}
+	}
+
+	/**
+	 * Unregister listener from all sensors.
+	 * 
+	 * @param listener listener.
+	 */
+	synchronized void unregisterListener(SensorHubListener listener) {
+		for (Map.Entry<Sensor, SensorEntry> entry : mSensorEntries.entrySet()) {
+			boolean removed = false;
+			for (Registration registration : entry.getValue().registrations) {
+				if (registration.listener == listener) {
+					entry.getValue().registrations.remove(registration);
+					removed = true;
+				}
+			}
+
+			if (removed) {
+				negotiate(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private void removeRegistration(Sensor sensor, SensorEntry entry, SensorHubListener listener, int type) {
+		Registration registration = findRegistration(entry, listener, type);
+		if (registration != null) {
+			entry.registrations.remove(registration);
+			negotiate(sensor, entry);
+		}
+	}
+
+	private Registration findRegistration(SensorEntry entry, SensorHubListener listener, int type) {
+		for (Registration registration : entry.registrations) {
+			if (registration.listener == listener && registration.type == type) {
+				return registration;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Register sensor with the fastest rate and lowest latency among all
+	 * registrations, if different from what is currently registered.
+	 */
+	private void negotiate(Sensor sensor, SensorEntry entry) {
+		boolean derived = false;
+		for (Registration registration : entry.registrations) {
+			if (registration.type != sensor.getType()) {
+				derived = true;
+			}
+		}
+		entry.derived = derived;
+
+		if (entry.registrations.isEmpty()) {
+			mSensorManager.unregisterListener(this, sensor);
+			mSensorEntries.remove(sensor);
+			Log.i(TAG, sensor.getName() + " unregistered.");
+			return;
+		}
+
+		int rate = -1;
+		int maxReportLatencyUs = -1;
+		for (Registration registration : entry.registrations) {
+			if (rate < 0 || toMicroseconds(registration.rate) < toMicroseconds(rate)) {
+				rate = registration.rate;
+			}
+			if (maxReportLatencyUs < 0 || registration.maxReportLatencyUs < maxReportLatencyUs) {
+				maxReportLatencyUs = registration.maxReportLatencyUs;
+			}
+		}
+
+		if (rate == entry.rate && maxReportLatencyUs == entry.maxReportLatencyUs) {
+			return;
+		}
+
+		if (entry.rate >= 0) {
+			mSensorManager.unregisterListener(this, sensor);
+		}
+		register(sensor, rate, maxReportLatencyUs);
+		entry.rate = rate;
+		entry.maxReportLatencyUs = maxReportLatencyUs;
+		Log.i(TAG, sensor.getName() + " registered with rate " + rate + ".");
+	}
+
+	/**
+	 * Register sensor with batching when the platform supports it.
+	 */
+	private void register(Sensor sensor, int rate, int maxReportLatencyUs) {
+		if (Build.VERSION.SDK_INT >= SDK_BATCHING && maxReportLatencyUs > 0) {
+			try {
+				Method registerListener = SensorManager.class.getMethod("registerListener",
+						SensorEventListener.class, Sensor.class, int.class, int.class, Handler.class);
+				Boolean registered = (Boolean) registerListener.invoke(mSensorManager,
+						this, sensor, rate, maxReportLatencyUs, mSensorHandler);
+				if (registered) {
+					return;
+				}
+			} catch (Exception e) {
+				Log.w(TAG, e.getMessage(), e);
+			}
+		}
+
+		mSensorManager.registerListener(this, sensor, rate, mSensorHandler);
+	}
+
+	/**
+	 * Convert rate into delay in microseconds, so that SENSOR_DELAY_* and
+	 * delays can be compared.
+	 */
+	private static int toMicroseconds(int rate) {
+		switch (rate) {
+		case SensorManager.SENSOR_DELAY_FASTEST:
+			return 0;
+		case SensorManager.SENSOR_DELAY_GAME:
+			return 20000;
+		case SensorManager.SENSOR_DELAY_UI:
+			return 66667;
+		case SensorManager.SENSOR_DELAY_NORMAL:
+			return 200000;
+		default:
+			return rate;
+		}
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		SensorEntry entry = mSensorEntries.get(event.sensor);
+		if (entry != null) {
+			int type = event.sensor.getType();
+
+			// Only accelerometer entries can be derived from
+			if (entry.derived) {
+				mAccelerometerFilter.push(event.values, event.timestamp);
+			}
+
+			for (Registration registration : entry.registrations) {
+				float[] values;
+				if (registration.type == type) {
+					values = event.values;
+				} else if (registration.type == Sensor.TYPE_GRAVITY) {
+					values = mAccelerometerFilter.getGravity();
+				} else {
+					values = mAccelerometerFilter.getLinearAcceleration();
+				}
+
+				registration.listener.onSensorChanged(registration.type, values, event.timestamp);
+			}
+		}
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+		// Not used.
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.List;
+
+import android.hardware.Sensor;
+
+/**
+ * Policy used to choose one sensor when a device has several sensors of the
+ * same type. The policy is set per {@link Sense} instance, and each type is
+ * selected only once, so that all services share the same sensor.
+ * 
+ * @author Kaiwen Xu
+ */
+public interface SensorSelectionPolicy {
+
+	/**
+	 * Choose one sensor out of candidates.
+	 * 
+	 * @param type Sensor.TYPE_* of the candidates.
+	 * @param candidates sensors of that type, never empty, in the order 
+	 * reported by SensorManager. Must not be modified.
+	 * @return chosen sensor, which must be one of candidates.
+	 */
+	public Sensor selectSensor(int type, List<Sensor> candidates);
+
+}
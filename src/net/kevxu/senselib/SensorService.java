@@ -23,6 +23,12 @@
 
 package net.kevxu.senselib;
 
+import java.util.List;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
 /**
  * Base class for all the sensor services.
  * 
@@ -30,6 +36,17 @@ package net.kevxu.senselib;
  */
 public abstract class SensorService {
 	
+	private static final String TAG = "SensorService";
+	
+	private static final String KEY_SAVED_TIME = "savedTime";
+	
+	private volatile SnapshotPublisher mSnapshotPublisher;
+	private volatile DemandListener mDemandListener;
+	private volatile CpuAccounting mCpuAccounting;
+	
+	private volatile long mResumeTime = 0;
+	private volatile long mResumeLatency = -1;
+	
 	/**
 	 * Call this when start or resume.
 	 */
@@ -40,4 +57,210 @@ public abstract class SensorService {
 	 */
 	protected abstract void stop();
 
+	/**
+	 * Call this when pause briefly. Unlike {@link #stop()}, worker threads
+	 * and internal state are kept, only sensors are released, so that
+	 * {@link #resume()} is cheap. Default implementation calls stop().
+	 */
+	protected void pause() {
+		stop();
+	}
+
+	/**
+	 * Call this when resume from {@link #pause()}. Default implementation
+	 * calls start().
+	 */
+	protected void resume() {
+		start();
+	}
+
+	/**
+	 * Record the time service is resumed or started, so that latency to the
+	 * first callback delivered afterwards can be measured.
+	 */
+	void markResumed() {
+		mResumeTime = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Call this after delivering callbacks to listeners. First call after
+	 * {@link #markResumed()} records resume latency.
+	 */
+	protected void markCallbackDelivered() {
+		long resumeTime = mResumeTime;
+		if (resumeTime != 0) {
+			mResumeTime = 0;
+			mResumeLatency = SystemClock.elapsedRealtime() - resumeTime;
+			Log.i(TAG, getClass().getSimpleName() + " first callback " + mResumeLatency + " ms after resume.");
+		}
+	}
+
+	/**
+	 * Check whether anything outside the library listens to this service.
+	 * Services with no external listeners are not started by Sense unless
+	 * acquired explicitly. Default implementation returns true.
+	 * 
+	 * @return true if there are external listeners.
+	 */
+	protected boolean hasExternalListeners() {
+		return true;
+	}
+
+	/**
+	 * Check whether listeners contain any listener which isn't another
+	 * service. Services registered on their dependencies don't count.
+	 * 
+	 * @param listeners listeners of a service.
+	 * @return true if any external listener is found.
+	 */
+	protected static boolean containsExternalListener(List<?> listeners) {
+		for (Object listener : listeners) {
+			if (!(listener instanceof SensorService)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Call this after listeners are added or removed.
+	 */
+	protected void notifyDemandChanged() {
+		DemandListener demandListener = mDemandListener;
+		if (demandListener != null) {
+			demandListener.onDemandChanged(this);
+		}
+	}
+
+	void setDemandListener(DemandListener demandListener) {
+		mDemandListener = demandListener;
+	}
+
+	/**
+	 * Set where CPU time of worker threads is accounted.
+	 * 
+	 * @param cpuAccounting CPU accounting.
+	 */
+	void setCpuAccounting(CpuAccounting cpuAccounting) {
+		mCpuAccounting = cpuAccounting;
+	}
+
+	/**
+	 * Get where CPU time of worker threads is accounted.
+	 * 
+	 * @return CPU accounting, or null if not set.
+	 */
+	CpuAccounting getCpuAccounting() {
+		return mCpuAccounting;
+	}
+
+	/**
+	 * Get time between the last resume or start by Sense and the first
+	 * callback delivered afterwards.
+	 * 
+	 * @return latency in milliseconds, or -1 if not measured yet.
+	 */
+	public long getResumeLatency() {
+		return mResumeLatency;
+	}
+
+	/**
+	 * Call this when device becomes stationary or starts moving again. While
+	 * stationary, services may lower their sensor rates and park their worker
+	 * threads. Default implementation does nothing.
+	 * 
+	 * @param stationary true if device is stationary.
+	 */
+	protected void setStationary(boolean stationary) {
+	}
+
+	/**
+	 * Call this when {@link ActivityRecognitionService} recognizes a new
+	 * activity, so that services can stop work which is meaningless for the
+	 * activity. Default implementation does nothing.
+	 * 
+	 * @param activity ActivityRecognitionService.ACTIVITY_*.
+	 */
+	protected void setActivity(int activity) {
+	}
+
+	/**
+	 * Call this after {@link #stop()} to save state worth keeping across
+	 * process restarts, such as last location fix, so that next start can
+	 * deliver useful callbacks right away. Keys should be made by 
+	 * {@link #getStateKey(String)}. Default implementation does nothing.
+	 * 
+	 * @param editor editor of preferences where state is saved.
+	 */
+	protected void onSaveState(SharedPreferences.Editor editor) {
+	}
+
+	/**
+	 * Call this before {@link #start()} to restore state saved by 
+	 * {@link #onSaveState(SharedPreferences.Editor)}. Service decides 
+	 * which parts of state are still fresh enough to use. Default 
+	 * implementation does nothing.
+	 * 
+	 * @param preferences preferences where state was saved.
+	 * @param age milliseconds since state was saved.
+	 */
+	protected void onRestoreState(SharedPreferences preferences, long age) {
+	}
+
+	/**
+	 * Get key of a state value, which is unique among services.
+	 * 
+	 * @param name name of state value.
+	 * @return key.
+	 */
+	protected String getStateKey(String name) {
+		return getClass().getSimpleName() + "." + name;
+	}
+
+	void saveState(SharedPreferences preferences) {
+		SharedPreferences.Editor editor = preferences.edit();
+		onSaveState(editor);
+		editor.putLong(getStateKey(KEY_SAVED_TIME), System.currentTimeMillis());
+		editor.apply();
+	}
+
+	void restoreState(SharedPreferences preferences) {
+		long savedTime = preferences.getLong(getStateKey(KEY_SAVED_TIME), 0);
+		long age = System.currentTimeMillis() - savedTime;
+		// Wall clock may have been set back since state was saved
+		if (savedTime > 0 && age >= 0) {
+			onRestoreState(preferences, age);
+		}
+	}
+
+	/**
+	 * Set where service outputs are published for {@link Sense#snapshot()}.
+	 * 
+	 * @param snapshotPublisher snapshot publisher.
+	 */
+	void setSnapshotPublisher(SnapshotPublisher snapshotPublisher) {
+		mSnapshotPublisher = snapshotPublisher;
+	}
+
+	/**
+	 * Get where service outputs are published.
+	 * 
+	 * @return snapshot publisher, or null if not set.
+	 */
+	SnapshotPublisher getSnapshotPublisher() {
+		return mSnapshotPublisher;
+	}
+
+	interface DemandListener {
+
+		/**
+		 * Called when external listeners of a service are added or removed.
+		 * 
+		 * @param service service whose listeners changed.
+		 */
+		void onDemandChanged(SensorService service);
+
+	}
+
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+/**
+ * Publishes {@link SenseSnapshot} for worker threads of all services. Writers
+ * are serialized, and each publish replaces the current snapshot with a
+ * single volatile write, so readers never take a lock.
+ * 
+ * @author Kaiwen Xu
+ */
+final class SnapshotPublisher {
+
+	private volatile SenseSnapshot mSnapshot;
+
+	SnapshotPublisher() {
+		mSnapshot = SenseSnapshot.EMPTY;
+	}
+
+	SenseSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	synchronized void publishOrientation(float[] orientation) {
+		mSnapshot = mSnapshot.withOrientation(orientation, SystemClock.elapsedRealtime());
+	}
+
+	synchronized void publishMovement(float[] movement, boolean step) {
+		mSnapshot = mSnapshot.withMovement(movement, step ? 1 : 0, SystemClock.elapsedRealtime());
+	}
+
+	synchronized void publishSteps(int steps) {
+		mSnapshot = mSnapshot.withMovement(null, steps, SystemClock.elapsedRealtime());
+	}
+
+	synchronized void publishLocation(Location location) {
+		mSnapshot = mSnapshot.withLocation(location.getLatitude(), location.getLongitude(),
+				location.getAccuracy(), location.getTime(), location.getProvider(), SystemClock.elapsedRealtime());
+	}
+
+	synchronized void publishMotionState(int motionState) {
+		mSnapshot = mSnapshot.withMotionState(motionState, SystemClock.elapsedRealtime());
+	}
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+/**
+ * Algorithm used by {@link StepDetector} to decide whether a step happens.
+ * StepDetector feeds every sample of its calculation thread into the
+ * algorithm, so implementations should avoid allocating memory in
+ * {@link StepDetectionAlgorithm#detectStep(float[], float[])}.
+ * 
+ * @author Kaiwen Xu
+ */
+public interface StepDetectionAlgorithm {
+
+	/**
+	 * Called when there is a new sample of linear acceleration and gravity.
+	 * Both arrays are in device's coordinate system and should not be
+	 * modified or kept by the algorithm.
+	 * 
+	 * @param linearAccel array of float with length 3.
+	 * @param gravity array of float with length 3.
+	 * @return true if a step is detected, false otherwise.
+	 */
+	public boolean detectStep(float[] linearAccel, float[] gravity);
+
+	/**
+	 * Clear all the internal state, so that the algorithm can be reused on
+	 * new input.
+	 */
+	public void reset();
+
+}
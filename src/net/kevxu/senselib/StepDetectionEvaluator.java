@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.kevxu.senselib.util.DataPool;
+import android.os.Debug;
+
+/**
+ * Harness for comparing several {@link StepDetectionAlgorithm} side by side.
+ * Every algorithm runs over exactly the same recorded input, and steps found,
+ * CPU time per sample and allocations per sample are reported. Allocations
+ * are counted by Dalvik's allocation counter on the calling thread, so
+ * evaluate() should be called from a thread doing nothing else.
+ * 
+ * @author Kaiwen Xu
+ */
+public class StepDetectionEvaluator {
+
+	private List<String> mNames;
+	private List<StepDetectionAlgorithm> mAlgorithms;
+
+	/**
+	 * Result of running one algorithm over recorded input.
+	 */
+	public static final class Result {
+
+		private final String mName;
+		private final int mSteps;
+		private final int mSamples;
+		private final long mTimeNanos;
+		private final int mAllocCount;
+		private final int mAllocSize;
+
+		private Result(String name, int steps, int samples, long timeNanos, int allocCount, int allocSize) {
+			mName = name;
+			mSteps = steps;
+			mSamples = samples;
+			mTimeNanos = timeNanos;
+			mAllocCount = allocCount;
+			mAllocSize = allocSize;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public int getSteps() {
+			return mSteps;
+		}
+
+		public int getSamples() {
+			return mSamples;
+		}
+
+		public long getTimeNanos() {
+			return mTimeNanos;
+		}
+
+		public double getNanosPerSample() {
+			return mSamples == 0 ? 0.0 : (double) mTimeNanos / mSamples;
+		}
+
+		public int getAllocCount() {
+			return mAllocCount;
+		}
+
+		public int getAllocSize() {
+			return mAllocSize;
+		}
+
+		public double getAllocsPerSample() {
+			return mSamples == 0 ? 0.0 : (double) mAllocCount / mSamples;
+		}
+
+		@Override
+		public String toString() {
+			return mName + ": steps=" + mSteps + ", samples=" + mSamples
+					+ ", ns/sample=" + getNanosPerSample()
+					+ ", allocs/sample=" + getAllocsPerSample()
+					+ ", alloc bytes=" + mAllocSize;
+		}
+
+	}
+
+	public StepDetectionEvaluator() {
+		mNames = new LinkedList<String>();
+		mAlgorithms = new LinkedList<StepDetectionAlgorithm>();
+	}
+
+	public StepDetectionEvaluator addAlgorithm(String name, StepDetectionAlgorithm algorithm) {
+		if (algorithm != null) {
+			mNames.add(name);
+			mAlgorithms.add(algorithm);
+
+			return this;
+		} else {
+			throw new NullPointerException("StepDetectionAlgorithm is null.");
+		}
+	}
+
+	/**
+	 * Run all added algorithms over recorded input. Linear acceleration and
+	 * gravity with the same index are treated as one sample. Each algorithm
+	 * is reset and run once for warm up before being measured.
+	 * 
+	 * @param linearAccel recorded linear acceleration.
+	 * @param gravity recorded gravity.
+	 * @return one result per algorithm, in the order they were added.
+	 */
+	public List<Result> evaluate(DataPool<float[]> linearAccel, DataPool<float[]> gravity) {
+		int samples = Math.min(linearAccel.size(), gravity.size());
+
+		// Copy into plain arrays so pool access isn't part of the measurement
+		float[][] linearAccelSamples = new float[samples][];
+		float[][] gravitySamples = new float[samples][];
+		for (int i = 0; i < samples; i++) {
+			linearAccelSamples[i] = linearAccel.get(i);
+			gravitySamples[i] = gravity.get(i);
+		}
+
+		List<Result> results = new ArrayList<Result>(mAlgorithms.size());
+		for (int a = 0; a < mAlgorithms.size(); a++) {
+			StepDetectionAlgorithm algorithm = mAlgorithms.get(a);
+
+			// Warm up
+			algorithm.reset();
+			run(algorithm, linearAccelSamples, gravitySamples);
+
+			algorithm.reset();
+			Debug.resetThreadAllocCount();
+			Debug.startAllocCounting();
+			long startTime = System.nanoTime();
+			int steps = run(algorithm, linearAccelSamples, gravitySamples);
+			long timeNanos = System.nanoTime() - startTime;
+			Debug.stopAllocCounting();
+
+			results.add(new Result(mNames.get(a), steps, samples, timeNanos,
+					Debug.getThreadAllocCount(), Debug.getThreadAllocSize()));
+		}
+
+		return results;
+	}
+
+	private int run(StepDetectionAlgorithm algorithm, float[][] linearAccelSamples, float[][] gravitySamples) {
+		int steps = 0;
+		for (int i = 0; i < linearAccelSamples.length; i++) {
+			if (algorithm.detectStep(linearAccelSamples[i], gravitySamples[i])) {
+				steps++;
+			}
+		}
+
+		return steps;
+	}
+
+}
@@ -23,36 +23,83 @@
 
 package net.kevxu.senselib;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.kevxu.senselib.OrientationService.OrientationServiceListener;
+import net.kevxu.senselib.SensorHub.SensorHubListener;
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Class for detecting user steps. start() and stop() must be explicitly called
  * to start and stop the internal thread.
+ * <p>
+ * Backend is chosen at construction time. If the device has a hardware step
+ * detector or step counter, it is used and the internal thread is not
+ * started. Otherwise steps are detected in software from linear acceleration
+ * and gravity. Use {@link StepDetector#getBackend()} to find out which
+ * backend is active.
  * 
  * @author Kaiwen Xu
  */
-public class StepDetector extends SensorService implements SensorEventListener, OrientationServiceListener {
+public class StepDetector extends SensorService implements SensorHubListener, OrientationServiceListener {
 
 	private static final String TAG = "StepDetector";
 
+	/**
+	 * Steps are detected in software from linear acceleration and gravity.
+	 */
+	public static final int BACKEND_SOFTWARE = 0x0;
+
+	/**
+	 * Steps are reported by hardware step detector.
+	 */
+	public static final int BACKEND_HARDWARE_STEP_DETECTOR = 0x1;
+
+	/**
+	 * Steps are derived from hardware step counter.
+	 */
+	public static final int BACKEND_HARDWARE_STEP_COUNTER = 0x2;
+
+	/**
+	 * Default maximum report latency for hardware step sensors is 2 seconds.
+	 */
+	public static final int DEFAULT_MAX_REPORT_LATENCY_US = 2000000;
+
+	// Sensor.TYPE_STEP_DETECTOR and Sensor.TYPE_STEP_COUNTER, added in API 19
+	private static final int TYPE_STEP_DETECTOR = 18;
+	private static final int TYPE_STEP_COUNTER = 19;
+
+	// Sensor rate used while device is stationary
+	private static final int SENSOR_DELAY_STATIONARY = SensorManager.SENSOR_DELAY_NORMAL;
+
 	private Context mContext;
-	private SensorManager mSensorManager;
+	private SensorHub mSensorHub;
 	private List<StepListener> mStepListeners;
+	private List<CadenceListener> mCadenceListeners;
 
 	private Sensor mLinearAccelSensor;
 	private Sensor mGravitySensor;
+	private Sensor mStepSensor;
+
+	private int mBackend;
+	private int mMaxReportLatencyUs;
+
+	// Used by hardware backend
+	private float[] mHardwareMovement;
+	private long mStepCounterBase;
 
 	private OrientationService mOrientationService;
 
+	private volatile StepDetectionAlgorithm mStepDetectionAlgorithm;
+
+	private MotionStateDetector mMotionStateDetector;
+	private volatile boolean mGated;
+
 	private StepDetectorCalculationThread mStepDetectorCalculationThread;
 
 	/**
@@ -62,7 +109,8 @@ public class StepDetector extends SensorService implements SensorEventListener,
 
 		/**
 		 * Called when a step is detected. Movement values is passed exactly
-		 * same as those in onMovement.
+		 * same as those in onMovement. When hardware backend is used, movement
+		 * is not measured and values are all zero.
 		 * 
 		 * @param values same values passed in 
 		 * {@link StepListener#onMovement(float[])}.
@@ -84,38 +132,79 @@ public class StepDetector extends SensorService implements SensorEventListener,
 
 	}
 
-	protected StepDetector(Context context, OrientationService orientationService) throws SensorNotAvailableException {
-		this(context, orientationService, null);
+	/**
+	 * Used for receiving walking cadence.
+	 */
+	public interface CadenceListener {
+
+		/**
+		 * Called on every sample once a full window of acceleration has
+		 * been collected, about 5 seconds after walking starts.
+		 * 
+		 * @param frequency dominant step frequency in Hz.
+		 * @param cadence steps per minute, which is frequency * 60.
+		 * @param confidence between 0 and 1, close to 1 when gait is 
+		 * periodic, low when motion is random.
+		 */
+		public void onCadenceChanged(float frequency, float cadence, float confidence);
+
 	}
 
-	protected StepDetector(Context context, OrientationService orientationService, StepListener stepListener) throws SensorNotAvailableException {
+	protected StepDetector(Context context, SensorHub sensorHub, OrientationService orientationService) throws SensorNotAvailableException {
+		this(context, sensorHub, orientationService, null);
+	}
+
+	protected StepDetector(Context context, SensorHub sensorHub, OrientationService orientationService, StepListener stepListener) throws SensorNotAvailableException {
 		mContext = context;
-		mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+		mSensorHub = sensorHub;
 
 		mOrientationService = orientationService;
 		mOrientationService.addListener(this);
 
-		List<Sensor> liearAccelSensors = mSensorManager.getSensorList(Sensor.TYPE_LINEAR_ACCELERATION);
-		List<Sensor> gravitySensors = mSensorManager.getSensorList(Sensor.TYPE_GRAVITY);
+		mStepDetectionAlgorithm = new LimitCrossingStepDetectionAlgorithm();
+		mMaxReportLatencyUs = DEFAULT_MAX_REPORT_LATENCY_US;
+		mHardwareMovement = new float[3];
+		mMotionStateDetector = new MotionStateDetector();
+		mGated = false;
+
+		mStepListeners = new CopyOnWriteArrayList<StepListener>();
+		mCadenceListeners = new CopyOnWriteArrayList<CadenceListener>();
+
+		if (stepListener != null) {
+			mStepListeners.add(stepListener);
+		}
+
+		// Sensors are chosen by SensorSelectionPolicy of the Sense instance
+		Sensor stepDetectorSensor = mSensorHub.selectSensor(TYPE_STEP_DETECTOR);
+		Sensor stepCounterSensor = mSensorHub.selectSensor(TYPE_STEP_COUNTER);
+
+		if (stepDetectorSensor != null) {
+			mStepSensor = stepDetectorSensor;
+			mBackend = BACKEND_HARDWARE_STEP_DETECTOR;
+			Log.i(TAG, "Using hardware step detector.");
+			return;
+		} else if (stepCounterSensor != null) {
+			mStepSensor = stepCounterSensor;
+			mBackend = BACKEND_HARDWARE_STEP_COUNTER;
+			Log.i(TAG, "Using hardware step counter.");
+			return;
+		}
+
+		mBackend = BACKEND_SOFTWARE;
+
+		mLinearAccelSensor = mSensorHub.selectSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+		mGravitySensor = mSensorHub.selectSensor(Sensor.TYPE_GRAVITY);
 		
 		int notAvailabelSensors = 0;
 
-		if (liearAccelSensors.size() == 0) {
+		if (mLinearAccelSensor == null) {
 			// Linear Acceleration sensor not available
 			notAvailabelSensors = notAvailabelSensors | Sensor.TYPE_LINEAR_ACCELERATION;
-		} else {
-			// Assume the first in the list is the default sensor
-			// Assumption may not be true though
-			mLinearAccelSensor = liearAccelSensors.get(0);
 		}
 
-		if (gravitySensors.size() == 0) {
+		if (mGravitySensor == null) {
 			// Gravity sensor not available
 			notAvailabelSensors = notAvailabelSensors | Sensor.TYPE_GRAVITY;
-		} else {
-			// Assume the first in the list is the default sensor
-			// Assumption may not be true though
-			mGravitySensor = gravitySensors.get(0);
 		}
 		
 		if (notAvailabelSensors != 0) {
@@ -123,29 +212,40 @@ public class StepDetector extends SensorService implements SensorEventListener,
 			throw new SensorNotAvailableException(notAvailabelSensors, "StepDetector");
 		}
 
-		mStepListeners = new LinkedList<StepListener>();
-
-		if (stepListener != null) {
-			mStepListeners.add(stepListener);
-		}
+		Log.i(TAG, "Using software step detection.");
 	}
 
 	@Override
 	protected void start() {
+		if (mBackend != BACKEND_SOFTWARE) {
+			// Counter reports steps since boot, base is set by first event
+			mStepCounterBase = -1;
+
+			mSensorHub.registerListener(this, mStepSensor.getType(), SensorManager.SENSOR_DELAY_NORMAL, mMaxReportLatencyUs);
+			Log.i(TAG, "Hardware step sensor registered.");
+
+			Log.i(TAG, "StepDetector started.");
+			return;
+		}
+
 		if (mStepDetectorCalculationThread == null) {
 			mStepDetectorCalculationThread = new StepDetectorCalculationThread();
+			mStepDetectorCalculationThread.setCpuAccounting(getCpuAccounting());
 			mStepDetectorCalculationThread.start();
 			Log.i(TAG, "StepDetectorCalculationThread started.");
 		}
 
-		if (mSensorManager == null) {
-			mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+		if (mGated) {
+			// Stays parked until user leaves the vehicle
+			mStepDetectorCalculationThread.park();
+			Log.i(TAG, "StepDetector started, but gated in vehicle.");
+			return;
 		}
 
-		mSensorManager.registerListener(this, mLinearAccelSensor, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SensorManager.SENSOR_DELAY_GAME);
 		Log.i(TAG, "Linear acceleration sensor registered.");
 
-		mSensorManager.registerListener(this, mGravitySensor, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
 		Log.i(TAG, "Gravity sesnor registered.");
 
 		Log.i(TAG, "StepDetector started.");
@@ -165,46 +265,141 @@ public class StepDetector extends SensorService implements SensorEventListener,
 			mStepDetectorCalculationThread = null;
 		}
 
-		mSensorManager.unregisterListener(this);
+		mSensorHub.unregisterListener(this);
 		Log.i(TAG, "Sensors unregistered.");
 
+		mMotionStateDetector.reset();
+
 		Log.i(TAG, "StepDetector stopped.");
 	}
 
+	@Override
+	protected void pause() {
+		mSensorHub.unregisterListener(this);
+
+		StepDetectorCalculationThread stepDetectorCalculationThread = mStepDetectorCalculationThread;
+		if (stepDetectorCalculationThread != null) {
+			stepDetectorCalculationThread.park();
+		}
+
+		Log.i(TAG, "StepDetector paused.");
+	}
+
+	@Override
+	protected void resume() {
+		if (mBackend != BACKEND_SOFTWARE || mStepDetectorCalculationThread == null) {
+			// Hardware backend holds no state worth keeping. Counter base is
+			// reset so steps taken while paused aren't reported in a burst.
+			start();
+			return;
+		}
+
+		if (mGated) {
+			// Stays parked until user leaves the vehicle
+			Log.i(TAG, "StepDetector resumed, but gated in vehicle.");
+			return;
+		}
+
+		mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SensorManager.SENSOR_DELAY_GAME);
+		mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
+		mStepDetectorCalculationThread.unpark();
+		Log.i(TAG, "StepDetector resumed.");
+	}
+
+	@Override
+	protected void setActivity(int activity) {
+		boolean gated = activity == ActivityRecognitionService.ACTIVITY_VEHICLE;
+		if (gated == mGated) {
+			return;
+		}
+		mGated = gated;
+
+		StepDetectorCalculationThread stepDetectorCalculationThread = mStepDetectorCalculationThread;
+		if (stepDetectorCalculationThread == null) {
+			return;
+		}
+
+		// Vehicle vibration produces false steps, so detection is stopped
+		// until user leaves the vehicle
+		if (gated) {
+			mSensorHub.unregisterListener(this);
+			stepDetectorCalculationThread.park();
+			Log.i(TAG, "StepDetector gated in vehicle.");
+		} else {
+			mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SensorManager.SENSOR_DELAY_GAME);
+			mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
+			stepDetectorCalculationThread.unpark();
+			Log.i(TAG, "StepDetector resumed after vehicle.");
+		}
+	}
+
+	@Override
+	protected void setStationary(boolean stationary) {
+		StepDetectorCalculationThread stepDetectorCalculationThread = mStepDetectorCalculationThread;
+		if (stepDetectorCalculationThread == null || mGated) {
+			return;
+		}
+
+		// Linear acceleration keeps coming at a lower rate, so that motion
+		// state detector can notice when device starts moving again.
+		if (stationary) {
+			mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SENSOR_DELAY_STATIONARY);
+			mSensorHub.unregisterListener(this, Sensor.TYPE_GRAVITY);
+			stepDetectorCalculationThread.park();
+			Log.i(TAG, "StepDetector parked.");
+		} else {
+			mSensorHub.registerListener(this, Sensor.TYPE_LINEAR_ACCELERATION, SensorManager.SENSOR_DELAY_GAME);
+			mSensorHub.registerListener(this, Sensor.TYPE_GRAVITY, SensorManager.SENSOR_DELAY_GAME);
+			stepDetectorCalculationThread.unpark();
+			Log.i(TAG, "StepDetector resumed.");
+		}
+	}
+
 	private final class StepDetectorCalculationThread extends AbstractSensorWorkerThread {
 
 		private static final long DEFAULT_INTERVAL = 80;
-		private static final float DEFAULT_LIMIT = 0.87F;
-
-		private final float limit;
 
 		private float[] linearAccel;
 		private float[] gravity;
 		private float[] rotationMatrix;
+		private boolean hasLinearAccel;
+		private boolean hasGravity;
+
+		private CadenceEstimator cadenceEstimator;
 
 		public StepDetectorCalculationThread() {
-			this(DEFAULT_INTERVAL, DEFAULT_LIMIT);
+			this(DEFAULT_INTERVAL);
 		}
 
 		public StepDetectorCalculationThread(long interval) {
-			this(interval, DEFAULT_LIMIT);
-		}
-
-		public StepDetectorCalculationThread(long interval, float limit) {
 			super(interval);
 
-			this.limit = limit;
 			this.linearAccel = new float[3];
 			this.gravity = new float[3];
 			this.rotationMatrix = new float[9];
+			this.hasLinearAccel = false;
+			this.hasGravity = false;
+			this.cadenceEstimator = new CadenceEstimator(1000.0F / interval);
 		}
 
 		public synchronized void pushLinearAccel(float[] values) {
 			System.arraycopy(values, 0, linearAccel, 0, 3);
+			hasLinearAccel = true;
 		}
 
 		public synchronized void pushGravity(float[] values) {
 			System.arraycopy(values, 0, gravity, 0, 3);
+			hasGravity = true;
+		}
+
+		/**
+		 * Check whether both linear acceleration and gravity have been 
+		 * received, since gravity of zeros gives NaN in gravity direction.
+		 * 
+		 * @return true if there are samples to process.
+		 */
+		public synchronized boolean hasSamples() {
+			return hasLinearAccel && hasGravity;
 		}
 
 		public synchronized void pushRotationMatrix(float[] R) {
@@ -223,18 +418,6 @@ public class StepDetector extends SensorService implements SensorEventListener,
 			return rotationMatrix;
 		}
 
-		private float getAccelInGravityDirection(float[] linearAccel, float[] gravity) {
-			// float gravityScalar = SensorManager.GRAVITY_EARTH;
-			float gravityScalar = (float) Math.sqrt(gravity[0] * gravity[0]
-					+ gravity[1] * gravity[1] + gravity[2] * gravity[2]);
-			float dotProduct = linearAccel[0] * gravity[0] + linearAccel[1]
-					* gravity[1] + linearAccel[2] * gravity[2];
-
-			float aigd = (float) (dotProduct / gravityScalar);
-
-			return aigd;
-		}
-
 		private void getAccelInWorldCoordinateSystem(float[] aiwcs, float[] linearAccel, float[] rotationMatrix) {
 			aiwcs[0] = linearAccel[0] * rotationMatrix[0] + linearAccel[1]
 					* rotationMatrix[1] + linearAccel[2] * rotationMatrix[2];
@@ -246,35 +429,30 @@ public class StepDetector extends SensorService implements SensorEventListener,
 
 		@Override
 		public void run() {
-			boolean readyForStep = false;
-			float previousForReadyValue = 0.0F;
+			StepDetectionAlgorithm algorithm = mStepDetectionAlgorithm;
+			algorithm.reset();
 
 			float[] aiwcs = new float[3];
 
 			while (!isTerminated()) {
-				if (getGravity() != null && getLinearAccel() != null) {
+				if (hasSamples()) {
 					// if (getLinearAccel() != null) {
-					boolean step = false;
+					if (algorithm != mStepDetectionAlgorithm) {
+						// Algorithm has been switched
+						algorithm = mStepDetectionAlgorithm;
+						algorithm.reset();
+					}
 
 					float[] linearAccel = getLinearAccel();
 					// float[] gravity = getGravity();
 					float[] rotationMatrix = getRotationMatrix();
 					getAccelInWorldCoordinateSystem(aiwcs, linearAccel, rotationMatrix);
 
-					float accelInGravityDirection = getAccelInGravityDirection(linearAccel, gravity);
-					// float accelInGravityDirection = aiwcs[2];
+					boolean step = algorithm.detectStep(linearAccel, gravity);
 
-					if (!readyForStep) {
-						if (Math.abs(accelInGravityDirection) > limit) {
-							previousForReadyValue = accelInGravityDirection;
-							readyForStep = true;
-						}
-					} else {
-						if ((previousForReadyValue < 0 && accelInGravityDirection > limit)
-								|| (previousForReadyValue > 0 && accelInGravityDirection < -limit)) {
-							step = true;
-							readyForStep = false;
-						}
+					SnapshotPublisher snapshotPublisher = getSnapshotPublisher();
+					if (snapshotPublisher != null) {
+						snapshotPublisher.publishMovement(aiwcs, step);
 					}
 
 					for (StepListener listener : mStepListeners) {
@@ -284,10 +462,26 @@ public class StepDetector extends SensorService implements SensorEventListener,
 						
 						listener.onMovement(aiwcs);
 					}
+
+					if (!mCadenceListeners.isEmpty()) {
+						cadenceEstimator.push(LimitCrossingStepDetectionAlgorithm.getAccelInGravityDirection(linearAccel, gravity),
+								SystemClock.elapsedRealtime());
+
+						if (cadenceEstimator.isReady()) {
+							float frequency = cadenceEstimator.getFrequency();
+							float cadence = cadenceEstimator.getCadence();
+							float confidence = cadenceEstimator.getConfidence();
+							for (CadenceListener listener : mCadenceListeners) {
+								listener.onCadenceChanged(frequency, cadence, confidence);
+							}
+						}
+					}
+
+					markCallbackDelivered();
 				}
 
 				try {
-					Thread.sleep(getInterval());
+					sleepInterval();
 				} catch (InterruptedException e) {
 					Log.w(TAG, e.getMessage(), e);
 				}
@@ -299,6 +493,7 @@ public class StepDetector extends SensorService implements SensorEventListener,
 	public StepDetector addListener(StepListener stepListener) {
 		if (stepListener != null) {
 			mStepListeners.add(stepListener);
+			notifyDemandChanged();
 			
 			return this;
 		} else {
@@ -306,31 +501,167 @@ public class StepDetector extends SensorService implements SensorEventListener,
 		}
 	}
 
+	public StepDetector removeListener(StepListener stepListener) {
+		if (stepListener != null) {
+			mStepListeners.remove(stepListener);
+			notifyDemandChanged();
+			
+			return this;
+		} else {
+			throw new NullPointerException("StepListener is null.");
+		}
+	}
+
+	/**
+	 * Add listener for walking cadence. Cadence is only estimated while
+	 * there are cadence listeners, and only by software backend, since
+	 * hardware step sensors don't provide acceleration.
+	 * 
+	 * @param cadenceListener cadence listener.
+	 * @return StepDetector itself.
+	 */
+	public StepDetector addCadenceListener(CadenceListener cadenceListener) {
+		if (cadenceListener != null) {
+			mCadenceListeners.add(cadenceListener);
+			notifyDemandChanged();
+			
+			return this;
+		} else {
+			throw new NullPointerException("CadenceListener is null.");
+		}
+	}
+
+	public StepDetector removeCadenceListener(CadenceListener cadenceListener) {
+		if (cadenceListener != null) {
+			mCadenceListeners.remove(cadenceListener);
+			notifyDemandChanged();
+			
+			return this;
+		} else {
+			throw new NullPointerException("CadenceListener is null.");
+		}
+	}
+
+	/**
+	 * Set algorithm used for detecting steps. It takes effect on the next
+	 * sample, with the algorithm's state reset.
+	 * 
+	 * @param stepDetectionAlgorithm algorithm for detecting steps.
+	 * @return StepDetector itself.
+	 */
+	public StepDetector setStepDetectionAlgorithm(StepDetectionAlgorithm stepDetectionAlgorithm) {
+		if (stepDetectionAlgorithm != null) {
+			mStepDetectionAlgorithm = stepDetectionAlgorithm;
+
+			return this;
+		} else {
+			throw new NullPointerException("StepDetectionAlgorithm is null.");
+		}
+	}
+
+	/**
+	 * Get algorithm currently used for detecting steps. Default is
+	 * {@link LimitCrossingStepDetectionAlgorithm}.
+	 * 
+	 * @return algorithm for detecting steps.
+	 */
+	public StepDetectionAlgorithm getStepDetectionAlgorithm() {
+		return mStepDetectionAlgorithm;
+	}
+
+	/**
+	 * Get backend used for detecting steps, which is one of
+	 * StepDetector.BACKEND_*. Step detection algorithm is only used by
+	 * software backend.
+	 * 
+	 * @return backend.
+	 */
+	public int getBackend() {
+		return mBackend;
+	}
+
+	/**
+	 * Set maximum report latency for hardware step sensors. Larger values let
+	 * hardware batch more steps before waking up the application processor.
+	 * It takes effect next time StepDetector is started.
+	 * 
+	 * @param maxReportLatencyUs maximum report latency in microseconds, 0
+	 * disables batching.
+	 * @return StepDetector itself.
+	 */
+	public StepDetector setMaxReportLatency(int maxReportLatencyUs) {
+		mMaxReportLatencyUs = maxReportLatencyUs;
+
+		return this;
+	}
+
+	/**
+	 * Get motion state detector, which tells whether the device is stationary
+	 * and how long it has been in each state. It's fed by linear acceleration,
+	 * so it always reports moving when hardware backend is used.
+	 * 
+	 * @return motion state detector.
+	 */
+	public MotionStateDetector getMotionStateDetector() {
+		return mMotionStateDetector;
+	}
+
+	OrientationService getOrientationService() {
+		return mOrientationService;
+	}
+
 	protected StepDetector removeListeners() {
 		mStepListeners.clear();
+		mCadenceListeners.clear();
+		notifyDemandChanged();
 		
 		return this;
 	}
 
 	@Override
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// Not used.
+	protected boolean hasExternalListeners() {
+		return containsExternalListener(mStepListeners) || !mCadenceListeners.isEmpty();
 	}
 
 	@Override
-	public void onSensorChanged(SensorEvent event) {
+	public void onSensorChanged(int type, float[] values, long timestamp) {
 		synchronized (this) {
-			if (mStepDetectorCalculationThread != null) {
-				Sensor sensor = event.sensor;
-				if (sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION) {
-					mStepDetectorCalculationThread.pushLinearAccel(event.values);
-				} else if (sensor.getType() == Sensor.TYPE_GRAVITY) {
-					mStepDetectorCalculationThread.pushGravity(event.values);
+			if (type == TYPE_STEP_DETECTOR) {
+				onHardwareSteps(1);
+			} else if (type == TYPE_STEP_COUNTER) {
+				long count = (long) values[0];
+				if (mStepCounterBase >= 0 && count > mStepCounterBase) {
+					onHardwareSteps((int) (count - mStepCounterBase));
+				}
+				mStepCounterBase = count;
+			} else if (mStepDetectorCalculationThread != null) {
+				if (type == Sensor.TYPE_LINEAR_ACCELERATION) {
+					mStepDetectorCalculationThread.pushLinearAccel(values);
+					mMotionStateDetector.pushLinearAccel(values);
+				} else if (type == Sensor.TYPE_GRAVITY) {
+					mStepDetectorCalculationThread.pushGravity(values);
 				}
 			}
 		}
 	}
 
+	private void onHardwareSteps(int steps) {
+		SnapshotPublisher snapshotPublisher = getSnapshotPublisher();
+		if (snapshotPublisher != null) {
+			snapshotPublisher.publishSteps(steps);
+		}
+
+		// Movement isn't measured by hardware backend, so a zero vector is
+		// passed as movement values.
+		for (int i = 0; i < steps; i++) {
+			for (StepListener listener : mStepListeners) {
+				listener.onStep(mHardwareMovement);
+			}
+		}
+
+		markCallbackDelivered();
+	}
+
 	@Override
 	public void onOrientationChanged(float[] values) {
 		// Not used.
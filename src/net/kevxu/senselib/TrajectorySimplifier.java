@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.kevxu.senselib.LocationService.LocationServiceListener;
+import net.kevxu.senselib.util.GeoUtils;
+import android.location.Location;
+
+/**
+ * Drops locations which are redundant within a tolerance, while locations 
+ * are reported, so that stored and uploaded trajectories only keep the 
+ * turns. Register it as listener of {@link LocationService}, and listen to
+ * it for kept locations.
+ * <p>
+ * Uses sleeve (cone intersection) simplification. From the last kept 
+ * location, every later location farther than tolerance allows a sector of
+ * directions whose line passes within tolerance of it. Sectors are 
+ * intersected as locations arrive, and the previous location is kept once
+ * a new location falls outside of the intersection, or comes back more 
+ * than tolerance towards the last kept one. So each location costs O(1),
+ * and every dropped location is within tolerance of the line through its
+ * kept segment, and no farther than tolerance beyond the segment's ends.
+ * 
+ * @author Kaiwen Xu
+ */
+public class TrajectorySimplifier implements LocationServiceListener {
+
+	/**
+	 * Default tolerance is 5 meters, within GPS accuracy.
+	 */
+	public static final float DEFAULT_TOLERANCE = 5.0F;
+
+	private final float mTolerance;
+
+	private List<TrajectoryListener> mTrajectoryListeners;
+
+	private Location mAnchor;
+	private Location mLast;
+	private boolean mLastKept;
+
+	// Sector of directions, relative to direction of the first constraint
+	private boolean mHasSector;
+	private double mSectorDirection;
+	private double mSectorLow;
+	private double mSectorHigh;
+	private double mMaxDistance;
+
+	private final double[] mLocal;
+
+	private long mPushedCount;
+	private long mKeptCount;
+
+	public interface TrajectoryListener {
+
+		/**
+		 * Called when a location is kept. The first location is kept right
+		 * away, the others once a later location shows they are needed.
+		 * 
+		 * @param location kept location, which can be stored by listener.
+		 */
+		public void onLocationKept(Location location);
+
+	}
+
+	public TrajectorySimplifier() {
+		this(DEFAULT_TOLERANCE);
+	}
+
+	/**
+	 * @param tolerance maximum distance of dropped locations from kept 
+	 *            trajectory in meters.
+	 */
+	public TrajectorySimplifier(float tolerance) {
+		if (tolerance <= 0.0F) {
+			throw new IllegalArgumentException("Tolerance must be positive.");
+		}
+
+		mTolerance = tolerance;
+		mTrajectoryListeners = new CopyOnWriteArrayList<TrajectoryListener>();
+		mLocal = new double[2];
+	}
+
+	public TrajectorySimplifier addListener(TrajectoryListener trajectoryListener) {
+		if (trajectoryListener != null) {
+			mTrajectoryListeners.add(trajectoryListener);
+
+			return this;
+		} else {
+			throw new NullPointerException("TrajectoryListener is null.");
+		}
+	}
+
+	public TrajectorySimplifier removeListener(TrajectoryListener trajectoryListener) {
+		if (trajectoryListener != null) {
+			mTrajectoryListeners.remove(trajectoryListener);
+
+			return this;
+		} else {
+			throw new NullPointerException("TrajectoryListener is null.");
+		}
+	}
+
+	/**
+	 * Add a location of the trajectory.
+	 * 
+	 * @param location location, which isn't kept by simplifier.
+	 */
+	public synchronized void push(Location location) {
+		mPushedCount++;
+
+		if (mAnchor == null) {
+			mAnchor = new Location(location);
+			mLast = new Location(location);
+			mLastKept = true;
+			resetSector();
+			keep(mAnchor);
+			return;
+		}
+
+		GeoUtils.toLocal(mAnchor.getLatitude(), mAnchor.getLongitude(),
+				location.getLatitude(), location.getLongitude(), mLocal);
+		if (!fitsSector(mLocal[0], mLocal[1])) {
+			// Previous location is needed, and starts a new segment
+			mAnchor.set(mLast);
+			resetSector();
+			keep(mAnchor);
+
+			GeoUtils.toLocal(mAnchor.getLatitude(), mAnchor.getLongitude(),
+					location.getLatitude(), location.getLongitude(), mLocal);
+		}
+
+		addToSector(mLocal[0], mLocal[1]);
+		mLast.set(location);
+		mLastKept = false;
+	}
+
+	/**
+	 * Keep the last location if it's not kept yet, for example when 
+	 * trajectory ends.
+	 */
+	public synchronized void flush() {
+		if (mLast != null && !mLastKept) {
+			mAnchor.set(mLast);
+			resetSector();
+			keep(mAnchor);
+			mLastKept = true;
+		}
+	}
+
+	/**
+	 * Forget trajectory, so that next location starts a new one.
+	 */
+	public synchronized void reset() {
+		mAnchor = null;
+		mLast = null;
+		resetSector();
+	}
+
+	private void resetSector() {
+		mHasSector = false;
+		mMaxDistance = 0.0;
+	}
+
+	private boolean fitsSector(double north, double east) {
+		double distance = Math.sqrt(north * north + east * east);
+		if (distance < mMaxDistance - mTolerance) {
+			// Coming back along segment
+			return false;
+		}
+
+		if (!mHasSector || distance <= mTolerance) {
+			return true;
+		}
+
+		double direction = normalizeAngle(Math.atan2(east, north) - mSectorDirection);
+		return direction >= mSectorLow && direction <= mSectorHigh;
+	}
+
+	private void addToSector(double north, double east) {
+		double distance = Math.sqrt(north * north + east * east);
+		mMaxDistance = Math.max(mMaxDistance, distance);
+		if (distance <= mTolerance) {
+			// Any direction passes within tolerance
+			return;
+		}
+
+		double halfWidth = Math.asin(mTolerance / distance);
+		double direction = Math.atan2(east, north);
+		if (!mHasSector) {
+			mSectorDirection = direction;
+			mSectorLow = -halfWidth;
+			mSectorHigh = halfWidth;
+			mHasSector = true;
+		} else {
+			direction = normalizeAngle(direction - mSectorDirection);
+			mSectorLow = Math.max(mSectorLow, direction - halfWidth);
+			mSectorHigh = Math.min(mSectorHigh, direction + halfWidth);
+		}
+	}
+
+	private static double normalizeAngle(double angle) {
+		while (angle > Math.PI) {
+			angle -= 2.0 * Math.PI;
+		}
+		while (angle <= -Math.PI) {
+			angle += 2.0 * Math.PI;
+		}
+
+		return angle;
+	}
+
+	private void keep(Location location) {
+		mKeptCount++;
+
+		for (TrajectoryListener listener : mTrajectoryListeners) {
+			listener.onLocationKept(new Location(location));
+		}
+	}
+
+	public float getTolerance() {
+		return mTolerance;
+	}
+
+	/**
+	 * Get number of locations pushed since creation.
+	 * 
+	 * @return number of pushed locations.
+	 */
+	public synchronized long getPushedCount() {
+		return mPushedCount;
+	}
+
+	/**
+	 * Get number of locations kept since creation.
+	 * 
+	 * @return number of kept locations.
+	 */
+	public synchronized long getKeptCount() {
+		return mKeptCount;
+	}
+
+	@Override
+	public void onServiceLevelChanged(int level) {
+		// Not part of trajectory
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		push(location);
+	}
+
+	/**
+	 * Simulate an hour of walking at 1.4 m/s with 1 Hz GPS fixes and 1 m 
+	 * noise, turning every 5 minutes, and report how many fixes are kept 
+	 * and how far the farthest fix is from the simplified trajectory.
+	 */
+	public static void main(String[] args) {
+		int updates = 3600;
+		double originLatitude = 40.0;
+		double originLongitude = -75.0;
+		java.util.Random random = new java.util.Random(5);
+		double[] position = new double[2];
+
+		final List<double[]> kept = new java.util.ArrayList<double[]>();
+		final double listenerLatitude = originLatitude;
+		final double listenerLongitude = originLongitude;
+		TrajectorySimplifier simplifier = new TrajectorySimplifier();
+		simplifier.addListener(new TrajectoryListener() {
+
+			@Override
+			public void onLocationKept(Location location) {
+				double[] local = new double[2];
+				GeoUtils.toLocal(listenerLatitude, listenerLongitude, location.getLatitude(), location.getLongitude(), local);
+				kept.add(local);
+			}
+
+		});
+
+		double[] walk = new double[updates * 2];
+		double north = 0.0;
+		double east = 0.0;
+		double heading = 0.0;
+		for (int i = 0; i < updates; i++) {
+			if (i % 300 == 0) {
+				heading += random.nextDouble() * 2.0 - 1.0;
+			}
+			north += 1.4 * Math.cos(heading);
+			east += 1.4 * Math.sin(heading);
+			walk[i * 2] = north + random.nextGaussian();
+			walk[i * 2 + 1] = east + random.nextGaussian();
+
+			GeoUtils.offset(originLatitude, originLongitude, walk[i * 2], walk[i * 2 + 1], position);
+			Location location = new Location("gps");
+			location.setLatitude(position[0]);
+			location.setLongitude(position[1]);
+			location.setTime(i * 1000L);
+			simplifier.push(location);
+		}
+		simplifier.flush();
+
+		// Error of each fix is its distance to nearest kept segment
+		double maxError = 0.0;
+		for (int i = 0; i < updates; i++) {
+			double error = Double.MAX_VALUE;
+			for (int j = 0; j + 1 < kept.size(); j++) {
+				error = Math.min(error, getSegmentDistance(walk[i * 2], walk[i * 2 + 1], kept.get(j), kept.get(j + 1)));
+			}
+			maxError = Math.max(maxError, error);
+		}
+
+		System.out.printf("Kept %d of %d locations, max error %.2f m (tolerance %.1f m)%n", 
+				simplifier.getKeptCount(), simplifier.getPushedCount(), maxError, simplifier.getTolerance());
+	}
+
+	private static double getSegmentDistance(double north, double east, double[] start, double[] end) {
+		double segmentNorth = end[0] - start[0];
+		double segmentEast = end[1] - start[1];
+		double squaredLength = segmentNorth * segmentNorth + segmentEast * segmentEast;
+		double t = 0.0;
+		if (squaredLength > 0.0) {
+			t = ((north - start[0]) * segmentNorth + (east - start[1]) * segmentEast) / squaredLength;
+			t = Math.max(0.0, Math.min(1.0, t));
+		}
+		double dn = start[0] + t * segmentNorth - north;
+		double de = start[1] + t * segmentEast - east;
+
+		return Math.sqrt(dn * dn + de * de);
+	}
+
+}
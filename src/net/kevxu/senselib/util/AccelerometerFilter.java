@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib.util;
+
+/**
+ * Separates raw accelerometer readings into gravity and linear acceleration,
+ * for devices without gravity and linear acceleration sensors, or where they
+ * cost extra power and latency. Gravity is the output of a Butterworth low
+ * pass filter, and linear acceleration is the rest of the reading, so that
+ * the two always add up to the raw reading.
+ * <p>
+ * Sample rate is estimated from event timestamps, and filter coefficients
+ * are recalculated when it drifts, since sensor rates are only a hint to
+ * Android. Pushing a sample never allocates memory.
+ * 
+ * @author Kaiwen Xu
+ */
+public final class AccelerometerFilter {
+
+	/**
+	 * Default cutoff is 0.4 Hz, well below walking cadence, which is around
+	 * 2 Hz.
+	 */
+	public static final double DEFAULT_CUTOFF = 0.4;
+
+	/**
+	 * Sample rate assumed until estimated from timestamps, which is the rate
+	 * of SENSOR_DELAY_GAME.
+	 */
+	public static final double DEFAULT_SAMPLE_RATE = 50.0;
+
+	// Relative drift of estimated sample rate before coefficients are updated
+	private static final double RATE_TOLERANCE = 0.2;
+
+	// Smoothing factor of sample interval estimation
+	private static final double INTERVAL_SMOOTHING = 0.1;
+
+	// Gap after which filter restarts instead of continuing, in nanoseconds
+	private static final long MAX_GAP = 1000000000L;
+
+	private final BiquadFilter mLowPass;
+
+	private final float[] mGravity;
+	private final float[] mLinearAccel;
+
+	private boolean mInitialized;
+	private long mLastTimestamp;
+	private double mInterval;
+
+	public AccelerometerFilter() {
+		this(DEFAULT_CUTOFF);
+	}
+
+	/**
+	 * @param cutoff cutoff frequency between gravity and linear acceleration
+	 * in Hz.
+	 */
+	public AccelerometerFilter(double cutoff) {
+		mLowPass = new BiquadFilter(BiquadFilter.TYPE_LOW_PASS, 3, cutoff, DEFAULT_SAMPLE_RATE);
+		mGravity = new float[3];
+		mLinearAccel = new float[3];
+
+		reset();
+	}
+
+	/**
+	 * Push one accelerometer reading.
+	 * 
+	 * @param accel array of float with length 3, in m/s^2.
+	 * @param timestamp time in nanoseconds at which the event happened.
+	 */
+	public void push(float[] accel, long timestamp) {
+		long gap = timestamp - mLastTimestamp;
+
+		if (!mInitialized || gap <= 0 || gap > MAX_GAP) {
+			// Start from the current reading as gravity
+			mLowPass.reset(accel);
+			System.arraycopy(accel, 0, mGravity, 0, 3);
+			mLinearAccel[0] = 0.0F;
+			mLinearAccel[1] = 0.0F;
+			mLinearAccel[2] = 0.0F;
+
+			mInitialized = true;
+			mLastTimestamp = timestamp;
+			return;
+		}
+
+		mLastTimestamp = timestamp;
+		updateSampleRate(gap);
+
+		mLowPass.filter(accel, mGravity);
+		mLinearAccel[0] = accel[0] - mGravity[0];
+		mLinearAccel[1] = accel[1] - mGravity[1];
+		mLinearAccel[2] = accel[2] - mGravity[2];
+	}
+
+	private void updateSampleRate(long gap) {
+		if (mInterval <= 0) {
+			mInterval = gap;
+		} else {
+			mInterval += INTERVAL_SMOOTHING * (gap - mInterval);
+		}
+
+		double sampleRate = 1e9 / mInterval;
+		double filterRate = mLowPass.getSampleRate();
+		if (Math.abs(sampleRate - filterRate) > RATE_TOLERANCE * filterRate
+				&& sampleRate > 2 * mLowPass.getCutoff()) {
+			mLowPass.setSampleRate(sampleRate);
+		}
+	}
+
+	/**
+	 * Get gravity of latest reading. Array is reused by next push, so it
+	 * must not be kept.
+	 * 
+	 * @return array of float with length 3, in m/s^2.
+	 */
+	public float[] getGravity() {
+		return mGravity;
+	}
+
+	/**
+	 * Get linear acceleration of latest reading. Array is reused by next 
+	 * push, so it must not be kept.
+	 * 
+	 * @return array of float with length 3, in m/s^2.
+	 */
+	public float[] getLinearAcceleration() {
+		return mLinearAccel;
+	}
+
+	/**
+	 * Check whether a reading has been pushed since reset.
+	 * 
+	 * @return true if gravity and linear acceleration are available.
+	 */
+	public boolean isInitialized() {
+		return mInitialized;
+	}
+
+	/**
+	 * Get sample rate filter is currently designed for.
+	 * 
+	 * @return sample rate in Hz.
+	 */
+	public double getSampleRate() {
+		return mLowPass.getSampleRate();
+	}
+
+	public void reset() {
+		mInitialized = false;
+		mLastTimestamp = 0;
+		mInterval = 0;
+		mLowPass.reset();
+		mLowPass.setSampleRate(DEFAULT_SAMPLE_RATE);
+	}
+
+	/**
+	 * Benchmark per sample cost, and gravity error on simulated walking,
+	 * which is gravity along a slowly tilting axis plus a 2 Hz bounce.
+	 */
+	public static void main(String[] args) {
+		final int samples = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		final double sampleRate = DEFAULT_SAMPLE_RATE;
+		final long interval = (long) (1e9 / sampleRate);
+		final float g = 9.80665F;
+
+		AccelerometerFilter filter = new AccelerometerFilter();
+		float[] accel = new float[3];
+
+		for (int round = 0; round < 3; round++) {
+			filter.reset();
+			double errorSum = 0;
+			int errorCount = 0;
+			float sink = 0;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < samples; i++) {
+				double t = i / sampleRate;
+				double tilt = 0.3 * Math.sin(2 * Math.PI * 0.02 * t);
+				float bounce = (float) (2.0 * Math.sin(2 * Math.PI * 2.0 * t));
+				float gy = (float) (g * Math.sin(tilt));
+				float gz = (float) (g * Math.cos(tilt));
+				accel[0] = 0.0F;
+				accel[1] = gy;
+				accel[2] = gz + bounce;
+
+				filter.push(accel, i * interval);
+				float[] gravity = filter.getGravity();
+				sink += gravity[2];
+
+				// Skip settling time
+				if (i > 10 * sampleRate) {
+					float dy = gravity[1] - gy;
+					float dz = gravity[2] - gz;
+					errorSum += Math.sqrt(dy * dy + dz * dz);
+					errorCount++;
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			// Signal generation with sin() dominates, so measure it alone
+			start = System.nanoTime();
+			for (int i = 0; i < samples; i++) {
+				double t = i / sampleRate;
+				double tilt = 0.3 * Math.sin(2 * Math.PI * 0.02 * t);
+				float bounce = (float) (2.0 * Math.sin(2 * Math.PI * 2.0 * t));
+				accel[1] = (float) (g * Math.sin(tilt));
+				accel[2] = (float) (g * Math.cos(tilt)) + bounce;
+				sink += accel[2];
+			}
+			long generation = System.nanoTime() - start;
+
+			System.out.printf("round %d: %.1f ns/sample, mean gravity error %.4f m/s^2 (%s)%n",
+					round, (double) (elapsed - generation) / samples, errorSum / errorCount, sink > 0 ? "ok" : "");
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib.util;
+
+/**
+ * Second order IIR filter applied independently on several channels, such as
+ * x, y and z axis of a sensor. Coefficients follow Robert Bristow-Johnson's
+ * Audio EQ Cookbook, and filtering uses transposed direct form II. All state
+ * is preallocated, so filtering never allocates memory.
+ * <p>
+ * State and coefficients are kept in double, since with a cutoff far below
+ * sample rate, float coefficients lose enough precision to shift the pole.
+ * 
+ * @author Kaiwen Xu
+ */
+public final class BiquadFilter {
+
+	public static final int TYPE_LOW_PASS = 0;
+	public static final int TYPE_HIGH_PASS = 1;
+
+	/**
+	 * Q of a Butterworth filter, which has the flattest pass band.
+	 */
+	public static final double BUTTERWORTH_Q = Math.sqrt(0.5);
+
+	private final int mType;
+	private final int mChannels;
+	private final double mCutoff;
+	private final double mQ;
+	private double mSampleRate;
+
+	// Coefficients normalized by a0
+	private double b0, b1, b2, a1, a2;
+
+	// Delay line of each channel
+	private final double[] mZ1;
+	private final double[] mZ2;
+
+	public BiquadFilter(int type, int channels, double cutoff, double sampleRate) {
+		this(type, channels, cutoff, sampleRate, BUTTERWORTH_Q);
+	}
+
+	/**
+	 * @param type BiquadFilter.TYPE_*.
+	 * @param channels number of channels.
+	 * @param cutoff cutoff frequency in Hz.
+	 * @param sampleRate sample rate in Hz.
+	 * @param q quality factor.
+	 */
+	public BiquadFilter(int type, int channels, double cutoff, double sampleRate, double q) {
+		if (type != TYPE_LOW_PASS && type != TYPE_HIGH_PASS) {
+			throw new IllegalArgumentException("Unknown filter type " + type + ".");
+		}
+
+		mType = type;
+		mChannels = channels;
+		mCutoff = cutoff;
+		mQ = q;
+		mZ1 = new double[channels];
+		mZ2 = new double[channels];
+
+		setSampleRate(sampleRate);
+	}
+
+	/**
+	 * Recalculate coefficients for a new sample rate. Filter state is kept.
+	 * 
+	 * @param sampleRate sample rate in Hz.
+	 */
+	public void setSampleRate(double sampleRate) {
+		if (sampleRate <= 2 * mCutoff) {
+			throw new IllegalArgumentException("Sample rate " + sampleRate + " is below Nyquist rate.");
+		}
+
+		mSampleRate = sampleRate;
+
+		double w0 = 2 * Math.PI * mCutoff / sampleRate;
+		double cos = Math.cos(w0);
+		double alpha = Math.sin(w0) / (2 * mQ);
+		double a0 = 1 + alpha;
+
+		if (mType == TYPE_LOW_PASS) {
+			b0 = (1 - cos) / 2 / a0;
+			b1 = (1 - cos) / a0;
+		} else {
+			b0 = (1 + cos) / 2 / a0;
+			b1 = -(1 + cos) / a0;
+		}
+		b2 = b0;
+		a1 = -2 * cos / a0;
+		a2 = (1 - alpha) / a0;
+	}
+
+	public double getSampleRate() {
+		return mSampleRate;
+	}
+
+	public double getCutoff() {
+		return mCutoff;
+	}
+
+	public int getChannels() {
+		return mChannels;
+	}
+
+	/**
+	 * Filter one sample of one channel.
+	 * 
+	 * @param channel channel index.
+	 * @param x input sample.
+	 * @return output sample.
+	 */
+	public float filter(int channel, float x) {
+		double y = b0 * x + mZ1[channel];
+		mZ1[channel] = b1 * x - a1 * y + mZ2[channel];
+		mZ2[channel] = b2 * x - a2 * y;
+
+		return (float) y;
+	}
+
+	/**
+	 * Filter one sample of all channels. Input and output can be the same
+	 * array.
+	 * 
+	 * @param input array of float with length of channels.
+	 * @param output array of float with length of channels.
+	 */
+	public void filter(float[] input, float[] output) {
+		for (int i = 0; i < mChannels; i++) {
+			output[i] = filter(i, input[i]);
+		}
+	}
+
+	/**
+	 * Clear filter state to zero input.
+	 */
+	public void reset() {
+		for (int i = 0; i < mChannels; i++) {
+			mZ1[i] = 0;
+			mZ2[i] = 0;
+		}
+	}
+
+	/**
+	 * Set filter state as if input had been constant for a long time, so
+	 * that there is no start up transient.
+	 * 
+	 * @param input array of float with length of channels.
+	 */
+	public void reset(float[] input) {
+		// DC gain is 1 for low pass and 0 for high pass
+		double gain = (b0 + b1 + b2) / (1 + a1 + a2);
+
+		for (int i = 0; i < mChannels; i++) {
+			double x = input[i];
+			double y = gain * x;
+			mZ1[i] = y - b0 * x;
+			mZ2[i] = b2 * x - a2 * y;
+		}
+	}
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib.util;
+
+/**
+ * Circular pool of float vectors stored as 16 bits values, using half the
+ * memory of a float[] pool and a fraction of a DataPool&lt;float[]&gt;, which
+ * also pays an object header per sample. Values are either stored as IEEE 
+ * 754 half-precision floats ({@link #MODE_FLOAT16}), with about 3 significant
+ * digits over any magnitude, or as int16 scaled by a per-pool range 
+ * ({@link #MODE_SCALED_INT16}), with constant absolute error inside the range
+ * and clipping outside of it.
+ * <p>
+ * Samples are decoded into caller's arrays. This data container is NOT
+ * thread-safe.
+ * 
+ * @author Kaiwen Xu
+ */
+public class CompactDataPool {
+
+	public static final int MODE_FLOAT16 = 0;
+	public static final int MODE_SCALED_INT16 = 1;
+
+	private final int mPoolSize;
+	private final int mDimension;
+	private final int mMode;
+	private final float mRange;
+	private final float mScale;
+
+	private short[] mPool;
+	private int mStartPos;
+	private int mSize;
+
+	private float mMaxAbs;
+	private int mClipped;
+
+	/**
+	 * Create pool storing half-precision floats.
+	 * 
+	 * @param poolSize maximum number of samples.
+	 * @param dimension number of values in each sample.
+	 */
+	public CompactDataPool(int poolSize, int dimension) {
+		this(poolSize, dimension, MODE_FLOAT16, 0.0F);
+	}
+
+	/**
+	 * Create pool storing int16 scaled to [-range, range].
+	 * 
+	 * @param poolSize maximum number of samples.
+	 * @param dimension number of values in each sample.
+	 * @param range largest absolute value to store without clipping.
+	 */
+	public CompactDataPool(int poolSize, int dimension, float range) {
+		this(poolSize, dimension, MODE_SCALED_INT16, range);
+	}
+
+	private CompactDataPool(int poolSize, int dimension, int mode, float range) {
+		if (poolSize <= 0 || dimension <= 0) {
+			throw new IllegalArgumentException("Pool size and dimension must be positive.");
+		}
+		if (mode == MODE_SCALED_INT16 && !(range > 0.0F)) {
+			throw new IllegalArgumentException("Range must be positive.");
+		}
+
+		mPoolSize = poolSize;
+		mDimension = dimension;
+		mMode = mode;
+		mRange = range;
+		mScale = range / Short.MAX_VALUE;
+		mPool = new short[poolSize * dimension];
+		mStartPos = 0;
+		mSize = 0;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getPoolSize() {
+		return mPoolSize;
+	}
+
+	public int getDimension() {
+		return mDimension;
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	public void append(float[] values) {
+		int offset = ((mStartPos + mSize) % mPoolSize) * mDimension;
+		if (mSize < mPoolSize) {
+			mSize++;
+		} else {
+			mStartPos = (mStartPos + 1) % mPoolSize;
+		}
+
+		for (int j = 0; j < mDimension; j++) {
+			mPool[offset + j] = encode(values[j]);
+		}
+	}
+
+	private short encode(float value) {
+		float abs = Math.abs(value);
+		if (abs > mMaxAbs) {
+			mMaxAbs = abs;
+		}
+
+		if (mMode == MODE_FLOAT16) {
+			return floatToHalf(value);
+		} else {
+			if (abs > mRange) {
+				mClipped++;
+				value = value > 0 ? mRange : -mRange;
+			}
+			return (short) Math.round(value / mScale);
+		}
+	}
+
+	private float decode(short value) {
+		if (mMode == MODE_FLOAT16) {
+			return halfToFloat(value);
+		} else {
+			return value * mScale;
+		}
+	}
+
+	/**
+	 * Decode i-th oldest sample.
+	 * 
+	 * @param i index, 0 is the oldest.
+	 * @param values array with length of at least dimension for decoded 
+	 *            sample.
+	 * @return values.
+	 */
+	public float[] get(int i, float[] values) {
+		if (i < 0 || i >= mSize) {
+			throw new IndexOutOfBoundsException("i is larger than DataPool size.");
+		}
+
+		int offset = ((mStartPos + i) % mPoolSize) * mDimension;
+		for (int j = 0; j < mDimension; j++) {
+			values[j] = decode(mPool[offset + j]);
+		}
+
+		return values;
+	}
+
+	/**
+	 * Decode i-th latest sample.
+	 * 
+	 * @param i index, 0 is the latest.
+	 * @param values array with length of at least dimension for decoded 
+	 *            sample.
+	 * @return values.
+	 */
+	public float[] getFromBack(int i, float[] values) {
+		return get(mSize - 1 - i, values);
+	}
+
+	/**
+	 * Get upper bound of absolute error between appended and decoded values,
+	 * for values appended so far. For {@link #MODE_FLOAT16} this depends on 
+	 * the largest magnitude appended. For {@link #MODE_SCALED_INT16} this
+	 * is about half of the scale, unless values were clipped, in which case it 
+	 * includes the clipping error.
+	 * 
+	 * @return error bound.
+	 */
+	public float getErrorBound() {
+		if (mMode == MODE_FLOAT16) {
+			if (mMaxAbs >= 65520.0F) {
+				// Overflow to infinity
+				return Float.POSITIVE_INFINITY;
+			}
+			// Half ulp of the largest value, at least half of subnormal step
+			int exponent = Math.max(Math.getExponent(mMaxAbs), -14);
+			return (float) Math.scalb(1.0, exponent - 11);
+		} else {
+			// Half of scale, plus float rounding in encoding and decoding
+			return Math.max(mScale / 2.0F + Math.ulp(mRange), mMaxAbs - mRange);
+		}
+	}
+
+	/**
+	 * Get number of values clipped to the range in {@link #MODE_SCALED_INT16}.
+	 * 
+	 * @return number of clipped values.
+	 */
+	public int getClippedCount() {
+		return mClipped;
+	}
+
+	public void clear() {
+		mStartPos = 0;
+		mSize = 0;
+		mMaxAbs = 0.0F;
+		mClipped = 0;
+	}
+
+	/**
+	 * Convert float to IEEE 754 half-precision, rounding to nearest even.
+	 * 
+	 * @param value float value.
+	 * @return half-precision bits.
+	 */
+	public static short floatToHalf(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xFF;
+		int mantissa = bits & 0x7FFFFF;
+
+		if (exponent == 0xFF) {
+			// Infinity or NaN
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		}
+
+		int halfExponent = exponent - 127 + 15;
+		if (halfExponent >= 0x1F) {
+			// Overflow
+			return (short) (sign | 0x7C00);
+		}
+
+		if (halfExponent <= 0) {
+			// Subnormal or zero
+			if (halfExponent < -10) {
+				return (short) sign;
+			}
+			mantissa |= 0x800000;
+			int shift = 14 - halfExponent;
+			int half = mantissa >>> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+				half++;
+			}
+			return (short) (sign | half);
+		}
+
+		int half = (halfExponent << 10) | (mantissa >>> 13);
+		int remainder = mantissa & 0x1FFF;
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+			// Carry may propagate into exponent, up to infinity
+			half++;
+		}
+		return (short) (sign | half);
+	}
+
+	/**
+	 * Convert IEEE 754 half-precision to float.
+	 * 
+	 * @param half half-precision bits.
+	 * @return float value.
+	 */
+	public static float halfToFloat(short half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1F;
+		int mantissa = half & 0x3FF;
+
+		if (exponent == 0x1F) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+
+		if (exponent == 0) {
+			// Subnormal or zero
+			float value = mantissa * 5.9604645E-8F; // 2^-24
+			return sign != 0 ? -value : value;
+		}
+
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	@Override
+	public String toString() {
+		return "CompactDataPool[size=" + mSize + ", poolSize=" + mPoolSize + ", dimension="
+				+ mDimension + ", mode=" + mMode + ", errorBound=" + getErrorBound() + "]";
+	}
+
+	public static void main(String[] args) {
+		CompactDataPool halfPool = new CompactDataPool(500, 3);
+		CompactDataPool scaledPool = new CompactDataPool(500, 3, 4 * 9.80665F);
+		float[] values = new float[3];
+		float[] decoded = new float[3];
+
+		java.util.Random random = new java.util.Random(0);
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j < 3; j++) {
+				values[j] = (float) (random.nextGaussian() * 9.80665);
+			}
+			halfPool.append(values);
+			scaledPool.append(values);
+		}
+
+		// Check error against bound with a fresh pass of known values
+		random = new java.util.Random(0);
+		float halfError = 0.0F;
+		float scaledError = 0.0F;
+		for (int i = 0; i < 1000; i++) {
+			for (int j = 0; j < 3; j++) {
+				values[j] = (float) (random.nextGaussian() * 9.80665);
+			}
+			if (i >= 500) {
+				halfPool.get(i - 500, decoded);
+				for (int j = 0; j < 3; j++) {
+					halfError = Math.max(halfError, Math.abs(decoded[j] - values[j]));
+				}
+				scaledPool.get(i - 500, decoded);
+				for (int j = 0; j < 3; j++) {
+					scaledError = Math.max(scaledError, Math.abs(decoded[j] - values[j]));
+				}
+			}
+		}
+
+		System.out.println(halfPool + ", max error " + halfError);
+		System.out.println(scaledPool + ", max error " + scaledError + ", clipped " + scaledPool.getClippedCount());
+	}
+
+}
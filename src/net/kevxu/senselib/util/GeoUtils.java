@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib.util;
+
+/**
+ * Helper functions for small displacements on the Earth's surface. A local
+ * tangent plane is used, so results are only accurate within a few
+ * kilometers, which is more than enough between two location fixes.
+ * 
+ * @author Kaiwen Xu
+ */
+public final class GeoUtils {
+
+	/**
+	 * Mean radius of the Earth in meters.
+	 */
+	public static final double EARTH_RADIUS = 6371008.8;
+
+	private GeoUtils() {
+	}
+
+	/**
+	 * Move a position by given displacement.
+	 * 
+	 * @param latitude latitude in degrees.
+	 * @param longitude longitude in degrees.
+	 * @param north displacement towards north in meters.
+	 * @param east displacement towards east in meters.
+	 * @param result array of double with length 2, new latitude is stored in
+	 *            index 0 and new longitude in index 1.
+	 */
+	public static void offset(double latitude, double longitude, double north, double east, double[] result) {
+		double latitudeRadians = Math.toRadians(latitude);
+
+		result[0] = latitude + Math.toDegrees(north / EARTH_RADIUS);
+		result[1] = longitude + Math.toDegrees(east / (EARTH_RADIUS * Math.cos(latitudeRadians)));
+	}
+
+	/**
+	 * Get displacement of a position from an origin. This is the inverse of
+	 * {@link #offset(double, double, double, double, double[])}.
+	 * 
+	 * @param originLatitude latitude of origin in degrees.
+	 * @param originLongitude longitude of origin in degrees.
+	 * @param latitude latitude in degrees.
+	 * @param longitude longitude in degrees.
+	 * @param result array of double with length 2, displacement towards north
+	 *            in meters is stored in index 0 and displacement towards east
+	 *            in index 1.
+	 */
+	public static void toLocal(double originLatitude, double originLongitude, double latitude, double longitude, double[] result) {
+		double originLatitudeRadians = Math.toRadians(originLatitude);
+
+		result[0] = Math.toRadians(latitude - originLatitude) * EARTH_RADIUS;
+		result[1] = Math.toRadians(longitude - originLongitude) * EARTH_RADIUS * Math.cos(originLatitudeRadians);
+	}
+
+}
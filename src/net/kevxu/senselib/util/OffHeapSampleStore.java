@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Circular store of timestamped 3-axis samples kept outside of Java heap, for
+ * hours of sensor history without millions of heap objects. Each sample is a
+ * fixed 20 bytes record (timestamp as long, and 3 floats), so 3 hours of
+ * 50 Hz samples take about 11 MB. Store is backed by either a direct
+ * ByteBuffer, or a memory-mapped file which survives process restarts.
+ * <p>
+ * API follows {@link DataPool}, but samples are copied into caller's arrays
+ * instead of returned as objects, so neither append nor get allocates. Like
+ * DataPool, this data container is NOT thread-safe.
+ * <p>
+ * File layout is a 32 bytes header (magic, version, capacity, start, size)
+ * followed by records, all little-endian. When full, header is updated to
+ * drop the oldest sample before its record is overwritten, so that a crash
+ * in between loses at most one sample instead of corrupting order.
+ * 
+ * @author Kaiwen Xu
+ */
+public class OffHeapSampleStore {
+
+	/**
+	 * Size of each record in bytes.
+	 */
+	public static final int RECORD_SIZE = 20;
+
+	private static final int HEADER_SIZE = 32;
+	private static final int MAGIC = 0x53534E53; // "SNSS"
+	private static final int VERSION = 1;
+
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_CAPACITY = 8;
+	private static final int OFFSET_START = 12;
+	private static final int OFFSET_SIZE = 16;
+
+	private final ByteBuffer mBuffer;
+	private final int mPoolSize;
+	private final RandomAccessFile mFile;
+
+	private int mStartPos;
+	private int mSize;
+
+	private OffHeapSampleStore(ByteBuffer buffer, int poolSize, RandomAccessFile file) {
+		mBuffer = buffer;
+		mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		mPoolSize = poolSize;
+		mFile = file;
+
+		if (mBuffer.getInt(OFFSET_MAGIC) == MAGIC && mBuffer.getInt(OFFSET_VERSION) == VERSION
+				&& mBuffer.getInt(OFFSET_CAPACITY) == poolSize
+				&& isValid(mBuffer.getInt(OFFSET_START), mBuffer.getInt(OFFSET_SIZE))) {
+			// Restore from file
+			mStartPos = mBuffer.getInt(OFFSET_START);
+			mSize = mBuffer.getInt(OFFSET_SIZE);
+		} else {
+			mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+			mBuffer.putInt(OFFSET_VERSION, VERSION);
+			mBuffer.putInt(OFFSET_CAPACITY, poolSize);
+			clear();
+		}
+	}
+
+	private boolean isValid(int startPos, int size) {
+		return startPos >= 0 && startPos < mPoolSize && size >= 0 && size <= mPoolSize;
+	}
+
+	/**
+	 * Create store in a direct ByteBuffer. Samples are lost when the store
+	 * is garbage collected.
+	 * 
+	 * @param poolSize maximum number of samples.
+	 * @return sample store.
+	 */
+	public static OffHeapSampleStore allocate(int poolSize) {
+		return new OffHeapSampleStore(ByteBuffer.allocateDirect(getFileSize(poolSize)), poolSize, null);
+	}
+
+	/**
+	 * Open store in a memory-mapped file, creating it if needed. Samples 
+	 * stored by a previous process are kept if file was created with the 
+	 * same pool size, otherwise file is cleared.
+	 * 
+	 * @param file file backing the store.
+	 * @param poolSize maximum number of samples.
+	 * @return sample store.
+	 * @throws IOException if file can't be opened or mapped.
+	 */
+	public static OffHeapSampleStore open(File file, int poolSize) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			int fileSize = getFileSize(poolSize);
+			randomAccessFile.setLength(fileSize);
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+			return new OffHeapSampleStore(buffer, poolSize, randomAccessFile);
+		} catch (IOException e) {
+			randomAccessFile.close();
+			throw e;
+		}
+	}
+
+	private static int getFileSize(int poolSize) {
+		if (poolSize <= 0 || poolSize > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+			throw new IllegalArgumentException("Invalid pool size " + poolSize + ".");
+		}
+
+		return HEADER_SIZE + poolSize * RECORD_SIZE;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getPoolSize() {
+		return mPoolSize;
+	}
+
+	public void append(long timestamp, float[] values) {
+		append(timestamp, values[0], values[1], values[2]);
+	}
+
+	public void append(long timestamp, float x, float y, float z) {
+		int endPos = (mStartPos + mSize) % mPoolSize;
+
+		if (mSize == mPoolSize) {
+			// Drop the oldest before overwriting it
+			mStartPos = (mStartPos + 1) % mPoolSize;
+			mSize--;
+			mBuffer.putInt(OFFSET_START, mStartPos);
+			mBuffer.putInt(OFFSET_SIZE, mSize);
+		}
+
+		int offset = HEADER_SIZE + endPos * RECORD_SIZE;
+		mBuffer.putLong(offset, timestamp);
+		mBuffer.putFloat(offset + 8, x);
+		mBuffer.putFloat(offset + 12, y);
+		mBuffer.putFloat(offset + 16, z);
+
+		mSize++;
+		mBuffer.putInt(OFFSET_SIZE, mSize);
+	}
+
+	private int getOffset(int i) {
+		if (i < 0 || i >= mSize) {
+			throw new IndexOutOfBoundsException("i is larger than OffHeapSampleStore size.");
+		}
+
+		return HEADER_SIZE + ((mStartPos + i) % mPoolSize) * RECORD_SIZE;
+	}
+
+	/**
+	 * Get i-th oldest sample.
+	 * 
+	 * @param i index, 0 is the oldest.
+	 * @param values array of float with length 3 for sample values.
+	 * @return timestamp of sample.
+	 */
+	public long get(int i, float[] values) {
+		int offset = getOffset(i);
+		values[0] = mBuffer.getFloat(offset + 8);
+		values[1] = mBuffer.getFloat(offset + 12);
+		values[2] = mBuffer.getFloat(offset + 16);
+
+		return mBuffer.getLong(offset);
+	}
+
+	/**
+	 * Get timestamp of i-th oldest sample.
+	 * 
+	 * @param i index, 0 is the oldest.
+	 * @return timestamp of sample.
+	 */
+	public long getTimestamp(int i) {
+		return mBuffer.getLong(getOffset(i));
+	}
+
+	/**
+	 * Get i-th latest sample.
+	 * 
+	 * @param i index, 0 is the latest.
+	 * @param values array of float with length 3 for sample values.
+	 * @return timestamp of sample.
+	 */
+	public long getFromBack(int i, float[] values) {
+		return get(mSize - 1 - i, values);
+	}
+
+	public long getTimestampFromBack(int i) {
+		return getTimestamp(mSize - 1 - i);
+	}
+
+	public void clear() {
+		mStartPos = 0;
+		mSize = 0;
+		mBuffer.putInt(OFFSET_START, mStartPos);
+		mBuffer.putInt(OFFSET_SIZE, mSize);
+	}
+
+	/**
+	 * Check whether store is backed by a file.
+	 * 
+	 * @return true if file-backed.
+	 */
+	public boolean isPersistent() {
+		return mFile != null;
+	}
+
+	/**
+	 * Write changes of a file-backed store to storage. It's not needed for
+	 * surviving process restarts, only for surviving power loss.
+	 */
+	public void force() {
+		if (mBuffer instanceof MappedByteBuffer) {
+			((MappedByteBuffer) mBuffer).force();
+		}
+	}
+
+	/**
+	 * Close backing file. Mapping itself is released when the store is 
+	 * garbage collected, and store must not be used afterwards.
+	 * 
+	 * @throws IOException if file can't be closed.
+	 */
+	public void close() throws IOException {
+		if (mFile != null) {
+			force();
+			mFile.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "OffHeapSampleStore[size=" + mSize + ", poolSize=" + mPoolSize
+				+ ", persistent=" + isPersistent() + "]";
+	}
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("senselib", ".samples");
+		file.deleteOnExit();
+		int poolSize = 3 * 3600 * 50;
+		float[] values = new float[3];
+
+		// Appending more than pool size, then reopening
+		OffHeapSampleStore store = OffHeapSampleStore.open(file, poolSize);
+		long start = System.nanoTime();
+		int samples = poolSize + 1000;
+		for (int i = 0; i < samples; i++) {
+			store.append(i * 20000000L, i, -i, i * 0.5F);
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("Appended %d samples, %.1f ns/sample: %s%n", samples, (double) elapsed / samples, store);
+		store.close();
+
+		store = OffHeapSampleStore.open(file, poolSize);
+		System.out.println("Reopened: " + store);
+		long oldest = store.get(0, values);
+		System.out.println("Oldest: " + oldest + " [" + values[0] + ", " + values[1] + ", " + values[2] + "]");
+		long latest = store.getFromBack(0, values);
+		System.out.println("Latest: " + latest + " [" + values[0] + ", " + values[1] + ", " + values[2] + "]");
+
+		start = System.nanoTime();
+		double sum = 0;
+		for (int i = 0; i < store.size(); i++) {
+			store.get(i, values);
+			sum += values[2];
+		}
+		elapsed = System.nanoTime() - start;
+		System.out.printf("Read %d samples, %.1f ns/sample (%f)%n", store.size(), (double) elapsed / store.size(), sum);
+		store.close();
+	}
+
+}
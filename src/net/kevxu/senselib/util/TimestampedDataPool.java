@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2013 Kaiwen Xu
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy 
+ * of this software and associated documentation files (the "Software"), to 
+ * deal in the Software without restriction, including without limitation the 
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or 
+ * sell copies of the Software, and to permit persons to whom the Software is 
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER 
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING 
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS 
+ * IN THE SOFTWARE.
+ * 
+ */
+
+package net.kevxu.senselib.util;
+
+/**
+ * Circular pool of timestamped float vectors which can be queried by time,
+ * so that windows like "the last 2 seconds" are correct under variable
+ * sensor rates. Timestamps must be appended in non-decreasing order, which
+ * makes every query by time a binary search over the ring in O(log n).
+ * <p>
+ * Timestamps and values are kept in primitive arrays, and are copied into
+ * caller's buffers. This data container is NOT thread-safe.
+ * 
+ * @author Kaiwen Xu
+ */
+public class TimestampedDataPool {
+
+	private final int mPoolSize;
+	private final int mDimension;
+
+	private long[] mTimestamps;
+	private float[] mValues;
+	private int mStartPos;
+	private int mSize;
+
+	public TimestampedDataPool(int poolSize, int dimension) {
+		if (poolSize <= 0 || dimension <= 0) {
+			throw new IllegalArgumentException("Pool size and dimension must be positive.");
+		}
+
+		mPoolSize = poolSize;
+		mDimension = dimension;
+		mTimestamps = new long[poolSize];
+		mValues = new float[poolSize * dimension];
+		mStartPos = 0;
+		mSize = 0;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public int getPoolSize() {
+		return mPoolSize;
+	}
+
+	public int getDimension() {
+		return mDimension;
+	}
+
+	/**
+	 * Append sample.
+	 * 
+	 * @param timestamp timestamp of sample, not earlier than the latest one.
+	 * @param values values of sample, with length of at least dimension.
+	 */
+	public void append(long timestamp, float[] values) {
+		if (mSize > 0 && timestamp < getTimestampFromBack(0)) {
+			throw new IllegalArgumentException("Timestamp " + timestamp + " is earlier than the latest sample.");
+		}
+
+		int pos = (mStartPos + mSize) % mPoolSize;
+		if (mSize < mPoolSize) {
+			mSize++;
+		} else {
+			mStartPos = (mStartPos + 1) % mPoolSize;
+		}
+
+		mTimestamps[pos] = timestamp;
+		System.arraycopy(values, 0, mValues, pos * mDimension, mDimension);
+	}
+
+	private int getPos(int i) {
+		if (i < 0 || i >= mSize) {
+			throw new IndexOutOfBoundsException("i is larger than DataPool size.");
+		}
+
+		return (mStartPos + i) % mPoolSize;
+	}
+
+	/**
+	 * Get i-th oldest sample.
+	 * 
+	 * @param i index, 0 is the oldest.
+	 * @param values array with length of at least dimension for sample 
+	 *            values.
+	 * @return timestamp of sample.
+	 */
+	public long get(int i, float[] values) {
+		int pos = getPos(i);
+		System.arraycopy(mValues, pos * mDimension, values, 0, mDimension);
+
+		return mTimestamps[pos];
+	}
+
+	public long getTimestamp(int i) {
+		return mTimestamps[getPos(i)];
+	}
+
+	/**
+	 * Get i-th latest sample.
+	 * 
+	 * @param i index, 0 is the latest.
+	 * @param values array with length of at least dimension for sample 
+	 *            values.
+	 * @return timestamp of sample.
+	 */
+	public long getFromBack(int i, float[] values) {
+		return get(mSize - 1 - i, values);
+	}
+
+	public long getTimestampFromBack(int i) {
+		return getTimestamp(mSize - 1 - i);
+	}
+
+	/**
+	 * Find the oldest sample at or after given time.
+	 * 
+	 * @param timestamp time.
+	 * @return index of sample, or size() if all samples are earlier.
+	 */
+	public int ceilingIndex(long timestamp) {
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mTimestamps[(mStartPos + mid) % mPoolSize] < timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Find the latest sample at or before given time.
+	 * 
+	 * @param timestamp time.
+	 * @return index of sample, or -1 if all samples are later.
+	 */
+	public int floorIndex(long timestamp) {
+		int low = 0;
+		int high = mSize;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mTimestamps[(mStartPos + mid) % mPoolSize] <= timestamp) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		return low - 1;
+	}
+
+	/**
+	 * Find the sample nearest to given time. Ties go to the earlier sample.
+	 * 
+	 * @param timestamp time.
+	 * @return index of sample, or -1 if pool is empty.
+	 */
+	public int nearestIndex(long timestamp) {
+		if (mSize == 0) {
+			return -1;
+		}
+
+		int ceiling = ceilingIndex(timestamp);
+		if (ceiling == mSize) {
+			return mSize - 1;
+		} else if (ceiling == 0) {
+			return 0;
+		} else {
+			long after = getTimestamp(ceiling) - timestamp;
+			long before = timestamp - getTimestamp(ceiling - 1);
+			return before <= after ? ceiling - 1 : ceiling;
+		}
+	}
+
+	/**
+	 * Get number of samples with from &lt;= timestamp &lt;= to.
+	 * 
+	 * @param from start time, inclusive.
+	 * @param to end time, inclusive.
+	 * @return number of samples.
+	 */
+	public int countRange(long from, long to) {
+		return Math.max(0, floorIndex(to) - ceilingIndex(from) + 1);
+	}
+
+	/**
+	 * Copy samples with from &lt;= timestamp &lt;= to into caller's buffers,
+	 * oldest first. If buffers are too small, the latest samples in range 
+	 * which fit are copied.
+	 * 
+	 * @param from start time, inclusive.
+	 * @param to end time, inclusive.
+	 * @param timestamps buffer for timestamps, or null.
+	 * @param values buffer for values, dimension values per sample.
+	 * @return number of samples copied.
+	 */
+	public int getRange(long from, long to, long[] timestamps, float[] values) {
+		int first = ceilingIndex(from);
+		int last = floorIndex(to);
+		int count = Math.max(0, last - first + 1);
+
+		count = Math.min(count, values.length / mDimension);
+		if (timestamps != null) {
+			count = Math.min(count, timestamps.length);
+		}
+		first = last - count + 1;
+
+		for (int i = 0; i < count; i++) {
+			int pos = (mStartPos + first + i) % mPoolSize;
+			if (timestamps != null) {
+				timestamps[i] = mTimestamps[pos];
+			}
+			System.arraycopy(mValues, pos * mDimension, values, i * mDimension, mDimension);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Copy samples within given duration before the latest sample, 
+	 * inclusive, into caller's buffers, oldest first.
+	 * 
+	 * @param duration duration, in the same unit as timestamps.
+	 * @param timestamps buffer for timestamps, or null.
+	 * @param values buffer for values, dimension values per sample.
+	 * @return number of samples copied.
+	 * @see #getRange(long, long, long[], float[])
+	 */
+	public int getLatest(long duration, long[] timestamps, float[] values) {
+		if (mSize == 0) {
+			return 0;
+		}
+
+		long latest = getTimestampFromBack(0);
+		return getRange(latest - duration, latest, timestamps, values);
+	}
+
+	public void clear() {
+		mStartPos = 0;
+		mSize = 0;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[");
+		for (int i = 0; i < mSize; i++) {
+			int pos = (mStartPos + i) % mPoolSize;
+			sb.append(mTimestamps[pos]).append(": (");
+			for (int j = 0; j < mDimension; j++) {
+				sb.append(mValues[pos * mDimension + j]);
+				if (j < mDimension - 1) {
+					sb.append(", ");
+				}
+			}
+			sb.append(")");
+			if (i < mSize - 1) {
+				sb.append(", ");
+			}
+		}
+		sb.append("]");
+
+		return sb.toString();
+	}
+
+	public static void main(String[] args) {
+		TimestampedDataPool pool = new TimestampedDataPool(8, 1);
+		float[] values = new float[1];
+		long timestamp = 0;
+		for (int i = 0; i < 12; i++) {
+			// Variable rate
+			timestamp += (i % 3 + 1) * 10;
+			values[0] = i;
+			pool.append(timestamp, values);
+		}
+		System.out.println(pool);
+
+		long[] timestamps = new long[8];
+		float[] range = new float[8];
+		int n = pool.getLatest(50, timestamps, range);
+		System.out.print("Latest 50:");
+		for (int i = 0; i < n; i++) {
+			System.out.print(" " + timestamps[i] + "=" + range[i]);
+		}
+		System.out.println();
+		System.out.println("Nearest to 165: " + pool.getTimestamp(pool.nearestIndex(165)));
+		System.out.println("Count [100, 200]: " + pool.countRange(100, 200));
+	}
+
+}